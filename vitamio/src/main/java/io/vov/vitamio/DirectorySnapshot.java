@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import io.vov.vitamio.utils.IOUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The modification time, number of children and sub directories of every
+ * directory seen by the last scan, persisted between scans so a
+ * {@link DirectoryWalker} only lists the directories that changed.
+ * <p/>
+ * A directory is clean when its mtime and child count are unchanged, its
+ * sub directories are then taken from the snapshot and its files are not
+ * reported. Files rewritten in place don't change the directory, so these
+ * are only picked up by a full scan.
+ */
+class DirectorySnapshot {
+  private static final int MAGIC = 0x56445253;
+  private static final int VERSION = 1;
+
+  private final File mFile;
+  private final Map<String, Dir> mOld = new ConcurrentHashMap<String, Dir>();
+  private final Map<String, Dir> mNew = new ConcurrentHashMap<String, Dir>();
+  private final Set<String> mDirty = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  static class Dir {
+    final long mLastModified;
+    final int mChildCount;
+    final String[] mSubdirs;
+
+    Dir(long lastModified, int childCount, String[] subdirs) {
+      mLastModified = lastModified;
+      mChildCount = childCount;
+      mSubdirs = subdirs;
+    }
+  }
+
+  DirectorySnapshot(File file) {
+    mFile = file;
+  }
+
+  public static DirectorySnapshot load(File file) {
+    DirectorySnapshot snapshot = new DirectorySnapshot(file);
+    if (!file.exists())
+      return snapshot;
+
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        return snapshot;
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = in.readUTF();
+        long lastModified = in.readLong();
+        int childCount = in.readInt();
+        String[] subdirs = new String[in.readInt()];
+        for (int j = 0; j < subdirs.length; j++)
+          subdirs[j] = in.readUTF();
+        snapshot.mOld.put(path, new Dir(lastModified, childCount, subdirs));
+      }
+    } catch (IOException e) {
+      Log.e("Unable to load directory snapshot", e);
+      snapshot.mOld.clear();
+    } finally {
+      IOUtils.closeSilently(in);
+    }
+    return snapshot;
+  }
+
+  public boolean isEmpty() {
+    return mOld.isEmpty();
+  }
+
+  /**
+   * @return the directory as of the last scan if it is unchanged, else null
+   */
+  Dir getClean(File dir) {
+    Dir old = mOld.get(dir.getPath());
+    if (old == null || old.mLastModified != dir.lastModified())
+      return null;
+    String[] names = dir.list();
+    if (names == null || names.length != old.mChildCount)
+      return null;
+    mNew.put(dir.getPath(), old);
+    return old;
+  }
+
+  void recordDirty(File dir, long lastModified, int childCount, String[] subdirs) {
+    mNew.put(dir.getPath(), new Dir(lastModified, childCount, subdirs));
+    mDirty.add(dir.getPath());
+  }
+
+  /**
+   * Keep a directory out of the saved snapshot so the next walk lists it
+   * again, e.g. because one of its files couldn't be stored.
+   */
+  void forget(String dir) {
+    mNew.remove(dir);
+    mDirty.add(dir);
+  }
+
+  /**
+   * @return true if the directory was seen and unchanged by the current walk
+   */
+  public boolean isClean(String dir) {
+    return mNew.containsKey(dir) && !mDirty.contains(dir);
+  }
+
+  /**
+   * @return true if the current walk found a new, changed or removed
+   *         directory below one of the roots
+   */
+  public boolean hasChanges(String[] roots) {
+    if (!mDirty.isEmpty())
+      return true;
+    for (String path : mOld.keySet()) {
+      if (!mNew.containsKey(path) && isUnder(path, roots))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Persist the current walk, keeping the directories outside of the roots
+   * from the previous snapshot.
+   */
+  public void save(String[] roots) {
+    for (Map.Entry<String, Dir> e : mOld.entrySet()) {
+      if (!isUnder(e.getKey(), roots) && !mNew.containsKey(e.getKey()))
+        mNew.put(e.getKey(), e.getValue());
+    }
+
+    File tmp = new File(mFile.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(mNew.size());
+      Iterator<Map.Entry<String, Dir>> iterator = mNew.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, Dir> e = iterator.next();
+        Dir dir = e.getValue();
+        out.writeUTF(e.getKey());
+        out.writeLong(dir.mLastModified);
+        out.writeInt(dir.mChildCount);
+        out.writeInt(dir.mSubdirs.length);
+        for (String subdir : dir.mSubdirs)
+          out.writeUTF(subdir);
+      }
+      out.close();
+      out = null;
+      if (!tmp.renameTo(mFile))
+        Log.e("Unable to save directory snapshot %s", mFile);
+    } catch (IOException e) {
+      Log.e("Unable to save directory snapshot", e);
+    } finally {
+      IOUtils.closeSilently(out);
+      tmp.delete();
+    }
+  }
+
+  private static boolean isUnder(String path, String[] roots) {
+    for (String root : roots) {
+      if (root == null || root.length() == 0)
+        continue;
+      String dir = new File(root).getPath();
+      if (path.equals(dir) || path.startsWith(dir + "/"))
+        return true;
+    }
+    return false;
+  }
+}
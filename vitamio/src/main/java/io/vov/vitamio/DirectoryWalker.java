@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import io.vov.vitamio.utils.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists the media files below a set of directories with a bounded pool of
+ * threads, one task per directory. Only the files whose extension is in the
+ * given list are reported, and directories holding a <code>.nomedia</code>
+ * file are reported and skipped, like the native walker does.
+ * <p/>
+ * The results are handed back to the thread calling {@link #walk}, so the
+ * {@link Callback} needs no synchronization. With a {@link DirectorySnapshot}
+ * only the new or changed directories are listed and reported.
+ */
+class DirectoryWalker {
+  private static final int MAX_QUEUED = 1024;
+  private static final String NOMEDIA = ".nomedia";
+
+  private final Set<String> mExtensions = new HashSet<String>();
+  private final int mThreads;
+  private DirectorySnapshot mSnapshot;
+
+  public interface Callback {
+    public void onFile(String path, long lastModified, long fileSize);
+
+    public void onNoMediaFolder(String path);
+  }
+
+  private static class Result {
+    final String mPath;
+    final long mLastModified;
+    final long mFileSize;
+    final boolean mNoMedia;
+
+    Result(String path, long lastModified, long fileSize, boolean noMedia) {
+      mPath = path;
+      mLastModified = lastModified;
+      mFileSize = fileSize;
+      mNoMedia = noMedia;
+    }
+  }
+
+  private static final Result END = new Result(null, 0, 0, false);
+
+  /**
+   * Keeps the reported files and folders to replay them later.
+   */
+  static class Recorder implements Callback {
+    private final ArrayList<Result> mResults = new ArrayList<Result>();
+
+    @Override
+    public void onFile(String path, long lastModified, long fileSize) {
+      mResults.add(new Result(path, lastModified, fileSize, false));
+    }
+
+    @Override
+    public void onNoMediaFolder(String path) {
+      mResults.add(new Result(path, 0, 0, true));
+    }
+
+    public void replay(Callback callback) {
+      for (Result result : mResults) {
+        if (result.mNoMedia)
+          callback.onNoMediaFolder(result.mPath);
+        else
+          callback.onFile(result.mPath, result.mLastModified, result.mFileSize);
+      }
+    }
+  }
+
+  /**
+   * @param extensions comma separated upper case extensions, as in {@link MediaFile#sFileExtensions}
+   * @param threads    the number of directories listed at once
+   */
+  public DirectoryWalker(String extensions, int threads) {
+    for (String ext : extensions.split(","))
+      mExtensions.add(ext.trim().toUpperCase(Locale.US));
+    mThreads = Math.max(1, threads);
+  }
+
+  /**
+   * Skip the directories unchanged since the snapshot was taken, and record
+   * the others in it.
+   */
+  public void setSnapshot(DirectorySnapshot snapshot) {
+    mSnapshot = snapshot;
+  }
+
+  /**
+   * Walk the directories, calling back on this thread until all of them have
+   * been listed.
+   */
+  public void walk(String[] directories, Callback callback) {
+    final BlockingQueue<Result> results = new ArrayBlockingQueue<Result>(MAX_QUEUED);
+    final AtomicInteger pending = new AtomicInteger();
+    final Set<String> visited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(mThreads, mThreads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "VitamioScannerWalker #" + mCount.incrementAndGet());
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    });
+
+    try {
+      pending.incrementAndGet();
+      for (String dir : directories) {
+        if (dir != null && dir.length() > 0)
+          submit(executor, new File(dir), results, pending, visited);
+      }
+      done(results, pending);
+
+      while (true) {
+        Result result = results.take();
+        if (result == END)
+          break;
+        if (result.mNoMedia)
+          callback.onNoMediaFolder(result.mPath);
+        else
+          callback.onFile(result.mPath, result.mLastModified, result.mFileSize);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void submit(final ThreadPoolExecutor executor, final File dir, final BlockingQueue<Result> results, final AtomicInteger pending, final Set<String> visited) {
+    pending.incrementAndGet();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          list(executor, dir, results, pending, visited);
+        } catch (InterruptedException e) {
+          return;
+        } catch (Exception e) {
+          Log.e("DirectoryWalker", e);
+        }
+        try {
+          done(results, pending);
+        } catch (InterruptedException e) {
+        }
+      }
+    });
+  }
+
+  private void list(ThreadPoolExecutor executor, File dir, BlockingQueue<Result> results, AtomicInteger pending, Set<String> visited) throws InterruptedException {
+    try {
+      if (!visited.add(dir.getCanonicalPath()))
+        return;
+    } catch (IOException e) {
+      return;
+    }
+
+    if (mSnapshot != null) {
+      DirectorySnapshot.Dir clean = mSnapshot.getClean(dir);
+      if (clean != null) {
+        for (String name : clean.mSubdirs)
+          submit(executor, new File(dir, name), results, pending, visited);
+        return;
+      }
+    }
+
+    long lastModified = dir.lastModified();
+    File[] files = dir.listFiles();
+    if (files == null)
+      return;
+    for (File file : files) {
+      if (file.getName().equals(NOMEDIA)) {
+        if (mSnapshot != null)
+          mSnapshot.recordDirty(dir, lastModified, files.length, new String[0]);
+        results.put(new Result(dir.getPath() + "/", 0, 0, true));
+        return;
+      }
+    }
+
+    ArrayList<String> subdirs = new ArrayList<String>();
+    for (File file : files) {
+      String name = file.getName();
+      int lastDot = name.lastIndexOf('.');
+      if (lastDot >= 0 && mExtensions.contains(name.substring(lastDot + 1).toUpperCase(Locale.US))) {
+        if (file.isFile())
+          results.put(new Result(file.getPath(), file.lastModified() / 1000, file.length(), false));
+        else if (file.isDirectory())
+          subdirs.add(file.getName());
+      } else if (file.isDirectory()) {
+        subdirs.add(file.getName());
+      }
+    }
+    if (mSnapshot != null)
+      mSnapshot.recordDirty(dir, lastModified, files.length, subdirs.toArray(new String[subdirs.size()]));
+    for (String name : subdirs)
+      submit(executor, new File(dir, name), results, pending, visited);
+  }
+
+  private static void done(BlockingQueue<Result> results, AtomicInteger pending) throws InterruptedException {
+    if (pending.decrementAndGet() == 0)
+      results.put(END);
+  }
+}
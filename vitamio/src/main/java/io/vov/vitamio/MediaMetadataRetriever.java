@@ -28,6 +28,10 @@ import io.vov.vitamio.utils.FileUtils;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * MediaMetadataRetriever is used to get meta data from any media file
@@ -42,7 +46,27 @@ import java.io.IOException;
  * </pre>
  */
 public class MediaMetadataRetriever {
+  /**
+   * Retrieve the last sync frame at or before the given time, see
+   * {@link #getFrameAtTime(long, int)}.
+   */
+  public static final int OPTION_PREVIOUS_SYNC = 0x00;
+  /**
+   * Retrieve the first sync frame at or after the given time.
+   */
+  public static final int OPTION_NEXT_SYNC = 0x01;
+  /**
+   * Retrieve the sync frame closest to the given time.
+   */
+  public static final int OPTION_CLOSEST_SYNC = 0x02;
+  /**
+   * Retrieve the frame closest to the given time, which may not be a sync
+   * frame.
+   */
+  public static final int OPTION_CLOSEST = 0x03;
+
   private AssetFileDescriptor mFD = null;
+  private long[] mKeyFrames;
 
   static {
     String LIB_ROOT = Vitamio.getLibraryPath();
@@ -65,6 +89,7 @@ public class MediaMetadataRetriever {
       SecurityException, IllegalStateException {
     if (context == null || uri == null)
       throw new IllegalArgumentException();
+    mKeyFrames = null;
     String scheme = uri.getScheme();
     if (scheme == null || scheme.equals("file")) {
       setDataSource(FileUtils.getPath(uri.toString()));
@@ -105,8 +130,113 @@ public class MediaMetadataRetriever {
    */
   public native String extractMetadata(String keyCode) throws IllegalStateException;
 
+  /**
+   * Call this method after setDataSource(). Retrieves the keys requested by
+   * map into it, replacing its previous values, so one map can be reused
+   * across files. Absent keys are left null.
+   * <p/>
+   * The native retriever has no bulk getter, every requested key is still one
+   * {@link #extractMetadata(String)} call, so only request the keys needed.
+   *
+   * @param map the structure to fill
+   * @return map
+   */
+  public MetadataMap extractAll(MetadataMap map) throws IllegalStateException {
+    map.clear();
+    int[] requested = map.mRequested;
+    for (int i = 0; i < requested.length; i++) {
+      int index = requested[i];
+      map.mValues[index] = extractMetadata(KEYS[index]);
+    }
+    return map;
+  }
+
   public native Bitmap getFrameAtTime(long timeUs) throws IllegalStateException;
 
+  /**
+   * Call this method after setDataSource(). Like {@link #getFrameAtTime(long)}
+   * with Android's option semantics.
+   * <p/>
+   * The native retriever always seeks to the requested time, so the sync
+   * options only take effect once the keyframe positions of the data source
+   * are known through {@link #setKeyFrames(long[])}: the time is then moved
+   * to a keyframe, which decodes a single frame instead of everything from
+   * the previous keyframe. Without them every option behaves like
+   * {@link #OPTION_CLOSEST}.
+   *
+   * @param timeUs the time in microseconds, or negative to let the retriever
+   *               pick a representative frame
+   * @param option one of {@link #OPTION_PREVIOUS_SYNC},
+   *               {@link #OPTION_NEXT_SYNC}, {@link #OPTION_CLOSEST_SYNC} or
+   *               {@link #OPTION_CLOSEST}
+   */
+  public Bitmap getFrameAtTime(long timeUs, int option) throws IllegalStateException {
+    if (option < OPTION_PREVIOUS_SYNC || option > OPTION_CLOSEST)
+      throw new IllegalArgumentException("Unsupported option: " + option);
+    return getFrameAtTime(getSyncTime(timeUs, option));
+  }
+
+  /**
+   * Tell the retriever where the keyframes of the current data source are,
+   * e.g. from {@link ProbeCache.Entry#getKeyFrames()}, which the
+   * {@link MediaScanner} fills for MP4, MOV and 3GP files. They stay in use until
+   * replaced, so clear them with null when changing the data source.
+   *
+   * @param positionsMs the keyframe positions in milliseconds, or null
+   */
+  public void setKeyFrames(long[] positionsMs) {
+    if (positionsMs == null || positionsMs.length == 0) {
+      mKeyFrames = null;
+      return;
+    }
+    long[] keyFrames = new long[positionsMs.length];
+    for (int i = 0; i < keyFrames.length; i++)
+      keyFrames[i] = positionsMs[i] * 1000;
+    Arrays.sort(keyFrames);
+    mKeyFrames = keyFrames;
+  }
+
+  /**
+   * @return the time {@link #getFrameAtTime(long, int)} asks the native
+   *         retriever for
+   */
+  public long getSyncTime(long timeUs, int option) {
+    long[] keyFrames = mKeyFrames;
+    if (timeUs < 0 || option == OPTION_CLOSEST || keyFrames == null)
+      return timeUs;
+    int index = Arrays.binarySearch(keyFrames, timeUs);
+    if (index >= 0)
+      return keyFrames[index];
+    index = -index - 1;
+    long previous = keyFrames[Math.max(0, index - 1)];
+    long next = keyFrames[Math.min(keyFrames.length - 1, index)];
+    switch (option) {
+      case OPTION_PREVIOUS_SYNC:
+        return previous;
+      case OPTION_NEXT_SYNC:
+        return next;
+      default:
+        return Math.abs(timeUs - previous) <= Math.abs(next - timeUs) ? previous : next;
+    }
+  }
+
+  /**
+   * Call this method after setDataSource(). Like {@link #getFrameAtTime(long)},
+   * but returns the frame scaled to cover width x height and center cropped,
+   * drawn in one pass so no intermediate scaled copy is allocated. The full
+   * size frame is recycled before returning.
+   *
+   * @param target a mutable width x height bitmap to draw into, e.g. a pooled
+   *               one, or null to allocate a new one
+   * @return the scaled frame, or null if no frame could be retrieved
+   */
+  public Bitmap getScaledFrameAtTime(long timeUs, int width, int height, Bitmap target) throws IllegalStateException {
+    Bitmap frame = getFrameAtTime(timeUs);
+    if (frame == null)
+      return null;
+    return ThumbnailUtils.extractThumbnail(frame, width, height, target, true);
+  }
+
   /**
    * Call this method after setDataSource(). This method finds the optional
    * graphic or album/cover art associated associated with the data source. If
@@ -300,4 +430,106 @@ public class MediaMetadataRetriever {
    */
   public static final String METADATA_KEY_HAS_VIDEO = "has_video";
 
+  private static final String[] KEYS = {METADATA_KEY_ALBUM, METADATA_KEY_ALBUM_ARTIST, METADATA_KEY_ARTIST, METADATA_KEY_COMMENT, METADATA_KEY_AUTHOR, METADATA_KEY_COMPOSER, METADATA_KEY_COPYRIGHT, METADATA_KEY_CREATION_TIME, METADATA_KEY_DATE, METADATA_KEY_DISC, METADATA_KEY_ENCODER, METADATA_KEY_ENCODED_BY, METADATA_KEY_FILENAME, METADATA_KEY_GENRE, METADATA_KEY_LANGUAGE, METADATA_KEY_PERFORMER, METADATA_KEY_PUBLISHER, METADATA_KEY_SERVICE_NAME, METADATA_KEY_SERVICE_PROVIDER, METADATA_KEY_TITLE, METADATA_KEY_TRACK, METADATA_KEY_VARIANT_BITRATE, METADATA_KEY_DURATION, METADATA_KEY_AUDIO_CODEC, METADATA_KEY_VIDEO_CODEC, METADATA_KEY_VIDEO_ROTATION, METADATA_KEY_VIDEO_WIDTH, METADATA_KEY_VIDEO_HEIGHT, METADATA_KEY_NUM_TRACKS, METADATA_KEY_HAS_AUDIO, METADATA_KEY_HAS_VIDEO};
+
+  /**
+   * All the METADATA_KEY_XXX constants, the order defines the indices used
+   * by {@link MetadataMap}.
+   */
+  public static final List<String> METADATA_KEYS = Collections.unmodifiableList(Arrays.asList(KEYS));
+
+  private static final HashMap<String, Integer> KEY_INDICES = new HashMap<String, Integer>(KEYS.length * 2);
+
+  static {
+    for (int i = 0; i < KEYS.length; i++)
+      KEY_INDICES.put(KEYS[i], i);
+  }
+
+  /**
+   * @return the index of key in {@link #METADATA_KEYS}, or -1 if unknown
+   */
+  public static int indexOfKey(String key) {
+    Integer index = KEY_INDICES.get(key);
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * The result of {@link MediaMetadataRetriever#extractAll(MetadataMap)}: one
+   * slot per METADATA_KEY_XXX constant, addressed by the constant or by its
+   * index in {@link #METADATA_KEYS}. Reuse it across files to avoid
+   * allocating a container per file.
+   */
+  public static class MetadataMap {
+    private final String[] mValues = new String[KEYS.length];
+    private final int[] mRequested;
+
+    /**
+     * Request the keys a caller needs, e.g. the ones a library import stores.
+     *
+     * @param keys METADATA_KEY_XXX constants
+     */
+    public MetadataMap(String... keys) {
+      int[] requested = new int[keys.length];
+      int count = 0;
+      for (String key : keys) {
+        int index = indexOfKey(key);
+        if (index < 0)
+          throw new IllegalArgumentException("Unknown metadata key: " + key);
+        requested[count++] = index;
+      }
+      mRequested = requested;
+    }
+
+    public void clear() {
+      Arrays.fill(mValues, null);
+    }
+
+    /**
+     * @param key a METADATA_KEY_XXX constant
+     * @return the value, or null if absent or not requested
+     */
+    public String get(String key) {
+      int index = indexOfKey(key);
+      return index < 0 ? null : mValues[index];
+    }
+
+    /**
+     * @param index an index in {@link #METADATA_KEYS}
+     */
+    public String get(int index) {
+      return mValues[index];
+    }
+
+    public boolean has(String key) {
+      return get(key) != null;
+    }
+
+    public long getLong(String key, long defaultValue) {
+      String value = get(key);
+      if (value == null)
+        return defaultValue;
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        return defaultValue;
+      }
+    }
+
+    public int getInt(String key, int defaultValue) {
+      return (int) getLong(key, defaultValue);
+    }
+
+    /**
+     * @return the number of keys with a value
+     */
+    public int size() {
+      int size = 0;
+      for (String value : mValues) {
+        if (value != null)
+          size++;
+      }
+      return size;
+    }
+  }
+
 }
\ No newline at end of file
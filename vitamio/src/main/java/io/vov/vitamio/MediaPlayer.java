@@ -38,15 +38,17 @@ import android.util.SparseArray;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
+import io.vov.vitamio.subtitle.BitmapSubtitle;
+import io.vov.vitamio.subtitle.BitmapSubtitlePool;
 import io.vov.vitamio.utils.ContextUtils;
 import io.vov.vitamio.utils.FileUtils;
 import io.vov.vitamio.utils.Log;
+import io.vov.vitamio.utils.TextDecoder;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.HashMap;
@@ -164,6 +166,12 @@ public class MediaPlayer {
   private Metadata mMeta;
   private TrackInfo[] mInbandTracks;
   private TrackInfo mOutOfBandTracks;
+  private TrackInfo[] mAllTracks;
+  private String mTracksKey;
+  private String mAllTracksPath;
+  private String mTextSource;
+  private String mTimedTextKey;
+  private String mTrackNamesKey;
   private AssetFileDescriptor mFD = null;
   private OnHWRenderFailedListener mOnHWRenderFailedListener;
   private OnPreparedListener mOnPreparedListener;
@@ -181,6 +189,8 @@ public class MediaPlayer {
    */
   private OnInfoListener mOnInfoListener;
   private OnTimedTextListener mOnTimedTextListener;
+  private OnTimedTextBitmapListener mOnTimedTextBitmapListener;
+  private BitmapSubtitlePool mSubtitlePool;
   private AudioTrack mAudioTrack;
   private int mAudioTrackBufferSize;
   private Surface mLocalSurface;
@@ -355,6 +365,7 @@ public class MediaPlayer {
    *                               form {@link #setDataSource(FileDescriptor)}.
    */
   public void setDataSource(String path) throws IOException, IllegalArgumentException, SecurityException, IllegalStateException {
+    setTextSource(path);
     _setDataSource(path, null, null);
   }
 
@@ -372,6 +383,7 @@ public class MediaPlayer {
   public void setDataSource(Context context, Uri uri, Map<String, String> headers) throws IOException, IllegalArgumentException, SecurityException, IllegalStateException {
     if (context == null || uri == null)
       throw new IllegalArgumentException();
+    setTextSource(uri.toString());
     String scheme = uri.getScheme();
     if (scheme == null || scheme.equals("file")) {
       setDataSource(FileUtils.getPath(uri.toString()));
@@ -427,6 +439,7 @@ public class MediaPlayer {
    * @throws IllegalStateException if it is called in an invalid state
    */
 	public void setDataSource(String path, String[] keys, String[] values) throws IOException, IllegalArgumentException, SecurityException, IllegalStateException {
+		setTextSource(path);
 		final Uri uri = Uri.parse(path);
 		if ("file".equals(uri.getScheme())) {
 			path = uri.getPath();
@@ -714,16 +727,17 @@ public class MediaPlayer {
    */
   public Metadata getMetadata() {
     if (mMeta == null) {
-      mMeta = new Metadata();
+      Metadata metadata = new Metadata();
       Map<byte[], byte[]> meta = new HashMap<byte[], byte[]>();
 
       if (!native_getMetadata(meta)) {
         return null;
       }
 
-      if (!mMeta.parse(meta, getMetaEncoding())) {
+      if (!metadata.parse(meta, getMetaEncoding())) {
         return null;
       }
+      mMeta = metadata;
     }
     return mMeta;
   }
@@ -745,8 +759,11 @@ public class MediaPlayer {
     mOnVideoSizeChangedListener = null;
     mOnCachingUpdateListener = null;
     mOnHWRenderFailedListener = null;
+    mOnTimedTextBitmapListener = null;
     if (mEventHandler != null)
         mEventHandler.release();
+    if (mSubtitlePool != null)
+      mSubtitlePool.clear();
     //mEventHandler = null;
     _release();
     closeFD();
@@ -766,13 +783,27 @@ public class MediaPlayer {
     _reset();
     if (mEventHandler != null)
         mEventHandler.removeCallbacksAndMessages(null);
+    clearTrackInfo();
+    mMeta = null;
     closeFD();
+    setTextSource(null);
     mInBuffering = false;
     mNeedResume = false;
   }
 
   private native void _reset();
 
+  /**
+   * Remember the source whose subtitle and track name charsets are detected,
+   * null if unknown, e.g. after {@link #reset()} for a raw
+   * {@link #setDataSource(FileDescriptor)}.
+   */
+  private void setTextSource(String source) {
+    mTextSource = source;
+    mTimedTextKey = source == null ? null : source + "#timedtext";
+    mTrackNamesKey = source == null ? null : source + "#tracks";
+  }
+
   private void closeFD() {
     if (mFD != null) {
       try {
@@ -823,11 +854,16 @@ public class MediaPlayer {
    */
   public TrackInfo[] getTrackInfo(String encoding) {
   	TrackInfo[] trackInfo = getInbandTrackInfo(encoding);
+  	if (trackInfo == null)
+  		return null;
     // add out-of-band tracks
   	String timedTextPath = getTimedTextPath();
   	if (TextUtils.isEmpty(timedTextPath)) {
   		return trackInfo;
   	}
+  	if (mAllTracks != null && timedTextPath.equals(mAllTracksPath))
+  		return mAllTracks.clone();
+
     TrackInfo[] allTrackInfo = new TrackInfo[trackInfo.length + 1];
     System.arraycopy(trackInfo, 0, allTrackInfo, 0, trackInfo.length);
     int i = trackInfo.length;
@@ -837,66 +873,100 @@ public class MediaPlayer {
     mediaFormat.setString(MediaFormat.KEY_PATH, timedTextPath);
     SparseArray<MediaFormat> timedTextSparse = findTrackFromTrackInfo(TrackInfo.MEDIA_TRACK_TYPE_TIMEDTEXT, trackInfo);
     if (timedTextSparse == null || timedTextSparse.size() == 0)
-    	trackInfoArray.put(timedTextSparse.keyAt(0), mediaFormat);
+    	trackInfoArray.put(nextTrackIndex(trackInfo), mediaFormat);
     else 
     	trackInfoArray.put(timedTextSparse.keyAt(timedTextSparse.size() - 1), mediaFormat);
     mOutOfBandTracks = new TrackInfo(TrackInfo.MEDIA_TRACK_TYPE_SUBTITLE, trackInfoArray);
     allTrackInfo[i] = mOutOfBandTracks;
-    return allTrackInfo;
+    mAllTracks = allTrackInfo;
+    mAllTracksPath = timedTextPath;
+    return allTrackInfo.clone();
   }
-  
+
+  private static int nextTrackIndex(TrackInfo[] trackInfo) {
+    int next = 0;
+    for (TrackInfo info : trackInfo) {
+      SparseArray<MediaFormat> formats = info.getTrackInfoArray();
+      for (int i = 0; i < formats.size(); i++)
+        next = Math.max(next, formats.keyAt(i) + 1);
+    }
+    return next;
+  }
+
   private TrackInfo[] getInbandTrackInfo(String encoding) {
-  	if (mInbandTracks == null) {
+  	String key = mTextSource + "#" + encoding;
+  	if (mInbandTracks == null || !key.equals(mTracksKey)) {
   		SparseArray<byte[]> trackSparse = new SparseArray<byte[]>();
       if (!native_getTrackInfo(trackSparse)) {
         return null;
       }
 
       int size = trackSparse.size();
-      mInbandTracks = new TrackInfo[size];
+      TrackInfo[] tracks = new TrackInfo[size];
       for (int i = 0; i < size; i++) {
       	SparseArray<MediaFormat> sparseArray = parseTrackInfo(trackSparse.valueAt(i), encoding);
-        TrackInfo trackInfo = new TrackInfo(trackSparse.keyAt(i), sparseArray);
-        mInbandTracks[i] = trackInfo;
+        tracks[i] = new TrackInfo(trackSparse.keyAt(i), sparseArray);
       }
+      mInbandTracks = tracks;
+      mTracksKey = key;
+      mAllTracks = null;
   	}
     return mInbandTracks;
   }
 
+  private void clearTrackInfo() {
+    mInbandTracks = null;
+    mOutOfBandTracks = null;
+    mAllTracks = null;
+    mTracksKey = null;
+    mAllTracksPath = null;
+  }
+
   /**
-   * Use default chartset {@link #getTrackInfo()} method.
+   * Same as {@link #getTrackInfo(String)}, the charset of the track names is
+   * detected.
    *
    * @return array of {@link TrackInfo}
    */
   public TrackInfo[] getTrackInfo() {
-    return getTrackInfo(Charset.defaultCharset().name());
+    return getTrackInfo(null);
   }
 
+  /**
+   * Parse the track list of one media type in a single pass over the raw
+   * bytes. Tracks are separated by <code>!#!</code>, each one is
+   * <code>index[.language[.title]]</code>; the title is everything after the
+   * second dot so it may contain dots itself. Only the language and the title
+   * are decoded.
+   */
   private SparseArray<MediaFormat> parseTrackInfo(byte[] tracks, String encoding) {
     SparseArray<MediaFormat> trackSparse = new SparseArray<MediaFormat>();
-    String trackString;
-    int trackNum;
-    try {
-      trackString = new String(tracks, encoding);
-    } catch (Exception e) {
-      Log.e("getTrackMap exception");
-      trackString = new String(tracks);
-    }
-    for (String s : trackString.split("!#!")) {
-      try {
-      	MediaFormat mediaFormat = null;
-      	String[] formats = s.split("\\.");
-      	if (formats == null)
-      		continue;
-      	trackNum = Integer.parseInt(formats[0]);
-      	if (formats.length == 3) {
-      		mediaFormat = MediaFormat.createSubtitleFormat(formats[2], formats[1]);
-      	} else if (formats.length == 2) {
-      		mediaFormat = MediaFormat.createSubtitleFormat("", formats[1]);
-      	}
+    Charset charset = TextDecoder.resolve(tracks, encoding, mTrackNamesKey);
+    int length = tracks.length;
+    int pos = 0;
+    while (pos < length) {
+      int end = pos;
+      while (end < length && !(tracks[end] == '!' && end + 2 < length && tracks[end + 1] == '#' && tracks[end + 2] == '!'))
+        end++;
+
+      int trackNum = 0;
+      int i = pos;
+      while (i < end && tracks[i] >= '0' && tracks[i] <= '9')
+        trackNum = trackNum * 10 + (tracks[i++] - '0');
+      if (i > pos && (i == end || tracks[i] == '.')) {
+        MediaFormat mediaFormat = null;
+        if (i < end) {
+          int langStart = i + 1;
+          int langEnd = langStart;
+          while (langEnd < end && tracks[langEnd] != '.')
+            langEnd++;
+          String language = TextDecoder.decode(tracks, langStart, langEnd - langStart, charset);
+          String title = langEnd < end ? TextDecoder.decode(tracks, langEnd + 1, end - langEnd - 1, charset) : "";
+          mediaFormat = MediaFormat.createSubtitleFormat(title, language);
+        }
         trackSparse.put(trackNum, mediaFormat);
-      } catch (NumberFormatException e) {
       }
+      pos = end + 3;
     }
 
     return trackSparse;
@@ -1074,25 +1144,33 @@ public class MediaPlayer {
     mOnTimedTextListener = listener;
   }
 
+  /**
+   * Register a callback to receive image timed text in pooled memory instead
+   * of {@link OnTimedTextListener#onTimedTextUpdate(byte[], int, int)}, which
+   * is no longer called while this listener is set.
+   *
+   * @param listener the callback that will be run
+   */
+  public void setOnTimedTextBitmapListener(OnTimedTextBitmapListener listener) {
+    mOnTimedTextBitmapListener = listener;
+  }
+
   private void updateSub(int subType, byte[] bytes, String encoding, int width, int height) {
     if (mEventHandler != null) {
       Message m = mEventHandler.obtainMessage(MEDIA_TIMED_TEXT, width, height);
       Bundle b = m.getData();
       if (subType == SUBTITLE_TEXT) {
         b.putInt(MEDIA_SUBTITLE_TYPE, SUBTITLE_TEXT);
-        if (encoding == null) {
-          b.putString(MEDIA_SUBTITLE_STRING, new String(bytes));
-        } else {
-          try {
-            b.putString(MEDIA_SUBTITLE_STRING, new String(bytes, encoding.trim()));
-          } catch (UnsupportedEncodingException e) {
-            Log.e("updateSub", e);
-            b.putString(MEDIA_SUBTITLE_STRING, new String(bytes));
-          }
-        }
+        b.putString(MEDIA_SUBTITLE_STRING, TextDecoder.decode(bytes, encoding, mTimedTextKey));
       } else if (subType == SUBTITLE_BITMAP) {
         b.putInt(MEDIA_SUBTITLE_TYPE, SUBTITLE_BITMAP);
-        b.putByteArray(MEDIA_SUBTITLE_BYTES, bytes);
+        if (mOnTimedTextBitmapListener != null) {
+          if (mSubtitlePool == null)
+            mSubtitlePool = new BitmapSubtitlePool();
+          m.obj = mSubtitlePool.obtain(bytes, width, height);
+        } else {
+          b.putByteArray(MEDIA_SUBTITLE_BYTES, bytes);
+        }
       }
       mEventHandler.sendMessage(m);
     }
@@ -1141,7 +1219,10 @@ public class MediaPlayer {
   public native void setVideoChroma(int chroma);
 
   /**
-   * Set if should deinterlace the video picture
+   * Set if should deinterlace the video picture, it's done on the CPU. To do
+   * it on the GPU, render to the input surface of a
+   * {@link io.vov.vitamio.filter.FilterRenderer} with a
+   * {@link io.vov.vitamio.filter.DeinterlaceFilter} instead.
    *
    * @param deinterlace
    */
@@ -1501,6 +1582,17 @@ private int audioTrackInit(int sampleRateInHz, int channels) {
     public void onTimedTextUpdate(byte[] pixels, int width, int height);
   }
 
+  public interface OnTimedTextBitmapListener {
+    /**
+     * Called to indicate that an image timed text need to display. The
+     * subtitle must be released once it's replaced or hidden.
+     *
+     * @param subtitle the image, backed by pooled memory
+     * @see BitmapSubtitle#release()
+     */
+    public void onTimedTextBitmap(BitmapSubtitle subtitle);
+  }
+
   /**
    * Class for MediaPlayer to return each audio/video/subtitle track's metadata.
    *
@@ -1660,7 +1752,12 @@ private int audioTrackInit(int sampleRateInHz, int channels) {
               mOnTimedTextListener.onTimedText(mData.getString(MEDIA_SUBTITLE_STRING));
           } else if (mData.getInt(MEDIA_SUBTITLE_TYPE) == SUBTITLE_BITMAP) {
             Log.i("Subtitle : bitmap");
-            if (mOnTimedTextListener != null)
+            if (msg.obj instanceof BitmapSubtitle) {
+              if (mOnTimedTextBitmapListener != null)
+                mOnTimedTextBitmapListener.onTimedTextBitmap((BitmapSubtitle) msg.obj);
+              else
+                ((BitmapSubtitle) msg.obj).release();
+            } else if (mOnTimedTextListener != null)
               mOnTimedTextListener.onTimedTextUpdate(mData.getByteArray(MEDIA_SUBTITLE_BYTES), msg.arg1, msg.arg2);
           }
           return;
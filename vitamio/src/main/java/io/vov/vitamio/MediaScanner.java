@@ -18,9 +18,12 @@
 package io.vov.vitamio;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
@@ -29,30 +32,147 @@ import android.text.TextUtils;
 
 import io.vov.vitamio.provider.MediaStore;
 import io.vov.vitamio.provider.MediaStore.Video;
+import io.vov.vitamio.provider.ThumbnailStage;
 import io.vov.vitamio.utils.ContextUtils;
 import io.vov.vitamio.utils.FileUtils;
 import io.vov.vitamio.utils.Log;
+import io.vov.vitamio.utils.TextDecoder;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class MediaScanner {
   private static final String[] VIDEO_PROJECTION = new String[]{Video.Media._ID, Video.Media.DATA, Video.Media.DATE_MODIFIED,};
   private static final int ID_VIDEO_COLUMN_INDEX = 0;
   private static final int PATH_VIDEO_COLUMN_INDEX = 1;
   private static final int DATE_MODIFIED_VIDEO_COLUMN_INDEX = 2;
+  private static final int MAX_PARALLELISM = 4;
+  private static final int PROBES_PER_THREAD = 4;
+  public static final int DEFAULT_BATCH_SIZE = 200;
+  private static final String SNAPSHOT_FILE = "vitamio_dirs.cache";
+  private static final int MAX_DELETE_ARGS = 500;
   private Context mContext;
   private ContentProviderClient mProvider;
   private boolean mCaseInsensitivePaths;
   private HashMap<String, FileCacheEntry> mFileCache;
   private MyMediaScannerClient mClient = new MyMediaScannerClient();
+  private ProbeCache mProbeCache;
+  private boolean mThumbnailsEnabled;
+  private ThumbnailStage mThumbnailStage;
+  private int mParallelism = Math.min(Runtime.getRuntime().availableProcessors(), MAX_PARALLELISM);
+  private int mBatchSize = DEFAULT_BATCH_SIZE;
+  private boolean mBatching;
+  private boolean mIncremental;
+  private DirectorySnapshot mSnapshot;
+  private ArrayList<ContentProviderOperation> mPendingOps = new ArrayList<ContentProviderOperation>();
+  private ArrayList<FileCacheEntry> mPendingEntries = new ArrayList<FileCacheEntry>();
 
   public MediaScanner(Context ctx) {
     mContext = ctx;
+    mProbeCache = ProbeCache.getInstance(ctx);
     native_init(mClient);
   }
 
+  /**
+   * Create the micro thumbnails of inserted or changed videos in the
+   * background while scanning, see {@link ThumbnailStage}. Disabled by default.
+   */
+  public void setThumbnailsEnabled(boolean enabled) {
+    mThumbnailsEnabled = enabled;
+  }
+
+  /**
+   * Number of threads listing directories and probing files in
+   * {@link #scanDirectories(String[])}, 1 uses the single threaded native
+   * walker. Defaults to the number of cores, up to 4.
+   */
+  public void setParallelism(int threads) {
+    mParallelism = Math.max(1, threads);
+  }
+
+  /**
+   * Only list the directories whose mtime or child count changed since the
+   * last {@link #scanDirectories(String[])}, see {@link DirectorySnapshot}.
+   * A scan with no changed directory doesn't touch the provider at all.
+   * Disabled by default since files rewritten in place are not noticed.
+   */
+  public void setIncremental(boolean incremental) {
+    mIncremental = incremental;
+  }
+
+  /**
+   * Number of inserts, updates and deletes sent to the provider at once with
+   * {@link ContentProviderClient#applyBatch} during
+   * {@link #scanDirectories(String[])}, 1 writes every file on its own.
+   */
+  public void setBatchSize(int batchSize) {
+    mBatchSize = Math.max(1, batchSize);
+  }
+
+  private void addOperation(ContentProviderOperation op, FileCacheEntry entry) throws RemoteException {
+    mPendingOps.add(op);
+    mPendingEntries.add(entry);
+    if (mPendingOps.size() >= mBatchSize)
+      flush();
+  }
+
+  /**
+   * Apply the buffered operations, then pick up the ids of the inserted rows
+   * and hand the stored videos to the thumbnail stage.
+   */
+  private void flush() throws RemoteException {
+    if (mPendingOps.isEmpty())
+      return;
+    try {
+      ContentProviderResult[] results = mProvider.applyBatch(mPendingOps);
+      for (int i = 0; i < results.length; i++) {
+        FileCacheEntry entry = mPendingEntries.get(i);
+        if (entry == null)
+          continue;
+        if (entry.mRowId == 0 && results[i].uri != null)
+          entry.mRowId = ContentUris.parseId(results[i].uri);
+        if (entry.mRowId != 0 && mThumbnailStage != null)
+          mThumbnailStage.add(entry.mRowId, entry.mPath);
+      }
+    } catch (OperationApplicationException e) {
+      Log.e("OperationApplicationException in MediaScanner.flush()", e);
+      for (FileCacheEntry entry : mPendingEntries) {
+        if (entry != null)
+          retryLater(entry.mPath);
+      }
+    } finally {
+      mPendingOps.clear();
+      mPendingEntries.clear();
+    }
+  }
+
+  private void startThumbnailStage() {
+    if (mThumbnailsEnabled) {
+      mThumbnailStage = new ThumbnailStage(mContext);
+      mThumbnailStage.start();
+    }
+  }
+
+  private void finishThumbnailStage() {
+    if (mThumbnailStage != null) {
+      mThumbnailStage.finish();
+      mThumbnailStage = null;
+    }
+  }
+
   private static native boolean loadFFmpeg_native(String ffmpegPath);
 
   private void initialize() {
@@ -87,6 +207,7 @@ public class MediaScanner {
               File tempFile = new File(path);
               if (!TextUtils.isEmpty(filePath) && !tempFile.exists()) {
                 mProvider.delete(Video.Media.CONTENT_URI, where, selectionArgs);
+                Video.Thumbnails.removeThumbnails(mContext, new long[]{rowId});
                 return;
               }
               path = FileUtils.getCanonical(tempFile);
@@ -110,18 +231,28 @@ public class MediaScanner {
 
   private void postscan(String[] directories) throws RemoteException {
     Iterator<FileCacheEntry> iterator = mFileCache.values().iterator();
+    ArrayList<Long> deleted = new ArrayList<Long>();
 
     while (iterator.hasNext()) {
       FileCacheEntry entry = iterator.next();
       String path = entry.mPath;
 
       if (!entry.mSeenInFileSystem) {
+        if (mSnapshot != null && mSnapshot.isClean(new File(path).getParent()))
+          continue;
         if (inScanDirectory(path, directories) && !new File(path).exists()) {
-          mProvider.delete(ContentUris.withAppendedId(entry.mTableUri, entry.mRowId), null, null);
+          Uri uri = ContentUris.withAppendedId(entry.mTableUri, entry.mRowId);
+          if (mBatching)
+            addOperation(ContentProviderOperation.newDelete(uri).build(), null);
+          else
+            mProvider.delete(uri, null, null);
+          deleted.add(entry.mRowId);
           iterator.remove();
         }
       }
     }
+    flush();
+    removeThumbnails(deleted);
 
     mFileCache.clear();
     mFileCache = null;
@@ -129,6 +260,13 @@ public class MediaScanner {
     mProvider = null;
   }
 
+  private void removeThumbnails(ArrayList<Long> ids) {
+    long[] origIds = new long[ids.size()];
+    for (int i = 0; i < origIds.length; i++)
+      origIds[i] = ids.get(i);
+    Video.Thumbnails.removeThumbnails(mContext, origIds);
+  }
+
   private boolean inScanDirectory(String path, String[] directories) {
     for (int i = 0; i < directories.length; i++) {
       if (path.startsWith(directories[i]))
@@ -138,20 +276,44 @@ public class MediaScanner {
   }
 
   public void scanDirectories(String[] directories) {
+    startThumbnailStage();
+    mBatching = mBatchSize > 1;
     try {
       long start = System.currentTimeMillis();
+      for (int i = 0; i < directories.length; i++) {
+        if (!TextUtils.isEmpty(directories[i]))
+          directories[i] = ContextUtils.fixLastSlash(directories[i]);
+      }
+
+      DirectoryWalker.Recorder changes = null;
+      if (mIncremental) {
+        mSnapshot = DirectorySnapshot.load(new File(mContext.getCacheDir(), SNAPSHOT_FILE));
+        if (!mSnapshot.isEmpty()) {
+          changes = new DirectoryWalker.Recorder();
+          newWalker().walk(directories, changes);
+          if (!mSnapshot.hasChanges(directories)) {
+            Log.d("  no changes: %dms", System.currentTimeMillis() - start);
+            return;
+          }
+        }
+      }
+
       prescan(null);
       long prescan = System.currentTimeMillis();
 
-      for (int i = 0; i < directories.length; i++) {
-        if (!TextUtils.isEmpty(directories[i])) {
-          directories[i] = ContextUtils.fixLastSlash(directories[i]);
-          processDirectory(directories[i], MediaFile.sFileExtensions);
+      if (changes != null || mParallelism > 1 || mSnapshot != null) {
+        scanParallel(directories, changes);
+      } else {
+        for (int i = 0; i < directories.length; i++) {
+          if (!TextUtils.isEmpty(directories[i]))
+            processDirectory(directories[i], MediaFile.sFileExtensions);
         }
       }
 
       long scan = System.currentTimeMillis();
       postscan(directories);
+      if (mSnapshot != null)
+        mSnapshot.save(directories);
       long end = System.currentTimeMillis();
 
       Log.d(" prescan time: %dms", prescan - start);
@@ -164,10 +326,99 @@ public class MediaScanner {
       Log.e("UnsupportedOperationException in MediaScanner.scan()", e);
     } catch (RemoteException e) {
       Log.e("RemoteException in MediaScanner.scan()", e);
+    } finally {
+      if (mProvider != null) {
+        try {
+          flush();
+        } catch (RemoteException e) {
+          Log.e("RemoteException in MediaScanner.scan()", e);
+        }
+        mProvider.release();
+        mProvider = null;
+      }
+      mBatching = false;
+      mSnapshot = null;
+      finishThumbnailStage();
+    }
+  }
+
+  private DirectoryWalker newWalker() {
+    DirectoryWalker walker = new DirectoryWalker(MediaFile.sFileExtensions, mParallelism);
+    walker.setSnapshot(mSnapshot);
+    return walker;
+  }
+
+  /**
+   * Walk the directories with a {@link DirectoryWalker}, or replay the changes
+   * it already found, and probe the new or changed files on a pool of
+   * scanners, while the provider is only touched from this thread, in the
+   * order the files were found.
+   */
+  private void scanParallel(String[] directories, DirectoryWalker.Recorder changes) {
+    final ProbePool probes = new ProbePool(mContext, mParallelism);
+    final ArrayDeque<PendingProbe> pending = new ArrayDeque<PendingProbe>();
+    final int window = mParallelism * PROBES_PER_THREAD;
+    try {
+      DirectoryWalker.Callback callback = new DirectoryWalker.Callback() {
+        @Override
+        public void onFile(String path, long lastModified, long fileSize) {
+          FileCacheEntry entry = mClient.beginFile(path, lastModified, fileSize);
+          if (entry == null || !entry.mLastModifiedChanged)
+            return;
+          ProbeCache.Entry probe = mProbeCache.get(path);
+          if (probe != null) {
+            mClient.finishFile(path, lastModified, fileSize, probe);
+            return;
+          }
+          pending.add(new PendingProbe(path, lastModified, fileSize, probes.submit(path)));
+          if (pending.size() >= window)
+            complete(pending.poll());
+        }
+
+        @Override
+        public void onNoMediaFolder(String path) {
+          mClient.addNoMediaFolder(path);
+        }
+      };
+      if (changes != null)
+        changes.replay(callback);
+      else
+        newWalker().walk(directories, callback);
+      while (!pending.isEmpty())
+        complete(pending.poll());
+    } finally {
+      probes.release();
     }
   }
 
+  private void complete(PendingProbe pending) {
+    ProbeCache.Entry probe = null;
+    try {
+      probe = pending.mProbe.get();
+    } catch (ExecutionException e) {
+      Log.e("MediaScanner.complete", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (probe != null)
+      mProbeCache.put(pending.mPath, probe);
+    else
+      retryLater(pending.mPath);
+    mClient.finishFile(pending.mPath, pending.mLastModified, pending.mFileSize, probe);
+  }
+
+  /**
+   * Make the next incremental scan list the directory of a file that
+   * couldn't be probed or stored, so it is tried again.
+   */
+  private void retryLater(String path) {
+    String dir = new File(path).getParent();
+    if (mSnapshot != null && dir != null)
+      mSnapshot.forget(dir);
+  }
+
   public Uri scanSingleFile(String path, String mimeType) {
+    startThumbnailStage();
     try {
       prescan(path);
       File file = new File(path);
@@ -177,9 +428,82 @@ public class MediaScanner {
     } catch (RemoteException e) {
       Log.e("RemoteException in MediaScanner.scanFile()", e);
       return null;
+    } finally {
+      if (mProvider != null) {
+        mProvider.release();
+        mProvider = null;
+      }
+      finishThumbnailStage();
     }
   }
 
+  /**
+   * Remove the rows of the deleted files and of everything below the deleted
+   * directories, with one provider batch.
+   */
+  public void deletePaths(Collection<String> files, Collection<String> directories) {
+    ArrayList<String> selections = new ArrayList<String>();
+    ArrayList<String[]> selectionArgs = new ArrayList<String[]>();
+    ArrayList<String> chunk = new ArrayList<String>(MAX_DELETE_ARGS);
+    for (String path : files) {
+      chunk.add(path);
+      if (chunk.size() == MAX_DELETE_ARGS) {
+        addDeleteIn(chunk, selections, selectionArgs);
+        chunk.clear();
+      }
+    }
+    if (!chunk.isEmpty())
+      addDeleteIn(chunk, selections, selectionArgs);
+    for (String dir : directories) {
+      selections.add(Video.Media.DATA + " LIKE ? ESCAPE '\\'");
+      selectionArgs.add(new String[]{escapeLike(ContextUtils.fixLastSlash(dir)) + '%'});
+    }
+    if (selections.isEmpty())
+      return;
+
+    ContentProviderClient provider = mContext.getContentResolver().acquireContentProviderClient(MediaStore.AUTHORITY);
+    if (provider == null)
+      return;
+    try {
+      // look up the ids first, the thumbnails are keyed by them
+      ArrayList<Long> ids = new ArrayList<Long>();
+      ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(selections.size());
+      for (int i = 0; i < selections.size(); i++) {
+        Cursor c = provider.query(Video.Media.CONTENT_URI, new String[]{Video.Media._ID}, selections.get(i), selectionArgs.get(i), null);
+        if (c != null) {
+          try {
+            while (c.moveToNext())
+              ids.add(c.getLong(0));
+          } finally {
+            c.close();
+          }
+        }
+        ops.add(ContentProviderOperation.newDelete(Video.Media.CONTENT_URI).withSelection(selections.get(i), selectionArgs.get(i)).build());
+      }
+      provider.applyBatch(ops);
+      removeThumbnails(ids);
+    } catch (RemoteException e) {
+      Log.e("RemoteException in MediaScanner.deletePaths()", e);
+    } catch (OperationApplicationException e) {
+      Log.e("OperationApplicationException in MediaScanner.deletePaths()", e);
+    } finally {
+      provider.release();
+    }
+  }
+
+  private static String escapeLike(String s) {
+    return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+  }
+
+  private static void addDeleteIn(ArrayList<String> paths, ArrayList<String> selections, ArrayList<String[]> selectionArgs) {
+    StringBuilder where = new StringBuilder(Video.Media.DATA).append(" IN (");
+    for (int i = 0; i < paths.size(); i++)
+      where.append(i == 0 ? "?" : ",?");
+    where.append(')');
+    selections.add(where.toString());
+    selectionArgs.add(paths.toArray(new String[paths.size()]));
+  }
+
   static {
     String LIB_ROOT = Vitamio.getLibraryPath();
     Log.i("LIB ROOT: %s", LIB_ROOT);
@@ -196,6 +520,79 @@ public class MediaScanner {
 
   public native void release();
 
+  private static class PendingProbe {
+    final String mPath;
+    final long mLastModified;
+    final long mFileSize;
+    final Future<ProbeCache.Entry> mProbe;
+
+    PendingProbe(String path, long lastModified, long fileSize, Future<ProbeCache.Entry> probe) {
+      mPath = path;
+      mLastModified = lastModified;
+      mFileSize = fileSize;
+      mProbe = probe;
+    }
+  }
+
+  /**
+   * Worker threads probing files, each with its own native scanner since the
+   * probe results are reported through the scanner's client.
+   */
+  private static class ProbePool {
+    private final Context mContext;
+    private final ExecutorService mExecutor;
+    private final BlockingQueue<MediaScanner> mIdle = new LinkedBlockingQueue<MediaScanner>();
+    private final ArrayList<MediaScanner> mScanners = new ArrayList<MediaScanner>();
+
+    ProbePool(Context ctx, int threads) {
+      mContext = ctx;
+      mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private int mCount;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "VitamioScannerProbe #" + ++mCount);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+    }
+
+    Future<ProbeCache.Entry> submit(final String path) {
+      return mExecutor.submit(new Callable<ProbeCache.Entry>() {
+        @Override
+        public ProbeCache.Entry call() {
+          MediaScanner scanner = mIdle.poll();
+          if (scanner == null) {
+            scanner = new MediaScanner(mContext);
+            synchronized (mScanners) {
+              mScanners.add(scanner);
+            }
+          }
+          try {
+            return scanner.mClient.probeFile(path);
+          } finally {
+            mIdle.offer(scanner);
+          }
+        }
+      });
+    }
+
+    void release() {
+      mExecutor.shutdownNow();
+      try {
+        mExecutor.awaitTermination(30, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (mScanners) {
+        for (MediaScanner scanner : mScanners)
+          scanner.release();
+        mScanners.clear();
+      }
+    }
+  }
+
   private native final void native_finalize();
 
   @Override
@@ -261,12 +658,6 @@ public class MediaScanner {
         }
       }
 
-      MediaFile.MediaFileType mediaFileType = MediaFile.getFileType(path);
-      if (mediaFileType != null) {
-        mFileType = mediaFileType.fileType;
-        mMimeType = mediaFileType.mimeType;
-      }
-
       String key = FileUtils.getCanonical(new File(path));
       if (mCaseInsensitivePaths)
         key = path.toLowerCase();
@@ -283,13 +674,60 @@ public class MediaScanner {
         entry.mLastModifiedChanged = true;
       }
 
+      reset(path, lastModified, fileSize);
+      return entry;
+    }
+
+    private void reset(String path, long lastModified, long fileSize) {
+      MediaFile.MediaFileType mediaFileType = MediaFile.getFileType(path);
+      if (mediaFileType != null) {
+        mFileType = mediaFileType.fileType;
+        mMimeType = mediaFileType.mimeType;
+      }
+
       mPath = path;
       mLastModified = lastModified;
       mFileSize = fileSize;
       mTitle = null;
+      mArtist = null;
+      mAlbum = null;
+      mLanguage = null;
       mDuration = 0;
+      mWidth = 0;
+      mHeight = 0;
+    }
 
-      return entry;
+    /**
+     * Probe a file without touching the provider, used by the probe pool of
+     * {@link #scanParallel(String[])}.
+     */
+    ProbeCache.Entry probeFile(String path) {
+      reset(path, 0, 0);
+      return processFile(path, null) ? toProbe() : null;
+    }
+
+    /**
+     * Store the file probed on another scanner, or forget it if probing failed.
+     */
+    Uri finishFile(String path, long lastModified, long fileSize, ProbeCache.Entry probe) {
+      Uri result = null;
+      try {
+        FileCacheEntry entry = beginFile(path, lastModified, fileSize);
+        if (entry == null)
+          return null;
+        if (probe != null) {
+          applyProbe(probe);
+          result = endFile(entry);
+        } else {
+          if (mCaseInsensitivePaths)
+            mFileCache.remove(path.toLowerCase());
+          else
+            mFileCache.remove(path);
+        }
+      } catch (RemoteException e) {
+        Log.e("RemoteException in MediaScanner.scanFile()", e);
+      }
+      return result;
     }
 
     public void scanFile(String path, long lastModified, long fileSize) {
@@ -302,7 +740,12 @@ public class MediaScanner {
       try {
         FileCacheEntry entry = beginFile(path, lastModified, fileSize);
         if (entry != null && (entry.mLastModifiedChanged || scanAlways)) {
-          if (processFile(path, null)) {
+          ProbeCache.Entry probe = mProbeCache.get(path);
+          if (probe != null) {
+            applyProbe(probe);
+            result = endFile(entry);
+          } else if (processFile(path, null)) {
+            mProbeCache.put(path, toProbe());
             result = endFile(entry);
           } else {
             if (mCaseInsensitivePaths)
@@ -317,6 +760,31 @@ public class MediaScanner {
       return result;
     }
 
+    private void applyProbe(ProbeCache.Entry probe) {
+      if (probe.getMimeType() != null)
+        mMimeType = probe.getMimeType();
+      mTitle = probe.getTitle();
+      mArtist = probe.getArtist();
+      mAlbum = probe.getAlbum();
+      mLanguage = probe.getLanguage();
+      mDuration = probe.getDuration();
+      mWidth = probe.getWidth();
+      mHeight = probe.getHeight();
+    }
+
+    private ProbeCache.Entry toProbe() {
+      ProbeCache.Entry probe = new ProbeCache.Entry();
+      probe.setMimeType(mMimeType);
+      probe.setTitle(mTitle);
+      probe.setArtist(mArtist);
+      probe.setAlbum(mAlbum);
+      probe.setLanguage(mLanguage);
+      probe.setDuration(mDuration);
+      probe.setVideoSize(mWidth, mHeight);
+      probe.setKeyFrames(Mp4KeyFrames.read(mPath));
+      return probe;
+    }
+
     private int parseSubstring(String s, int start, int defaultValue) {
       int length = s.length();
       if (start == length)
@@ -338,13 +806,7 @@ public class MediaScanner {
     }
 
     public void handleStringTag(String name, byte[] valueBytes, String valueEncoding) {
-      String value;
-      try {
-        value = new String(valueBytes, valueEncoding);
-      } catch (Exception e) {
-        Log.e("handleStringTag", e);
-        value = new String(valueBytes);
-      }
+      String value = TextDecoder.decode(valueBytes, valueEncoding, mPath);
       Log.i("%s : %s", name, value);
 
       if (name.equalsIgnoreCase("title")) {
@@ -422,6 +884,17 @@ public class MediaScanner {
 
       long rowId = entry.mRowId;
 
+      if (mBatching) {
+        // the id of a new row is only known once its batch is applied
+        if (rowId == 0) {
+          addOperation(ContentProviderOperation.newInsert(tableUri).withValues(values).build(), entry);
+          return null;
+        }
+        Uri result = ContentUris.withAppendedId(tableUri, rowId);
+        addOperation(ContentProviderOperation.newUpdate(result).withValues(values).build(), entry);
+        return result;
+      }
+
       Uri result = null;
       if (rowId == 0) {
         result = mProvider.insert(tableUri, values);
@@ -434,6 +907,9 @@ public class MediaScanner {
         mProvider.update(result, values, null, null);
       }
 
+      if (result != null && mThumbnailStage != null)
+        mThumbnailStage.add(rowId, entry.mPath);
+
       return result;
     }
 
@@ -442,6 +918,7 @@ public class MediaScanner {
       values.put(MediaStore.MediaColumns.DATA, "");
       String[] pathSpec = new String[]{path + '%'};
       try {
+        flush();
         mProvider.update(Video.Media.CONTENT_URI, values, MediaStore.MediaColumns.DATA + " LIKE ?", pathSpec);
       } catch (RemoteException e) {
         throw new RuntimeException();
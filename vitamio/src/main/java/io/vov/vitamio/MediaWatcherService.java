@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+
+import io.vov.vitamio.utils.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the media provider up to date by watching the scanned directories
+ * with {@link FileObserver}s instead of rescanning them on a timer.
+ * <p/>
+ * Events are collected for {@link #DEBOUNCE_MS} after the last one, and at
+ * most {@link #MAX_DELAY_MS} after the first, then only the changed paths are
+ * handled: written or moved in media files with
+ * {@link MediaScanner#scanSingleFile(String, String)}, new directories with
+ * {@link MediaScanner#scanDirectories(String[])}, and the deleted files and
+ * directories with one {@link MediaScanner#deletePaths} batch. A directory
+ * that gets a <code>.nomedia</code> file is handled as deleted, and scanned
+ * again as new once the file is removed.
+ * <p/>
+ * One inotify watch is needed per directory, the directories are watched
+ * breadth first up to {@link #EXTRA_MAX_WATCHES}, deeper ones are left to
+ * {@link VIntent#ACTION_MEDIA_SCANNER_SCAN_DIRECTORY}.
+ */
+public class MediaWatcherService extends Service {
+  public static final String EXTRA_DIRECTORIES = "directories";
+  public static final String EXTRA_MAX_WATCHES = "max_watches";
+  public static final int DEFAULT_MAX_WATCHES = 2048;
+  public static final long DEBOUNCE_MS = 2000;
+  public static final long MAX_DELAY_MS = 10000;
+
+  // set by inotify on events about a directory, FileObserver has no constant
+  private static final int IN_ISDIR = 0x40000000;
+  private static final String NOMEDIA = ".nomedia";
+  private static final int EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+  private static final int MSG_EVENT = 1;
+  private static final int MSG_FLUSH = 2;
+
+  private HandlerThread mThread;
+  private Handler mHandler;
+  private MediaScanner mScanner;
+  private final HashMap<String, Watcher> mWatchers = new HashMap<String, Watcher>();
+  // watched directories with a .nomedia file, their sub directories aren't
+  private final HashSet<String> mHidden = new HashSet<String>();
+  private int mMaxWatches = DEFAULT_MAX_WATCHES;
+  private final HashSet<String> mChangedFiles = new HashSet<String>();
+  private final HashSet<String> mNewDirectories = new HashSet<String>();
+  private final HashSet<String> mDeletedFiles = new HashSet<String>();
+  private final HashSet<String> mDeletedDirectories = new HashSet<String>();
+  private long mFirstEvent;
+
+  public static void start(Context ctx, String[] directories) {
+    Intent intent = new Intent(ctx, MediaWatcherService.class);
+    intent.putExtra(EXTRA_DIRECTORIES, directories);
+    ctx.startService(intent);
+  }
+
+  private class Watcher extends FileObserver {
+    private final String mDir;
+
+    Watcher(String dir) {
+      super(dir, EVENTS);
+      mDir = dir;
+    }
+
+    @Override
+    public void onEvent(int event, String name) {
+      mHandler.obtainMessage(MSG_EVENT, event & (ALL_EVENTS | IN_ISDIR), 0, name == null ? new String[]{mDir, null} : new String[]{mDir, name}).sendToTarget();
+    }
+  }
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    mThread = new HandlerThread("VitamioMediaWatcher", Process.THREAD_PRIORITY_BACKGROUND);
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper()) {
+      @Override
+      public void handleMessage(Message msg) {
+        switch (msg.what) {
+          case MSG_EVENT:
+            String[] paths = (String[]) msg.obj;
+            onEvent(msg.arg1, paths[0], paths[1]);
+            break;
+          case MSG_FLUSH:
+            flush();
+            break;
+        }
+      }
+    };
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    final String[] directories = intent == null ? null : intent.getStringArrayExtra(EXTRA_DIRECTORIES);
+    if (directories == null) {
+      stopSelf(startId);
+      return START_NOT_STICKY;
+    }
+    final int maxWatches = intent.getIntExtra(EXTRA_MAX_WATCHES, DEFAULT_MAX_WATCHES);
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        stopWatching();
+        mMaxWatches = maxWatches;
+        for (String dir : directories)
+          watchTree(new File(dir).getPath());
+        Log.i("MediaWatcherService: watching %d directories", mWatchers.size());
+      }
+    });
+    return START_REDELIVER_INTENT;
+  }
+
+  @Override
+  public void onDestroy() {
+    mHandler.removeMessages(MSG_EVENT);
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        stopWatching();
+        flush();
+        if (mScanner != null) {
+          mScanner.release();
+          mScanner = null;
+        }
+        Looper.myLooper().quit();
+      }
+    });
+    super.onDestroy();
+  }
+
+  @Override
+  public IBinder onBind(Intent intent) {
+    return null;
+  }
+
+  /**
+   * Watch dir and its sub directories, breadth first while watches are left.
+   * A directory with a .nomedia file is watched for its removal only.
+   */
+  private void watchTree(String dir) {
+    ArrayDeque<File> queue = new ArrayDeque<File>();
+    queue.add(new File(dir));
+    while (!queue.isEmpty()) {
+      if (mWatchers.size() >= mMaxWatches) {
+        Log.i("MediaWatcherService: watch limit %d reached below %s", mMaxWatches, dir);
+        return;
+      }
+      File file = queue.poll();
+      String path = file.getPath();
+      if (mWatchers.containsKey(path))
+        continue;
+      boolean hidden = new File(file, NOMEDIA).exists();
+      File[] children = hidden ? null : file.listFiles();
+      if (!hidden && children == null)
+        continue;
+      Watcher watcher = new Watcher(path);
+      watcher.startWatching();
+      mWatchers.put(path, watcher);
+      if (hidden) {
+        mHidden.add(path);
+        continue;
+      }
+      for (File child : children) {
+        if (child.isDirectory())
+          queue.add(child);
+      }
+    }
+  }
+
+  /**
+   * Stop watching the sub directories of dir, and dir itself if self is set.
+   */
+  private void unwatchTree(String dir, boolean self) {
+    String prefix = dir + "/";
+    Iterator<Map.Entry<String, Watcher>> iterator = mWatchers.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Watcher> e = iterator.next();
+      if (self && e.getKey().equals(dir) || e.getKey().startsWith(prefix)) {
+        e.getValue().stopWatching();
+        mHidden.remove(e.getKey());
+        iterator.remove();
+      }
+    }
+  }
+
+  private void stopWatching() {
+    for (Watcher watcher : mWatchers.values())
+      watcher.stopWatching();
+    mWatchers.clear();
+    mHidden.clear();
+  }
+
+  private void onEvent(int event, String dir, String name) {
+    if (name == null) {
+      if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+        unwatchTree(dir, true);
+        dropPending(dir);
+        mDeletedDirectories.add(dir);
+        schedule();
+      }
+      return;
+    }
+
+    String path = dir + "/" + name;
+    boolean created = (event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0;
+    boolean deleted = (event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0;
+    if ((event & IN_ISDIR) == 0 && name.equals(NOMEDIA)) {
+      if (created)
+        hide(dir);
+      else if (deleted)
+        unhide(dir);
+      else
+        return;
+    } else if (mHidden.contains(dir)) {
+      return;
+    } else if ((event & IN_ISDIR) != 0) {
+      if (deleted) {
+        unwatchTree(path, true);
+        dropPending(path);
+        mDeletedDirectories.add(path);
+      } else if (created) {
+        mDeletedDirectories.remove(path);
+        watchTree(path);
+        mNewDirectories.add(path);
+      } else {
+        return;
+      }
+    } else if (MediaFile.getFileType(path) == null) {
+      return;
+    } else if (deleted) {
+      mChangedFiles.remove(path);
+      mDeletedFiles.add(path);
+    } else if ((event & (FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO)) != 0) {
+      mDeletedFiles.remove(path);
+      mChangedFiles.add(path);
+    } else {
+      return;
+    }
+    schedule();
+  }
+
+  /**
+   * A .nomedia file appeared in dir, drop its media and stop watching below it.
+   */
+  private void hide(String dir) {
+    if (!mHidden.add(dir))
+      return;
+    unwatchTree(dir, false);
+    dropPending(dir);
+    mDeletedDirectories.add(dir);
+  }
+
+  /**
+   * The .nomedia file of dir is gone, watch and scan it as a new directory.
+   */
+  private void unhide(String dir) {
+    if (new File(dir, NOMEDIA).exists() || !mHidden.remove(dir))
+      return;
+    mDeletedDirectories.remove(dir);
+    unwatchTree(dir, true);
+    watchTree(dir);
+    mNewDirectories.add(dir);
+  }
+
+  /**
+   * Forget the pending scans below dir.
+   */
+  private void dropPending(String dir) {
+    String prefix = dir + "/";
+    Iterator<String> iterator = mChangedFiles.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().startsWith(prefix))
+        iterator.remove();
+    }
+    iterator = mNewDirectories.iterator();
+    while (iterator.hasNext()) {
+      String path = iterator.next();
+      if (path.equals(dir) || path.startsWith(prefix))
+        iterator.remove();
+    }
+  }
+
+  private void schedule() {
+    long now = SystemClock.uptimeMillis();
+    if (!mHandler.hasMessages(MSG_FLUSH))
+      mFirstEvent = now;
+    mHandler.removeMessages(MSG_FLUSH);
+    mHandler.sendEmptyMessageDelayed(MSG_FLUSH, Math.max(0, Math.min(DEBOUNCE_MS, mFirstEvent + MAX_DELAY_MS - now)));
+  }
+
+  private void flush() {
+    mHandler.removeMessages(MSG_FLUSH);
+    if (mChangedFiles.isEmpty() && mNewDirectories.isEmpty() && mDeletedFiles.isEmpty() && mDeletedDirectories.isEmpty())
+      return;
+    if (mScanner == null)
+      mScanner = new MediaScanner(this);
+
+    long start = SystemClock.uptimeMillis();
+    mScanner.deletePaths(mDeletedFiles, mDeletedDirectories);
+    if (!mNewDirectories.isEmpty())
+      mScanner.scanDirectories(mNewDirectories.toArray(new String[mNewDirectories.size()]));
+    for (String path : mChangedFiles) {
+      if (!inDirectory(path, mNewDirectories))
+        mScanner.scanSingleFile(path, null);
+    }
+    Log.d("MediaWatcherService: %d changed, %d new directories, %d deleted, %d deleted directories in %dms", mChangedFiles.size(), mNewDirectories.size(), mDeletedFiles.size(), mDeletedDirectories.size(), SystemClock.uptimeMillis() - start);
+
+    mChangedFiles.clear();
+    mNewDirectories.clear();
+    mDeletedFiles.clear();
+    mDeletedDirectories.clear();
+  }
+
+  private static boolean inDirectory(String path, HashSet<String> directories) {
+    for (String dir : directories) {
+      if (path.startsWith(dir + "/"))
+        return true;
+    }
+    return false;
+  }
+}
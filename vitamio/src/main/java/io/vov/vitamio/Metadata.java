@@ -19,8 +19,9 @@ package io.vov.vitamio;
 
 import android.util.SparseArray;
 
-import java.io.UnsupportedEncodingException;
-import java.util.Locale;
+import io.vov.vitamio.utils.TextDecoder;
+
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -63,96 +64,86 @@ public class Metadata {
   public static final int SEEK_AVAILABLE = 32; // Boolean
   private static final int LAST_SYSTEM = 32;
   private static final int FIRST_CUSTOM = 8192;
+  private static final String[] KEY_NAMES = {"title", "comment", "copyright", "album", "artist", "author", "composer", "genre", "creation_time", "date", "duration", "length", "bit_rate", "audio_bit_rate", "video_bit_rate", "audio_sample_rate", "video_frame_rate", "format", "audio_codec", "video_codec", "video_height", "video_width", "num_tracks", "cap_pause", "cap_seek"};
+  private static final int[] KEY_IDS = {TITLE, COMMENT, COPYRIGHT, ALBUM, ARTIST, AUTHOR, COMPOSER, GENRE, DATE, DATE, DURATION, LENGTH, BIT_RATE, AUDIO_BIT_RATE, VIDEO_BIT_RATE, AUDIO_SAMPLE_RATE, VIDEO_FRAME_RATE, MIME_TYPE, AUDIO_CODEC, VIDEO_CODEC, VIDEO_HEIGHT, VIDEO_WIDTH, NUM_TRACKS, PAUSE_AVAILABLE, SEEK_AVAILABLE};
+  private static final int TABLE_SIZE = 64;
+  private static final byte[][] TABLE_KEYS = new byte[TABLE_SIZE][];
+  private static final int[] TABLE_IDS = new int[TABLE_SIZE];
+  private static final int HASH_SEED;
+
+  static {
+    // find a multiplier hashing every known key to its own slot, so a lookup
+    // is one hash of the raw bytes and one comparison
+    int seed = 31;
+    while (!buildTable(seed))
+      seed += 2;
+    HASH_SEED = seed;
+  }
+
   private SparseArray<byte[]> mMeta = new SparseArray<byte[]>();
+  private SparseArray<String> mStrings = new SparseArray<String>();
   private String mEncoding = "UTF-8";
 
+  private static boolean buildTable(int seed) {
+    Arrays.fill(TABLE_KEYS, null);
+    for (int i = 0; i < KEY_NAMES.length; i++) {
+      byte[] key = KEY_NAMES[i].getBytes();
+      int slot = hash(key, 0, key.length, seed) & (TABLE_SIZE - 1);
+      if (TABLE_KEYS[slot] != null)
+        return false;
+      TABLE_KEYS[slot] = key;
+      TABLE_IDS[slot] = KEY_IDS[i];
+    }
+    return true;
+  }
+
+  private static int hash(byte[] key, int start, int end, int seed) {
+    int h = 0;
+    for (int i = start; i < end; i++)
+      h = h * seed + (key[i] | 0x20);
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Map a raw key to its metadata id, ignoring case and surrounding spaces.
+   *
+   * @return the id, or {@link #ANY} if the key is unknown
+   */
+  static int lookup(byte[] key) {
+    int start = 0, end = key.length;
+    while (start < end && key[start] <= ' ')
+      start++;
+    while (end > start && key[end - 1] <= ' ')
+      end--;
+    int slot = hash(key, start, end, HASH_SEED) & (TABLE_SIZE - 1);
+    byte[] candidate = TABLE_KEYS[slot];
+    if (candidate == null || candidate.length != end - start)
+      return ANY;
+    for (int i = 0; i < candidate.length; i++) {
+      int b = key[start + i];
+      if (b >= 'A' && b <= 'Z')
+        b += 'a' - 'A';
+      if (b != candidate[i])
+        return ANY;
+    }
+    return TABLE_IDS[slot];
+  }
+
+  /**
+   * Index the raw key/value pairs, values are only decoded by the getters.
+   */
   public boolean parse(Map<byte[], byte[]> meta, String encoding) {
-    String key = null;
-    byte[] value = null;
     mEncoding = encoding;
-    for (byte[] keyBytes : meta.keySet()) {
-      try {
-        key = new String(keyBytes, mEncoding).trim().toLowerCase(Locale.US);
-      } catch (UnsupportedEncodingException e) {
-        key = new String(keyBytes).trim().toLowerCase(Locale.US);
-      }
-      value = meta.get(keyBytes);
-      if (key.equals("title")) {
-        mMeta.put(TITLE, value);
-      } else if (key.equals("comment")) {
-        mMeta.put(COMMENT, value);
-      } else if (key.equals("copyright")) {
-        mMeta.put(COPYRIGHT, value);
-      } else if (key.equals("album")) {
-        mMeta.put(ALBUM, value);
-      } else if (key.equals("artist")) {
-        mMeta.put(ARTIST, value);
-      } else if (key.equals("author")) {
-        mMeta.put(AUTHOR, value);
-      } else if (key.equals("composer")) {
-        mMeta.put(COMPOSER, value);
-      } else if (key.equals("genre")) {
-        mMeta.put(GENRE, value);
-      } else if (key.equals("creation_time") || key.equals("date")) {
-        mMeta.put(DATE, value);
-      } else if (key.equals("duration")) {
-        mMeta.put(DURATION, value);
-      } else if (key.equals("length")) {
-        mMeta.put(LENGTH, value);
-      } else if (key.equals("bit_rate")) {
-        mMeta.put(BIT_RATE, value);
-      } else if (key.equals("audio_bit_rate")) {
-        mMeta.put(AUDIO_BIT_RATE, value);
-      } else if (key.equals("video_bit_rate")) {
-        mMeta.put(VIDEO_BIT_RATE, value);
-      } else if (key.equals("audio_sample_rate")) {
-        mMeta.put(AUDIO_SAMPLE_RATE, value);
-      } else if (key.equals("video_frame_rate")) {
-        mMeta.put(VIDEO_FRAME_RATE, value);
-      } else if (key.equals("format")) {
-        mMeta.put(MIME_TYPE, value);
-      } else if (key.equals("audio_codec")) {
-        mMeta.put(AUDIO_CODEC, value);
-      } else if (key.equals("video_codec")) {
-        mMeta.put(VIDEO_CODEC, value);
-      } else if (key.equals("video_height")) {
-        mMeta.put(VIDEO_HEIGHT, value);
-      } else if (key.equals("video_width")) {
-        mMeta.put(VIDEO_WIDTH, value);
-      } else if (key.equals("num_tracks")) {
-        mMeta.put(NUM_TRACKS, value);
-      } else if (key.equals("cap_pause")) {
-        mMeta.put(PAUSE_AVAILABLE, value);
-      } else if (key.equals("cap_seek")) {
-        mMeta.put(SEEK_AVAILABLE, value);
-      }
+    mMeta.clear();
+    mStrings.clear();
+    for (Map.Entry<byte[], byte[]> entry : meta.entrySet()) {
+      int id = lookup(entry.getKey());
+      if (id != ANY)
+        mMeta.put(id, entry.getValue());
     }
 
-    if (BuildConfig.DEBUG) {
-      android.util.Log.i("Vitamio[Metadata]", "title:\t\t" + getString(TITLE));
-      android.util.Log.i("Vitamio[Metadata]", "comment:\t\t" + getString(COMMENT));
-      android.util.Log.i("Vitamio[Metadata]", "copyright:\t\t" + getString(COPYRIGHT));
-      android.util.Log.i("Vitamio[Metadata]", "album:\t\t" + getString(ALBUM));
-      android.util.Log.i("Vitamio[Metadata]", "artist:\t\t" + getString(ARTIST));
-      android.util.Log.i("Vitamio[Metadata]", "composer:\t\t" + getString(COMPOSER));
-      android.util.Log.i("Vitamio[Metadata]", "genre:\t\t" + getString(GENRE));
-      android.util.Log.i("Vitamio[Metadata]", "date:\t\t" + getString(DATE));
-      android.util.Log.i("Vitamio[Metadata]", "duration:\t\t" + getLong(DURATION));
-      android.util.Log.i("Vitamio[Metadata]", "length:\t\t" + getLong(LENGTH));
-      android.util.Log.i("Vitamio[Metadata]", "bit_rate:\t\t" + getInt(BIT_RATE));
-      android.util.Log.i("Vitamio[Metadata]", "audio_bit_rate:\t" + getInt(AUDIO_BIT_RATE));
-      android.util.Log.i("Vitamio[Metadata]", "video_bit_rate:\t" + getInt(VIDEO_BIT_RATE));
-      android.util.Log.i("Vitamio[Metadata]", "audio_sample_rate:\t" + getInt(AUDIO_SAMPLE_RATE));
-      android.util.Log.i("Vitamio[Metadata]", "video_frame_rate:\t" + getDouble(VIDEO_FRAME_RATE));
-      android.util.Log.i("Vitamio[Metadata]", "format:\t\t" + getString(MIME_TYPE));
-      android.util.Log.i("Vitamio[Metadata]", "audio_codec:\t" + getString(AUDIO_CODEC));
-      android.util.Log.i("Vitamio[Metadata]", "video_codec:\t" + getString(VIDEO_CODEC));
-      android.util.Log.i("Vitamio[Metadata]", "video_height:\t" + getInt(VIDEO_HEIGHT));
-      android.util.Log.i("Vitamio[Metadata]", "video_width:\t" + getInt(VIDEO_WIDTH));
-      android.util.Log.i("Vitamio[Metadata]", "num_tracks:\t\t" + getInt(NUM_TRACKS));
-      android.util.Log.i("Vitamio[Metadata]", "cap_pause:\t\t" + getBoolean(PAUSE_AVAILABLE));
-      android.util.Log.i("Vitamio[Metadata]", "cap_seek:\t\t" + getBoolean(SEEK_AVAILABLE));
-    }
+    if (BuildConfig.DEBUG)
+      android.util.Log.i("Vitamio[Metadata]", "parsed " + mMeta.size() + " of " + meta.size() + " keys");
 
     return true;
   }
@@ -165,15 +156,16 @@ public class Metadata {
   }
 
   public String getString(final int key) {
-    byte[] value = mMeta.get(key);
-    if (value == null) {
-      return null;
-    }
-    try {
-      return new String(value, mEncoding);
-    } catch (UnsupportedEncodingException e) {
-      return new String(value);
+    String string = mStrings.get(key);
+    if (string == null) {
+      byte[] value = mMeta.get(key);
+      if (value == null) {
+        return null;
+      }
+      string = TextDecoder.decode(value, mEncoding);
+      mStrings.put(key, string);
     }
+    return string;
   }
 
   public int getInt(final int key) {
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import io.vov.vitamio.utils.IOUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the keyframe positions of the first video track of a MP4, MOV or 3GP
+ * file from its sync sample table ('stss') and time to sample table ('stts'),
+ * without decoding anything. Other containers, fragmented files and tracks
+ * whose samples are all keyframes yield null.
+ */
+final class Mp4KeyFrames {
+  /**
+   * The most keyframes kept per file, longer tables are thinned out evenly.
+   */
+  static final int MAX_KEY_FRAMES = 2048;
+  private static final int MAX_TABLE_SIZE = 16 * 1024 * 1024;
+  private static final String[] FIRST_BOXES = {"ftyp", "moov", "mdat", "free", "skip", "wide", "pnot"};
+
+  private Mp4KeyFrames() {
+  }
+
+  /**
+   * @return the keyframe positions in milliseconds in increasing order, or
+   *         null if they are unknown
+   */
+  static long[] read(String path) {
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(path, "r");
+      if (!isMp4(file))
+        return null;
+      long[] moov = findBox(file, 0, file.length(), "moov");
+      if (moov == null)
+        return null;
+      long pos = moov[0];
+      long[] trak;
+      while ((trak = findBox(file, pos, moov[1], "trak")) != null) {
+        long[] keyFrames = readTrack(file, trak[0], trak[1]);
+        if (keyFrames != null)
+          return keyFrames;
+        pos = trak[1];
+      }
+    } catch (IOException e) {
+      Log.e("Mp4KeyFrames " + path, e);
+    } finally {
+      IOUtils.closeSilently(file);
+    }
+    return null;
+  }
+
+  private static boolean isMp4(RandomAccessFile file) throws IOException {
+    if (file.length() < 8)
+      return false;
+    file.seek(4);
+    String type = readType(file);
+    for (String first : FIRST_BOXES) {
+      if (first.equals(type))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the keyframes of a video track, or null for other tracks
+   */
+  private static long[] readTrack(RandomAccessFile file, long start, long end) throws IOException {
+    long[] mdia = findBox(file, start, end, "mdia");
+    if (mdia == null)
+      return null;
+    ByteBuffer hdlr = readBox(file, mdia, "hdlr");
+    if (hdlr == null || hdlr.remaining() < 12 || hdlr.getInt(8) != fourCC("vide"))
+      return null;
+    ByteBuffer mdhd = readBox(file, mdia, "mdhd");
+    if (mdhd == null || mdhd.remaining() < 24)
+      return null;
+    long timescale = (mdhd.get(0) == 1 ? mdhd.getInt(20) : mdhd.getInt(12)) & 0xffffffffL;
+    long[] minf = findBox(file, mdia[0], mdia[1], "minf");
+    long[] stbl = minf == null ? null : findBox(file, minf[0], minf[1], "stbl");
+    if (stbl == null || timescale == 0)
+      return null;
+    ByteBuffer stss = readBox(file, stbl, "stss");
+    ByteBuffer stts = readBox(file, stbl, "stts");
+    if (stss == null || stts == null || stss.remaining() < 8 || stts.remaining() < 8)
+      return null;
+
+    int count = Math.min(stss.getInt(4), (stss.remaining() - 8) / 4);
+    if (count <= 0)
+      return null;
+    int step = (count + MAX_KEY_FRAMES - 1) / MAX_KEY_FRAMES;
+    long[] keyFrames = new long[(count + step - 1) / step];
+    int entries = Math.min(stts.getInt(4), (stts.remaining() - 8) / 8);
+    int entry = 0;
+    long sample = 1;
+    long entryEnd = 1;
+    long delta = 0;
+    long time = 0;
+    int found = 0;
+    for (int i = 0; i < count; i += step) {
+      long target = stss.getInt(8 + i * 4) & 0xffffffffL;
+      while (target >= entryEnd) {
+        time += (entryEnd - sample) * delta;
+        sample = entryEnd;
+        if (entry >= entries)
+          return found > 0 ? trim(keyFrames, found) : null;
+        entryEnd = sample + (stts.getInt(8 + entry * 8) & 0xffffffffL);
+        delta = stts.getInt(12 + entry * 8) & 0xffffffffL;
+        entry++;
+      }
+      if (target < sample)
+        continue;
+      time += (target - sample) * delta;
+      sample = target;
+      long ms = time * 1000 / timescale;
+      if (found == 0 || ms > keyFrames[found - 1])
+        keyFrames[found++] = ms;
+    }
+    return found > 0 ? trim(keyFrames, found) : null;
+  }
+
+  private static long[] trim(long[] values, int length) {
+    if (length == values.length)
+      return values;
+    long[] trimmed = new long[length];
+    System.arraycopy(values, 0, trimmed, 0, length);
+    return trimmed;
+  }
+
+  /**
+   * @return the payload of the first child of container with the given type,
+   *         or null if there is none or it is too large
+   */
+  private static ByteBuffer readBox(RandomAccessFile file, long[] container, String type) throws IOException {
+    long[] box = findBox(file, container[0], container[1], type);
+    if (box == null || box[1] - box[0] > MAX_TABLE_SIZE)
+      return null;
+    byte[] payload = new byte[(int) (box[1] - box[0])];
+    file.seek(box[0]);
+    file.readFully(payload);
+    return ByteBuffer.wrap(payload);
+  }
+
+  /**
+   * @return the start and end of the payload of the first box of the given
+   *         type between from and to, or null
+   */
+  private static long[] findBox(RandomAccessFile file, long from, long to, String type) throws IOException {
+    long pos = from;
+    while (pos + 8 <= to) {
+      file.seek(pos);
+      long size = file.readInt() & 0xffffffffL;
+      String boxType = readType(file);
+      long header = 8;
+      if (size == 1) {
+        if (pos + 16 > to)
+          return null;
+        size = file.readLong();
+        header = 16;
+      } else if (size == 0) {
+        size = to - pos;
+      }
+      if (size < header || pos + size > to)
+        return null;
+      if (boxType.equals(type))
+        return new long[]{pos + header, pos + size};
+      pos += size;
+    }
+    return null;
+  }
+
+  private static String readType(RandomAccessFile file) throws IOException {
+    byte[] type = new byte[4];
+    file.readFully(type);
+    return new String(type, "ISO-8859-1");
+  }
+
+  private static int fourCC(String type) {
+    return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+  }
+}
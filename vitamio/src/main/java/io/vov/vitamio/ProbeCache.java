@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.content.Context;
+
+import io.vov.vitamio.MediaMetadataRetriever.MetadataMap;
+import io.vov.vitamio.utils.FileUtils;
+import io.vov.vitamio.utils.IOUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers what probing a media file found (duration, dimensions, codecs,
+ * tags, tracks and keyframe hints) so {@link MediaScanner} and
+ * {@link MediaMetadataRetriever} users don't open the same file again.
+ * <p/>
+ * Entries are keyed by canonical path, size and last-modified time, so a
+ * changed file is simply a miss. They are appended to a compact binary file
+ * which is memory-mapped for lookups; an offset index is rebuilt by scanning
+ * the records on open, a truncated last record is dropped, and the file is
+ * compacted when more than half of it is stale.
+ */
+public class ProbeCache {
+  private static final String FILE_NAME = "vitamio_probe.cache";
+  private static final int MAGIC = 0x56505242; // VPRB
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int MAX_STRING = Short.MAX_VALUE;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static ProbeCache sInstance;
+
+  private final File mFile;
+  private RandomAccessFile mRaf;
+  private MappedByteBuffer mMapped;
+  private final HashMap<Long, Integer> mOffsets = new HashMap<Long, Integer>();
+  private int mEnd;
+  private int mStale;
+
+  /**
+   * The probed properties of one file, any of them may be unknown: 0 for
+   * numbers, null for strings.
+   */
+  public static class Entry {
+    private long mDuration;
+    private int mWidth;
+    private int mHeight;
+    private int mNumTracks;
+    private String mMimeType;
+    private String mVideoCodec;
+    private String mAudioCodec;
+    private String mTitle;
+    private String mArtist;
+    private String mAlbum;
+    private String mLanguage;
+    private String mTracks;
+    private long[] mKeyFrames = new long[0];
+
+    public long getDuration() {
+      return mDuration;
+    }
+
+    public void setDuration(long duration) {
+      mDuration = duration;
+    }
+
+    public int getWidth() {
+      return mWidth;
+    }
+
+    public int getHeight() {
+      return mHeight;
+    }
+
+    public void setVideoSize(int width, int height) {
+      mWidth = width;
+      mHeight = height;
+    }
+
+    public int getNumTracks() {
+      return mNumTracks;
+    }
+
+    public void setNumTracks(int numTracks) {
+      mNumTracks = numTracks;
+    }
+
+    public String getMimeType() {
+      return mMimeType;
+    }
+
+    public void setMimeType(String mimeType) {
+      mMimeType = mimeType;
+    }
+
+    public String getVideoCodec() {
+      return mVideoCodec;
+    }
+
+    public void setVideoCodec(String videoCodec) {
+      mVideoCodec = videoCodec;
+    }
+
+    public String getAudioCodec() {
+      return mAudioCodec;
+    }
+
+    public void setAudioCodec(String audioCodec) {
+      mAudioCodec = audioCodec;
+    }
+
+    public String getTitle() {
+      return mTitle;
+    }
+
+    public void setTitle(String title) {
+      mTitle = title;
+    }
+
+    public String getArtist() {
+      return mArtist;
+    }
+
+    public void setArtist(String artist) {
+      mArtist = artist;
+    }
+
+    public String getAlbum() {
+      return mAlbum;
+    }
+
+    public void setAlbum(String album) {
+      mAlbum = album;
+    }
+
+    public String getLanguage() {
+      return mLanguage;
+    }
+
+    public void setLanguage(String language) {
+      mLanguage = language;
+    }
+
+    /**
+     * @return a free form description of the tracks, e.g. their languages
+     */
+    public String getTracks() {
+      return mTracks;
+    }
+
+    public void setTracks(String tracks) {
+      mTracks = tracks;
+    }
+
+    /**
+     * @return the known keyframe positions in milliseconds, may be empty. The
+     *         scanner reads them from the index of MP4, MOV and 3GP files
+     */
+    public long[] getKeyFrames() {
+      return mKeyFrames;
+    }
+
+    public void setKeyFrames(long[] keyFrames) {
+      mKeyFrames = keyFrames == null ? new long[0] : keyFrames;
+    }
+  }
+
+  public static synchronized ProbeCache getInstance(Context ctx) {
+    if (sInstance == null)
+      sInstance = new ProbeCache(new File(ctx.getApplicationContext().getCacheDir(), FILE_NAME));
+    return sInstance;
+  }
+
+  public ProbeCache(File file) {
+    mFile = file;
+  }
+
+  /**
+   * Probe path with a {@link MediaMetadataRetriever} unless the cache already
+   * knows it.
+   *
+   * @return the probed properties, or null if the file can't be read
+   */
+  public static Entry probe(Context ctx, String path) {
+    ProbeCache cache = getInstance(ctx);
+    Entry entry = cache.get(path);
+    if (entry != null)
+      return entry;
+
+    MediaMetadataRetriever retriever = null;
+    try {
+      retriever = new MediaMetadataRetriever(ctx);
+      retriever.setDataSource(path);
+      MetadataMap meta = retriever.extractAll(new MetadataMap(MediaMetadataRetriever.METADATA_KEY_DURATION, MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH, MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT, MediaMetadataRetriever.METADATA_KEY_NUM_TRACKS, MediaMetadataRetriever.METADATA_KEY_VIDEO_CODEC, MediaMetadataRetriever.METADATA_KEY_AUDIO_CODEC, MediaMetadataRetriever.METADATA_KEY_TITLE, MediaMetadataRetriever.METADATA_KEY_ARTIST, MediaMetadataRetriever.METADATA_KEY_ALBUM, MediaMetadataRetriever.METADATA_KEY_LANGUAGE));
+      entry = new Entry();
+      entry.setDuration(meta.getLong(MediaMetadataRetriever.METADATA_KEY_DURATION, 0));
+      entry.setVideoSize(meta.getInt(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH, 0), meta.getInt(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT, 0));
+      entry.setNumTracks(meta.getInt(MediaMetadataRetriever.METADATA_KEY_NUM_TRACKS, 0));
+      entry.setVideoCodec(meta.get(MediaMetadataRetriever.METADATA_KEY_VIDEO_CODEC));
+      entry.setAudioCodec(meta.get(MediaMetadataRetriever.METADATA_KEY_AUDIO_CODEC));
+      entry.setTitle(meta.get(MediaMetadataRetriever.METADATA_KEY_TITLE));
+      entry.setArtist(meta.get(MediaMetadataRetriever.METADATA_KEY_ARTIST));
+      entry.setAlbum(meta.get(MediaMetadataRetriever.METADATA_KEY_ALBUM));
+      entry.setLanguage(meta.get(MediaMetadataRetriever.METADATA_KEY_LANGUAGE));
+      MediaFile.MediaFileType type = MediaFile.getFileType(path);
+      if (type != null)
+        entry.setMimeType(type.mimeType);
+      cache.put(path, entry);
+      return entry;
+    } catch (Exception e) {
+      Log.e("Unable to probe " + path, e);
+      return null;
+    } finally {
+      if (retriever != null)
+        retriever.release();
+    }
+  }
+
+  /**
+   * @return the cached properties of path, or null if unknown or the file
+   *         changed since it was cached
+   */
+  public synchronized Entry get(String path) {
+    File file = new File(path);
+    if (!file.isFile() || !open())
+      return null;
+    String canonical = FileUtils.getCanonical(file);
+    Integer offset = mOffsets.get(hash(canonical));
+    if (offset == null)
+      return null;
+    try {
+      // Records are only appended, so one starting inside the mapping ends
+      // inside it too, and only lookups of records put since need a remap.
+      if (mMapped == null || offset >= mMapped.capacity())
+        mMapped = mRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mEnd);
+      ByteBuffer record = mMapped.duplicate();
+      record.position(offset + 4 + 8);
+      long size = record.getLong();
+      long lastModified = record.getLong();
+      if (size != file.length() || lastModified != file.lastModified() || !canonical.equals(readString(record)))
+        return null;
+      return readEntry(record);
+    } catch (Exception e) {
+      Log.e("ProbeCache.get", e);
+      return null;
+    }
+  }
+
+  /**
+   * Remember the properties of path for its current size and modification
+   * time.
+   */
+  public synchronized void put(String path, Entry entry) {
+    File file = new File(path);
+    if (!file.isFile() || !open())
+      return;
+    String canonical = FileUtils.getCanonical(file);
+    long hash = hash(canonical);
+    ByteBuffer record = encode(hash, file.length(), file.lastModified(), canonical, entry);
+    try {
+      mRaf.seek(mEnd);
+      mRaf.write(record.array(), 0, record.limit());
+      if (mOffsets.put(hash, mEnd) != null)
+        mStale++;
+      mEnd += record.limit();
+    } catch (IOException e) {
+      Log.e("ProbeCache.put", e);
+      close();
+    }
+  }
+
+  public synchronized void close() {
+    IOUtils.closeSilently(mRaf);
+    mRaf = null;
+    mMapped = null;
+    mOffsets.clear();
+  }
+
+  private boolean open() {
+    if (mRaf != null)
+      return true;
+    try {
+      mRaf = new RandomAccessFile(mFile, "rw");
+      if (mRaf.length() < HEADER_SIZE || mRaf.readInt() != MAGIC || mRaf.readInt() != VERSION) {
+        mRaf.setLength(0);
+        mRaf.writeInt(MAGIC);
+        mRaf.writeInt(VERSION);
+      }
+      loadIndex();
+      if (mStale > mOffsets.size())
+        compact();
+      return true;
+    } catch (IOException e) {
+      Log.e("Unable to open " + mFile, e);
+      close();
+      return false;
+    }
+  }
+
+  private void loadIndex() throws IOException {
+    mOffsets.clear();
+    mStale = 0;
+    long length = mRaf.length();
+    ByteBuffer buffer = mRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    int pos = HEADER_SIZE;
+    while (pos + 4 + 8 <= length) {
+      int recordLength = buffer.getInt(pos);
+      if (recordLength < 8 || pos + 4L + recordLength > length)
+        break;
+      if (mOffsets.put(buffer.getLong(pos + 4), pos) != null)
+        mStale++;
+      pos += 4 + recordLength;
+    }
+    if (pos < length) {
+      Log.d("ProbeCache: dropping %d trailing bytes", length - pos);
+      mRaf.setLength(pos);
+    }
+    mEnd = pos;
+    mMapped = null;
+  }
+
+  private void compact() throws IOException {
+    File tmp = new File(mFile.getPath() + ".tmp");
+    RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+    try {
+      out.setLength(0);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      ByteBuffer buffer = mRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mEnd);
+      for (Map.Entry<Long, Integer> offset : mOffsets.entrySet()) {
+        int pos = offset.getValue();
+        int length = 4 + buffer.getInt(pos);
+        byte[] record = new byte[length];
+        buffer.position(pos);
+        buffer.get(record);
+        out.write(record);
+      }
+    } finally {
+      out.close();
+    }
+    mRaf.close();
+    if (!tmp.renameTo(mFile))
+      throw new IOException("Unable to replace " + mFile);
+    mRaf = new RandomAccessFile(mFile, "rw");
+    loadIndex();
+  }
+
+  private static long hash(String path) {
+    // 64-bit FNV-1a
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < path.length(); i++) {
+      h ^= path.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  private static ByteBuffer encode(long hash, long size, long lastModified, String path, Entry entry) {
+    byte[][] strings = {bytes(path), bytes(entry.mMimeType), bytes(entry.mVideoCodec), bytes(entry.mAudioCodec), bytes(entry.mTitle), bytes(entry.mArtist), bytes(entry.mAlbum), bytes(entry.mLanguage), bytes(entry.mTracks)};
+    int keyFrames = Math.min(entry.mKeyFrames.length, MAX_STRING);
+    int length = 8 + 8 + 8 + 8 + 4 + 4 + 4 + 2 + keyFrames * 8;
+    for (byte[] s : strings)
+      length += 2 + (s == null ? 0 : s.length);
+
+    ByteBuffer record = ByteBuffer.allocate(4 + length);
+    record.putInt(length);
+    record.putLong(hash);
+    record.putLong(size);
+    record.putLong(lastModified);
+    writeString(record, strings[0]);
+    record.putLong(entry.mDuration);
+    record.putInt(entry.mWidth);
+    record.putInt(entry.mHeight);
+    record.putInt(entry.mNumTracks);
+    for (int i = 1; i < strings.length; i++)
+      writeString(record, strings[i]);
+    record.putShort((short) keyFrames);
+    for (int i = 0; i < keyFrames; i++)
+      record.putLong(entry.mKeyFrames[i]);
+    record.flip();
+    return record;
+  }
+
+  private static Entry readEntry(ByteBuffer record) {
+    Entry entry = new Entry();
+    entry.mDuration = record.getLong();
+    entry.mWidth = record.getInt();
+    entry.mHeight = record.getInt();
+    entry.mNumTracks = record.getInt();
+    entry.mMimeType = readString(record);
+    entry.mVideoCodec = readString(record);
+    entry.mAudioCodec = readString(record);
+    entry.mTitle = readString(record);
+    entry.mArtist = readString(record);
+    entry.mAlbum = readString(record);
+    entry.mLanguage = readString(record);
+    entry.mTracks = readString(record);
+    long[] keyFrames = new long[record.getShort() & 0xffff];
+    for (int i = 0; i < keyFrames.length; i++)
+      keyFrames[i] = record.getLong();
+    entry.mKeyFrames = keyFrames;
+    return entry;
+  }
+
+  private static byte[] bytes(String s) {
+    if (s == null)
+      return null;
+    byte[] bytes = s.getBytes(UTF_8);
+    if (bytes.length >= MAX_STRING)
+      return null;
+    return bytes;
+  }
+
+  private static void writeString(ByteBuffer buffer, byte[] s) {
+    if (s == null) {
+      buffer.putShort((short) -1);
+    } else {
+      buffer.putShort((short) s.length);
+      buffer.put(s);
+    }
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getShort();
+    if (length < 0)
+      return null;
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
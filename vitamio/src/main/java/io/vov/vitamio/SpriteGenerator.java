@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Environment;
+
+import io.vov.vitamio.provider.MediaStore.Video;
+import io.vov.vitamio.utils.Crypto;
+import io.vov.vitamio.utils.FileUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Builds {@link SpriteSheet}s of seek previews. Frames are requested in
+ * increasing time order from a single retriever, so the file is opened once,
+ * and each frame is scaled straight into its tile and recycled. Every frame is
+ * still a seek, when {@link ProbeCache} knows the keyframes of the file, tiles
+ * are moved to the closest keyframe so each seek decodes a single frame
+ * instead of everything from the previous keyframe.
+ * <p/>
+ * Sheets are saved next to the thumbnail store and reused while the file's
+ * size and modification time don't change, the least recently used ones are
+ * deleted once they take more than {@link #MAX_CACHE_SIZE} bytes.
+ * <p/>
+ * Generating takes a while, call it off the main thread.
+ */
+public class SpriteGenerator {
+  public static final int DEFAULT_TILE_WIDTH = 160;
+  public static final int DEFAULT_TILE_HEIGHT = 90;
+  public static final int COLUMNS = 10;
+  public static final int ROWS = 10;
+  public static final int MAX_TILES = 200;
+  public static final long MIN_INTERVAL = 2000;
+  public static final long MAX_CACHE_SIZE = 32 * 1024 * 1024;
+  private static final String SPRITES_DIRECTORY = "sprites";
+
+  /**
+   * @return the saved sprite sheet of path, generating and saving it first if
+   *         needed, or null if the file can't be read
+   */
+  public static SpriteSheet getSpriteSheet(Context ctx, String path) {
+    String key = getCacheKey(path);
+    File base = key == null ? null : getCacheFile(key);
+    SpriteSheet sheet = base == null ? null : SpriteSheet.load(base, key);
+    if (sheet != null)
+      return sheet;
+
+    sheet = generate(ctx, path, 0, DEFAULT_TILE_WIDTH, DEFAULT_TILE_HEIGHT);
+    if (sheet != null && base != null) {
+      try {
+        sheet.save(base, key);
+      } catch (IOException e) {
+        Log.e("Unable to save sprite sheet of %s: %s", path, e.getMessage());
+        SpriteSheet.delete(base);
+      }
+      trimCache(base.getParentFile());
+    }
+    return sheet;
+  }
+
+  /**
+   * @return the canonical path, size and modification time of path, or null
+   *         if path isn't a local file
+   */
+  private static String getCacheKey(String path) {
+    File file = new File(path);
+    if (!file.isFile())
+      return null;
+    return FileUtils.getCanonical(file) + ":" + file.length() + ":" + file.lastModified();
+  }
+
+  private static File getCacheFile(String key) {
+    String name = Crypto.md5(key);
+    if (name.length() == 0)
+      name = Integer.toHexString(key.hashCode()) + Integer.toHexString(key.length());
+    File dir = new File(Environment.getExternalStorageDirectory(), Video.Thumbnails.THUMBNAILS_DIRECTORY + "/" + SPRITES_DIRECTORY);
+    return new File(dir, name);
+  }
+
+  /**
+   * Delete the least recently used sheet sets until dir holds at most
+   * {@link #MAX_CACHE_SIZE} bytes.
+   */
+  private static void trimCache(File dir) {
+    File[] files = dir == null ? null : dir.listFiles();
+    if (files == null)
+      return;
+    // base name -> {size, last use}
+    final HashMap<String, long[]> sets = new HashMap<String, long[]>();
+    long total = 0;
+    for (File file : files) {
+      String name = file.getName();
+      int end = name.length();
+      for (int i = 0; i < name.length(); i++) {
+        if (name.charAt(i) == '.' || name.charAt(i) == '-') {
+          end = i;
+          break;
+        }
+      }
+      String base = name.substring(0, end);
+      long[] set = sets.get(base);
+      if (set == null) {
+        set = new long[2];
+        sets.put(base, set);
+      }
+      set[0] += file.length();
+      set[1] = Math.max(set[1], file.lastModified());
+      total += file.length();
+    }
+    if (total <= MAX_CACHE_SIZE)
+      return;
+
+    ArrayList<String> bases = new ArrayList<String>(sets.keySet());
+    Collections.sort(bases, new Comparator<String>() {
+      @Override
+      public int compare(String lhs, String rhs) {
+        long l = sets.get(lhs)[1], r = sets.get(rhs)[1];
+        return l < r ? -1 : (l == r ? 0 : 1);
+      }
+    });
+    for (String base : bases) {
+      if (total <= MAX_CACHE_SIZE)
+        break;
+      SpriteSheet.delete(new File(dir, base));
+      total -= sets.get(base)[0];
+    }
+  }
+
+  /**
+   * Grab frames of path every intervalMs into tiles.
+   *
+   * @param intervalMs the distance between tiles, or 0 to spread at most
+   *                   {@link #MAX_TILES} tiles, at least
+   *                   {@link #MIN_INTERVAL} apart, over the whole duration
+   * @return the sprite sheet, or null if no frame could be retrieved
+   */
+  public static SpriteSheet generate(Context ctx, String path, long intervalMs, int tileWidth, int tileHeight) {
+    MediaMetadataRetriever retriever = null;
+    Bitmap[] sheets = null;
+    try {
+      retriever = new MediaMetadataRetriever(ctx);
+      retriever.setDataSource(path);
+      ProbeCache.Entry probe = ProbeCache.getInstance(ctx).get(path);
+      if (probe != null)
+        retriever.setKeyFrames(probe.getKeyFrames());
+      long duration = parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+      if (duration <= 0)
+        return null;
+      if (intervalMs <= 0)
+        intervalMs = Math.max(MIN_INTERVAL, (duration + MAX_TILES - 1) / MAX_TILES);
+      int count = (int) Math.min(Integer.MAX_VALUE, (duration + intervalMs - 1) / intervalMs);
+      int perSheet = COLUMNS * ROWS;
+      sheets = new Bitmap[(count + perSheet - 1) / perSheet];
+      long[] times = new long[count];
+      Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+      Rect dst = new Rect();
+      int tiles = 0;
+      for (int i = 0; i < count; i++) {
+        long time = retriever.getSyncTime(i * intervalMs * 1000, MediaMetadataRetriever.OPTION_CLOSEST_SYNC) / 1000;
+        if (tiles > 0 && time <= times[tiles - 1])
+          continue;
+        Bitmap frame = retriever.getFrameAtTime(time * 1000);
+        if (frame == null)
+          continue;
+        int sheet = tiles / perSheet;
+        if (sheets[sheet] == null)
+          sheets[sheet] = Bitmap.createBitmap(COLUMNS * tileWidth, ROWS * tileHeight, Bitmap.Config.RGB_565);
+        int tile = tiles % perSheet;
+        int left = (tile % COLUMNS) * tileWidth;
+        int top = (tile / COLUMNS) * tileHeight;
+        dst.set(left, top, left + tileWidth, top + tileHeight);
+        ThumbnailUtils.drawCenterCrop(new Canvas(sheets[sheet]), frame, dst, paint);
+        frame.recycle();
+        times[tiles++] = time;
+      }
+      if (tiles == 0)
+        return null;
+
+      Bitmap[] used = Arrays.copyOf(sheets, (tiles + perSheet - 1) / perSheet);
+      sheets = null;
+      return new SpriteSheet(tileWidth, tileHeight, COLUMNS, ROWS, Arrays.copyOf(times, tiles), used);
+    } catch (Exception e) {
+      Log.e("Unable to generate sprite sheet of " + path, e);
+      return null;
+    } finally {
+      if (sheets != null) {
+        for (Bitmap sheet : sheets) {
+          if (sheet != null)
+            sheet.recycle();
+        }
+      }
+      if (retriever != null)
+        retriever.release();
+    }
+  }
+
+  private static long parseLong(String value) {
+    try {
+      return value == null ? 0 : Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import io.vov.vitamio.utils.IOUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Seek preview images of a video: small frames taken at regular intervals,
+ * tiled into one or more sheet bitmaps, plus the time of every tile. Created
+ * by {@link SpriteGenerator} and shown by
+ * {@link io.vov.vitamio.widget.MediaController#setSpriteSheet(SpriteSheet)}.
+ * <p/>
+ * On disk a sheet set is an index file <code>name.idx</code> and one JPEG per
+ * sheet, <code>name-0.jpg</code>, <code>name-1.jpg</code>... The index
+ * records the key the set was saved under, so a set found under a colliding
+ * name is ignored.
+ */
+public class SpriteSheet {
+  private static final int MAGIC = 0x56535052; // VSPR
+  private static final int VERSION = 2;
+  private static final int JPEG_QUALITY = 80;
+
+  private final int mTileWidth;
+  private final int mTileHeight;
+  private final int mColumns;
+  private final int mRows;
+  private final long[] mTimes;
+  private final Bitmap[] mSheets;
+
+  SpriteSheet(int tileWidth, int tileHeight, int columns, int rows, long[] times, Bitmap[] sheets) {
+    mTileWidth = tileWidth;
+    mTileHeight = tileHeight;
+    mColumns = columns;
+    mRows = rows;
+    mTimes = times;
+    mSheets = sheets;
+  }
+
+  public int getTileWidth() {
+    return mTileWidth;
+  }
+
+  public int getTileHeight() {
+    return mTileHeight;
+  }
+
+  public int getTileCount() {
+    return mTimes.length;
+  }
+
+  /**
+   * @return the position of tile index in milliseconds
+   */
+  public long getTime(int index) {
+    return mTimes[index];
+  }
+
+  /**
+   * @return the tile showing timeMs, i.e. the last one taken at or before it,
+   *         or -1 if there are no tiles
+   */
+  public int indexOf(long timeMs) {
+    if (mTimes.length == 0)
+      return -1;
+    int index = Arrays.binarySearch(mTimes, timeMs);
+    if (index < 0)
+      index = Math.max(0, -index - 2);
+    return index;
+  }
+
+  /**
+   * Draw tile index scaled into dst.
+   */
+  public void draw(Canvas canvas, int index, Rect dst, Paint paint) {
+    int perSheet = mColumns * mRows;
+    Bitmap sheet = mSheets[index / perSheet];
+    int tile = index % perSheet;
+    int left = (tile % mColumns) * mTileWidth;
+    int top = (tile / mColumns) * mTileHeight;
+    canvas.drawBitmap(sheet, new Rect(left, top, left + mTileWidth, top + mTileHeight), dst, paint);
+  }
+
+  public void recycle() {
+    for (Bitmap sheet : mSheets)
+      sheet.recycle();
+  }
+
+  /**
+   * @param key identifies the content, {@link #load(File, String)} ignores the
+   *            set unless given the same key
+   */
+  public void save(File base, String key) throws IOException {
+    File dir = base.getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Unable to create " + dir);
+
+    for (int i = 0; i < mSheets.length; i++) {
+      OutputStream out = null;
+      try {
+        out = new BufferedOutputStream(new FileOutputStream(sheetFile(base, i)));
+        if (!mSheets[i].compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out))
+          throw new IOException("Unable to compress sprite sheet " + i);
+      } finally {
+        IOUtils.closeSilently(out);
+      }
+    }
+
+    // The index goes last, a sheet set without one is ignored by load().
+    File tmp = tmpFile(base);
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(key);
+      out.writeInt(mTileWidth);
+      out.writeInt(mTileHeight);
+      out.writeInt(mColumns);
+      out.writeInt(mRows);
+      out.writeInt(mSheets.length);
+      out.writeInt(mTimes.length);
+      for (long time : mTimes)
+        out.writeLong(time);
+    } finally {
+      IOUtils.closeSilently(out);
+    }
+    if (!tmp.renameTo(indexFile(base)))
+      throw new IOException("Unable to write " + indexFile(base));
+  }
+
+  /**
+   * @return the sprite sheet saved at base under key, or null if there is
+   *         none or it can't be read
+   */
+  public static SpriteSheet load(File base, String key) {
+    File index = indexFile(base);
+    if (!index.isFile())
+      return null;
+
+    DataInputStream in = null;
+    Bitmap[] sheets = null;
+    try {
+      in = new DataInputStream(new FileInputStream(index));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(key))
+        return null;
+      int tileWidth = in.readInt();
+      int tileHeight = in.readInt();
+      int columns = in.readInt();
+      int rows = in.readInt();
+      int sheetCount = in.readInt();
+      int count = in.readInt();
+      if (tileWidth <= 0 || tileHeight <= 0 || columns <= 0 || rows <= 0 || count < 0 || sheetCount != (count + columns * rows - 1) / (columns * rows))
+        return null;
+      long[] times = new long[count];
+      for (int i = 0; i < count; i++)
+        times[i] = in.readLong();
+
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inPreferredConfig = Bitmap.Config.RGB_565;
+      sheets = new Bitmap[sheetCount];
+      for (int i = 0; i < sheetCount; i++) {
+        sheets[i] = BitmapFactory.decodeFile(sheetFile(base, i).getPath(), options);
+        if (sheets[i] == null || sheets[i].getWidth() < columns * tileWidth || sheets[i].getHeight() < rows * tileHeight)
+          throw new IOException("Bad sprite sheet " + i);
+      }
+      index.setLastModified(System.currentTimeMillis());
+      return new SpriteSheet(tileWidth, tileHeight, columns, rows, times, sheets);
+    } catch (IOException e) {
+      Log.e("Unable to load sprite sheet %s: %s", base, e.getMessage());
+      if (sheets != null) {
+        for (Bitmap sheet : sheets) {
+          if (sheet != null)
+            sheet.recycle();
+        }
+      }
+      return null;
+    } finally {
+      IOUtils.closeSilently(in);
+    }
+  }
+
+  /**
+   * Delete a saved sprite sheet.
+   */
+  public static void delete(File base) {
+    indexFile(base).delete();
+    tmpFile(base).delete();
+    for (int i = 0; ; i++) {
+      if (!sheetFile(base, i).delete())
+        break;
+    }
+  }
+
+  private static File indexFile(File base) {
+    return new File(base.getPath() + ".idx");
+  }
+
+  private static File tmpFile(File base) {
+    return new File(base.getPath() + ".idx.tmp");
+  }
+
+  private static File sheetFile(File base, int index) {
+    return new File(base.getPath() + "-" + index + ".jpg");
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import io.vov.vitamio.provider.MediaStore.Video;
+import io.vov.vitamio.provider.ThumbnailCache;
+import io.vov.vitamio.utils.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates video thumbnails asynchronously on a small pool of background
+ * workers, one per CPU core. Pending requests are ordered by priority, and
+ * among equal priorities the most recent request goes first, which is what a
+ * scrolling grid wants. Each worker keeps one {@link MediaMetadataRetriever}
+ * open and reuses it for every file it handles.
+ * <p/>
+ * Results are delivered on the main thread.
+ * <p/>
+ * <pre>
+ * ThumbnailService.getInstance(ctx).request(id, path, Video.Thumbnails.MINI_KIND, ThumbnailService.PRIORITY_VISIBLE, listener);
+ * </pre>
+ */
+public class ThumbnailService {
+  public static final int PRIORITY_PREFETCH = 0;
+  public static final int PRIORITY_VISIBLE = 10;
+  private static final long KEEP_ALIVE_SECONDS = 30;
+  private static ThumbnailService sInstance;
+
+  private final Context mContext;
+  private final ThreadPoolExecutor mExecutor;
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final HashMap<String, Request> mPending = new HashMap<String, Request>();
+  private final AtomicLong mCounter = new AtomicLong();
+
+  public interface OnThumbnailListener {
+    /**
+     * Called on the main thread when a thumbnail is ready.
+     *
+     * @param bitmap the thumbnail, or null if it couldn't be created
+     */
+    public void onThumbnail(long origId, int kind, Bitmap bitmap);
+  }
+
+  private ThumbnailService(Context ctx) {
+    mContext = ctx.getApplicationContext();
+    int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Worker(r, "VitamioThumbnail-" + mCount.incrementAndGet());
+      }
+    });
+    mExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  public static synchronized ThumbnailService getInstance(Context ctx) {
+    if (sInstance == null)
+      sInstance = new ThumbnailService(ctx);
+    return sInstance;
+  }
+
+  /**
+   * Cancel the requests for origId if the service is running, used by
+   * {@link io.vov.vitamio.provider.MediaStore.Video.Thumbnails#cancelThumbnailRequest}.
+   */
+  public static void cancelRequests(long origId) {
+    ThumbnailService service;
+    synchronized (ThumbnailService.class) {
+      service = sInstance;
+    }
+    if (service != null)
+      service.cancel(origId);
+  }
+
+  /**
+   * Queue a thumbnail request. Requesting the same origId and kind again while
+   * it is still queued only updates its priority and listener.
+   *
+   * @param kind     {@link io.vov.vitamio.provider.MediaStore.Video.Thumbnails#MINI_KIND}
+   *                 or {@link io.vov.vitamio.provider.MediaStore.Video.Thumbnails#MICRO_KIND}
+   * @param priority higher values are served first, e.g. {@link #PRIORITY_VISIBLE}
+   *                 for items on screen and {@link #PRIORITY_PREFETCH} for the
+   *                 ones around them
+   */
+  public Request request(long origId, String path, int kind, int priority, OnThumbnailListener listener) {
+    String key = key(origId, kind);
+    synchronized (mPending) {
+      Request request = mPending.get(key);
+      if (request != null && request.mPath.equals(path)) {
+        request.mListener = listener;
+        if (!request.mStarted && mExecutor.remove(request)) {
+          request.mPriority = priority;
+          request.mSequence = mCounter.incrementAndGet();
+          mExecutor.execute(request);
+        }
+        return request;
+      }
+      if (request != null)
+        request.mCancelled = true;
+      request = new Request(origId, path, kind, priority, listener);
+      mPending.put(key, request);
+      mExecutor.execute(request);
+      return request;
+    }
+  }
+
+  /**
+   * Change the priority of a queued request, e.g. when it scrolls into view.
+   */
+  public void setPriority(long origId, int kind, int priority) {
+    synchronized (mPending) {
+      Request request = mPending.get(key(origId, kind));
+      if (request != null && !request.mStarted && mExecutor.remove(request)) {
+        request.mPriority = priority;
+        request.mSequence = mCounter.incrementAndGet();
+        mExecutor.execute(request);
+      }
+    }
+  }
+
+  /**
+   * Cancel all requests for origId. Queued ones are dropped, a running one
+   * finishes its current native call but its result is discarded.
+   */
+  public void cancel(long origId) {
+    synchronized (mPending) {
+      ArrayList<String> keys = new ArrayList<String>();
+      for (Request request : mPending.values()) {
+        if (request.mOrigId == origId)
+          keys.add(key(origId, request.mKind));
+      }
+      for (String key : keys)
+        mPending.remove(key).cancelLocked();
+    }
+  }
+
+  /**
+   * Cancel every pending request, e.g. when the grid showing them goes away.
+   */
+  public void cancelAll() {
+    synchronized (mPending) {
+      for (Request request : mPending.values())
+        request.cancelLocked();
+      mPending.clear();
+    }
+  }
+
+  private static String key(long origId, int kind) {
+    return origId + ":" + kind;
+  }
+
+  private void finish(final Request request, final Bitmap bitmap) {
+    synchronized (mPending) {
+      if (mPending.get(key(request.mOrigId, request.mKind)) == request)
+        mPending.remove(key(request.mOrigId, request.mKind));
+    }
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        OnThumbnailListener listener = request.mListener;
+        if (request.mCancelled || listener == null) {
+          ThumbnailCache.getInstance(mContext).release(bitmap);
+          return;
+        }
+        listener.onThumbnail(request.mOrigId, request.mKind, bitmap);
+      }
+    });
+  }
+
+  private Bitmap obtainTarget(int kind) {
+    ThumbnailCache cache = ThumbnailCache.getInstance(mContext);
+    if (kind == Video.Thumbnails.MICRO_KIND)
+      return cache.obtainBitmap(ThumbnailUtils.TARGET_SIZE_MICRO_THUMBNAIL_WIDTH, ThumbnailUtils.TARGET_SIZE_MICRO_THUMBNAIL_HEIGHT);
+    else if (kind == Video.Thumbnails.MINI_KIND)
+      return cache.obtainBitmap(ThumbnailUtils.TARGET_SIZE_MINI_THUMBNAIL_WIDTH, ThumbnailUtils.TARGET_SIZE_MINI_THUMBNAIL_HEIGHT);
+    return null;
+  }
+
+  public final class Request implements Runnable, Comparable<Request> {
+    private final long mOrigId;
+    private final String mPath;
+    private final int mKind;
+    private volatile OnThumbnailListener mListener;
+    private volatile boolean mCancelled;
+    private boolean mStarted;
+    private int mPriority;
+    private long mSequence;
+
+    private Request(long origId, String path, int kind, int priority, OnThumbnailListener listener) {
+      mOrigId = origId;
+      mPath = path;
+      mKind = kind;
+      mPriority = priority;
+      mListener = listener;
+      mSequence = mCounter.incrementAndGet();
+    }
+
+    public long getOrigId() {
+      return mOrigId;
+    }
+
+    public int getKind() {
+      return mKind;
+    }
+
+    public boolean isCancelled() {
+      return mCancelled;
+    }
+
+    public void cancel() {
+      synchronized (mPending) {
+        String key = key(mOrigId, mKind);
+        if (mPending.get(key) == this)
+          mPending.remove(key);
+        cancelLocked();
+      }
+    }
+
+    private void cancelLocked() {
+      mCancelled = true;
+      mListener = null;
+      if (!mStarted)
+        mExecutor.remove(this);
+    }
+
+    @Override
+    public void run() {
+      synchronized (mPending) {
+        if (mCancelled)
+          return;
+        mStarted = true;
+      }
+      Bitmap bitmap = null;
+      if (Vitamio.isInitialized(mContext)) {
+        Worker worker = (Worker) Thread.currentThread();
+        Bitmap target = obtainTarget(mKind);
+        try {
+          bitmap = ThumbnailUtils.createVideoThumbnail(worker.getRetriever(mContext), mPath, mKind, target);
+        } catch (Exception e) {
+          Log.e("ThumbnailService: " + mPath, e);
+          worker.releaseRetriever();
+        }
+        if (target != null && target != bitmap)
+          ThumbnailCache.getInstance(mContext).release(target);
+      }
+      finish(this, bitmap);
+    }
+
+    @Override
+    public int compareTo(Request another) {
+      if (mPriority != another.mPriority)
+        return mPriority > another.mPriority ? -1 : 1;
+      if (mSequence != another.mSequence)
+        return mSequence > another.mSequence ? -1 : 1;
+      return 0;
+    }
+  }
+
+  private static class Worker extends Thread {
+    private MediaMetadataRetriever mRetriever;
+
+    Worker(Runnable r, String name) {
+      super(r, name);
+    }
+
+    MediaMetadataRetriever getRetriever(Context ctx) {
+      if (mRetriever == null)
+        mRetriever = new MediaMetadataRetriever(ctx);
+      return mRetriever;
+    }
+
+    void releaseRetriever() {
+      if (mRetriever != null) {
+        try {
+          mRetriever.release();
+        } catch (RuntimeException ex) {
+        }
+        mRetriever = null;
+      }
+    }
+
+    @Override
+    public void run() {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+      try {
+        super.run();
+      } finally {
+        releaseRetriever();
+      }
+    }
+  }
+}
@@ -20,10 +20,13 @@ package io.vov.vitamio;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Matrix;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import io.vov.vitamio.provider.MediaStore.Video;
 
+import java.io.IOException;
+
 /**
  * ThumbnailUtils is a wrapper of MediaMetadataRetriever to retrive a thumbnail
  * of video file.
@@ -34,7 +37,6 @@ import io.vov.vitamio.provider.MediaStore.Video;
  */
 public class ThumbnailUtils {
   private static final int OPTIONS_NONE = 0x0;
-  private static final int OPTIONS_SCALE_UP = 0x1;
   public static final int OPTIONS_RECYCLE_INPUT = 0x2;
   public static final int TARGET_SIZE_MINI_THUMBNAIL_WIDTH = 426;
   public static final int TARGET_SIZE_MINI_THUMBNAIL_HEIGHT = 320;
@@ -46,27 +48,44 @@ public class ThumbnailUtils {
     if (!Vitamio.isInitialized(ctx)) {
       return null;
     }
-    Bitmap bitmap = null;
     MediaMetadataRetriever retriever = null;
     try {
       retriever = new MediaMetadataRetriever(ctx);
-      retriever.setDataSource(filePath);
-      bitmap = retriever.getFrameAtTime(-1);
+      return createVideoThumbnail(retriever, filePath, kind);
     } catch (Exception ex) {
+      return null;
     } finally {
       try {
         retriever.release();
       } catch (RuntimeException ex) {
       }
     }
+  }
 
-    if (bitmap != null) {
-      if (kind == Video.Thumbnails.MICRO_KIND)
-        bitmap = extractThumbnail(bitmap, TARGET_SIZE_MICRO_THUMBNAIL_WIDTH, TARGET_SIZE_MICRO_THUMBNAIL_HEIGHT, OPTIONS_RECYCLE_INPUT);
-      else if (kind == Video.Thumbnails.MINI_KIND)
-        bitmap = extractThumbnail(bitmap, TARGET_SIZE_MINI_THUMBNAIL_WIDTH, TARGET_SIZE_MINI_THUMBNAIL_HEIGHT, OPTIONS_RECYCLE_INPUT);
-    }
-    return bitmap;
+  /**
+   * Same as {@link #createVideoThumbnail(Context, String, int)}, but uses the
+   * given retriever and leaves it open so it can be reused for the next file.
+   *
+   * @throws IOException if the file can't be opened; after this or any
+   *                     runtime exception of the retriever, release it
+   *                     instead of reusing it
+   */
+  public static Bitmap createVideoThumbnail(MediaMetadataRetriever retriever, String filePath, int kind) throws IOException {
+    return createVideoThumbnail(retriever, filePath, kind, null);
+  }
+
+  /**
+   * Same as {@link #createVideoThumbnail(MediaMetadataRetriever, String, int)},
+   * drawing the thumbnail into target when it is a mutable bitmap of the size
+   * of kind, e.g. one from {@link io.vov.vitamio.provider.ThumbnailCache#obtainBitmap(int, int)}.
+   */
+  public static Bitmap createVideoThumbnail(MediaMetadataRetriever retriever, String filePath, int kind, Bitmap target) throws IOException {
+    retriever.setDataSource(filePath);
+    if (kind == Video.Thumbnails.MICRO_KIND)
+      return retriever.getScaledFrameAtTime(-1, TARGET_SIZE_MICRO_THUMBNAIL_WIDTH, TARGET_SIZE_MICRO_THUMBNAIL_HEIGHT, target);
+    else if (kind == Video.Thumbnails.MINI_KIND)
+      return retriever.getScaledFrameAtTime(-1, TARGET_SIZE_MINI_THUMBNAIL_WIDTH, TARGET_SIZE_MINI_THUMBNAIL_HEIGHT, target);
+    return retriever.getFrameAtTime(-1);
   }
 
   public static Bitmap extractThumbnail(Bitmap source, int width, int height) {
@@ -77,68 +96,47 @@ public class ThumbnailUtils {
     if (source == null)
       return null;
 
-    float scale;
-    if (source.getWidth() < source.getHeight())
-      scale = width / (float) source.getWidth();
-    else
-      scale = height / (float) source.getHeight();
-    Matrix matrix = new Matrix();
-    matrix.setScale(scale, scale);
-    Bitmap thumbnail = transform(matrix, source, width, height, OPTIONS_SCALE_UP | options);
-    return thumbnail;
+    return extractThumbnail(source, width, height, null, (options & OPTIONS_RECYCLE_INPUT) != 0);
   }
 
-  private static Bitmap transform(Matrix scaler, Bitmap source, int targetWidth, int targetHeight, int options) {
-    boolean scaleUp = (options & OPTIONS_SCALE_UP) != 0;
-    boolean recycle = (options & OPTIONS_RECYCLE_INPUT) != 0;
-
-    int deltaX = source.getWidth() - targetWidth;
-    int deltaY = source.getHeight() - targetHeight;
-    if (!scaleUp && (deltaX < 0 || deltaY < 0)) {
-      Bitmap b2 = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
-      Canvas c = new Canvas(b2);
-
-      int deltaXHalf = Math.max(0, deltaX / 2);
-      int deltaYHalf = Math.max(0, deltaY / 2);
-      Rect src = new Rect(deltaXHalf, deltaYHalf, deltaXHalf + Math.min(targetWidth, source.getWidth()), deltaYHalf + Math.min(targetHeight, source.getHeight()));
-      int dstX = (targetWidth - src.width()) / 2;
-      int dstY = (targetHeight - src.height()) / 2;
-      Rect dst = new Rect(dstX, dstY, targetWidth - dstX, targetHeight - dstY);
-      c.drawBitmap(source, src, dst, null);
-      if (recycle)
-        source.recycle();
-      return b2;
-    }
-
-    float bitmapWidthF = source.getWidth();
-    float bitmapHeightF = source.getHeight();
-    float bitmapAspect = bitmapWidthF / bitmapHeightF;
-    float viewAspect = (float) targetWidth / targetHeight;
-
-    float scale = bitmapAspect > viewAspect ? targetHeight / bitmapHeightF : targetWidth / bitmapWidthF;
-    if (scale < .9F || scale > 1F)
-      scaler.setScale(scale, scale);
+  /**
+   * Scale source to cover width x height and crop the center, in a single
+   * draw without intermediate bitmaps.
+   *
+   * @param target drawn into if it is mutable and exactly width x height,
+   *               otherwise a new bitmap is created
+   * @param recycle whether to recycle source afterwards
+   */
+  public static Bitmap extractThumbnail(Bitmap source, int width, int height, Bitmap target, boolean recycle) {
+    if (target == null || target.isRecycled() || !target.isMutable() || target.getWidth() != width || target.getHeight() != height)
+      target = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
     else
-      scaler = null;
-
-    Bitmap b1;
-    if (scaler != null)
-      b1 = Bitmap.createBitmap(source, 0, 0, source.getWidth(), source.getHeight(), scaler, true);
-    else
-      b1 = source;
-
-    if (recycle && b1 != source)
+      target.eraseColor(Color.TRANSPARENT);
+    drawCenterCrop(new Canvas(target), source, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+    if (recycle)
       source.recycle();
+    return target;
+  }
 
-    int dx1 = Math.max(0, b1.getWidth() - targetWidth);
-    int dy1 = Math.max(0, b1.getHeight() - targetHeight);
-
-    Bitmap b2 = Bitmap.createBitmap(b1, dx1 / 2, dy1 / 2, targetWidth, targetHeight);
-
-    if (b2 != b1 && (recycle || b1 != source))
-      b1.recycle();
-
-    return b2;
+  /**
+   * Draw source scaled to cover dst, cropping its center.
+   */
+  public static void drawCenterCrop(Canvas canvas, Bitmap source, Rect dst, Paint paint) {
+    int sourceWidth = source.getWidth();
+    int sourceHeight = source.getHeight();
+    int width = dst.width();
+    int height = dst.height();
+    Rect src;
+    if ((long) sourceWidth * height > (long) sourceHeight * width) {
+      int cropWidth = Math.max(1, Math.round(sourceHeight * (float) width / height));
+      int left = (sourceWidth - cropWidth) / 2;
+      src = new Rect(left, 0, left + cropWidth, sourceHeight);
+    } else {
+      int cropHeight = Math.max(1, Math.round(sourceWidth * (float) height / width));
+      int top = (sourceHeight - cropHeight) / 2;
+      src = new Rect(0, top, sourceWidth, top + cropHeight);
+    }
+    canvas.drawBitmap(source, src, dst, paint);
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.filter;
+
+import android.opengl.GLES20;
+
+/**
+ * Brightness, contrast and saturation in one pass.
+ */
+public class ColorAdjustFilter extends VideoFilter {
+  private static final String BODY = "" + //
+      "uniform float uBrightness;\n" + //
+      "uniform float uContrast;\n" + //
+      "uniform float uSaturation;\n" + //
+      "vec4 applyFilter(vec2 coord) {\n" + //
+      "  vec4 c = texture2D(sTexture, coord);\n" + //
+      "  vec3 rgb = (c.rgb - 0.5) * uContrast + 0.5 + uBrightness;\n" + //
+      "  float luma = dot(rgb, vec3(0.299, 0.587, 0.114));\n" + //
+      "  return vec4(clamp(mix(vec3(luma), rgb, uSaturation), 0.0, 1.0), c.a);\n" + //
+      "}\n";
+  private volatile float mBrightness = 0f;
+  private volatile float mContrast = 1f;
+  private volatile float mSaturation = 1f;
+  private int muBrightnessHandle;
+  private int muContrastHandle;
+  private int muSaturationHandle;
+
+  public ColorAdjustFilter() {
+    super("color");
+  }
+
+  /**
+   * @param brightness offset added to every channel, in [-1, 1], default 0
+   */
+  public void setBrightness(float brightness) {
+    mBrightness = brightness;
+  }
+
+  /**
+   * @param contrast scale around mid gray, default 1
+   */
+  public void setContrast(float contrast) {
+    mContrast = contrast;
+  }
+
+  /**
+   * @param saturation 0 for grayscale, default 1
+   */
+  public void setSaturation(float saturation) {
+    mSaturation = saturation;
+  }
+
+  public float getBrightness() {
+    return mBrightness;
+  }
+
+  public float getContrast() {
+    return mContrast;
+  }
+
+  public float getSaturation() {
+    return mSaturation;
+  }
+
+  @Override
+  protected String getFragmentBody() {
+    return BODY;
+  }
+
+  @Override
+  protected void onInit(int program) {
+    muBrightnessHandle = GLES20.glGetUniformLocation(program, "uBrightness");
+    muContrastHandle = GLES20.glGetUniformLocation(program, "uContrast");
+    muSaturationHandle = GLES20.glGetUniformLocation(program, "uSaturation");
+  }
+
+  @Override
+  protected void onPreDraw(float[] texMatrix) {
+    GLES20.glUniform1f(muBrightnessHandle, mBrightness);
+    GLES20.glUniform1f(muContrastHandle, mContrast);
+    GLES20.glUniform1f(muSaturationHandle, mSaturation);
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.filter;
+
+import android.opengl.Matrix;
+
+/**
+ * Crops and zooms the picture by remapping the texture coordinates, so it
+ * costs no more than a plain copy. All the values are fractions of the input
+ * picture, with (0, 0) at its top left corner.
+ */
+public class CropFilter extends VideoFilter {
+  private final float[] mCropMatrix = new float[16];
+  private final float[] mTemp = new float[16];
+  private float mLeft = 0f;
+  private float mTop = 0f;
+  private float mRight = 1f;
+  private float mBottom = 1f;
+
+  public CropFilter() {
+    super("crop");
+  }
+
+  public synchronized void setCrop(float left, float top, float right, float bottom) {
+    if (left < 0f || top < 0f || right > 1f || bottom > 1f || left >= right || top >= bottom)
+      throw new IllegalArgumentException("Invalid crop rect: " + left + "," + top + "," + right + "," + bottom);
+    mLeft = left;
+    mTop = top;
+    mRight = right;
+    mBottom = bottom;
+  }
+
+  /**
+   * Zoom into the center of the picture.
+   *
+   * @param zoom 1 shows the whole picture, 2 shows the central quarter
+   */
+  public void setZoom(float zoom) {
+    if (zoom < 1f)
+      throw new IllegalArgumentException("Invalid zoom: " + zoom);
+    float half = 0.5f / zoom;
+    setCrop(0.5f - half, 0.5f - half, 0.5f + half, 0.5f + half);
+  }
+
+  @Override
+  protected void onPreDraw(float[] texMatrix) {
+    synchronized (this) {
+      Matrix.setIdentityM(mCropMatrix, 0);
+      Matrix.translateM(mCropMatrix, 0, mLeft, 1f - mBottom, 0f);
+      Matrix.scaleM(mCropMatrix, 0, mRight - mLeft, mBottom - mTop, 1f);
+    }
+    Matrix.multiplyMM(mTemp, 0, texMatrix, 0, mCropMatrix, 0);
+    System.arraycopy(mTemp, 0, texMatrix, 0, 16);
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.filter;
+
+/**
+ * Line blend deinterlacer, each output line is the weighted average of itself
+ * and its two neighbours. It removes combing from interlaced IPTV streams at
+ * the price of some vertical resolution, and costs three texture fetches per
+ * pixel, which is much cheaper than the CPU path of
+ * {@link io.vov.vitamio.MediaPlayer#setDeinterlace(boolean)}.
+ * <p/>
+ * Put it first in the {@link FilterChain} so it runs on the decoded lines
+ * before any scaling.
+ */
+public class DeinterlaceFilter extends VideoFilter {
+  private static final String BODY = "" + //
+      "uniform vec2 uTexelSize;\n" + //
+      "vec4 applyFilter(vec2 coord) {\n" + //
+      "  vec2 dy = vec2(0.0, uTexelSize.y);\n" + //
+      "  vec4 above = texture2D(sTexture, coord - dy);\n" + //
+      "  vec4 below = texture2D(sTexture, coord + dy);\n" + //
+      "  return 0.5 * texture2D(sTexture, coord) + 0.25 * (above + below);\n" + //
+      "}\n";
+
+  public DeinterlaceFilter() {
+    super("deinterlace");
+  }
+
+  @Override
+  protected String getFragmentBody() {
+    return BODY;
+  }
+}
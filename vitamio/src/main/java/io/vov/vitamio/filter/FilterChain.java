@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.filter;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An ordered list of {@link VideoFilter}s rendered with two ping-pong frame
+ * buffers. The first enabled filter samples the SurfaceTexture directly, the
+ * last one draws to the current EGL surface, so a chain of N filters costs N
+ * passes and no extra copy.
+ * <p/>
+ * Filters can be added, removed or toggled from any thread, the programs are
+ * (re)built lazily on the GL thread in {@link #draw}.
+ */
+public class FilterChain {
+  private final List<VideoFilter> mFilters = new ArrayList<VideoFilter>();
+  private final List<VideoFilter> mRemoved = new ArrayList<VideoFilter>();
+  private final List<VideoFilter> mActive = new ArrayList<VideoFilter>();
+  private final VideoFilter mPassthrough = new VideoFilter();
+  private final float[] mIdentity = new float[16];
+  private final float[] mTexMatrix = new float[16];
+  private VideoFilter mExternalFilter;
+  private int[] mFrameBuffers;
+  private int[] mFrameTextures;
+  private int mFrameWidth;
+  private int mFrameHeight;
+  private volatile boolean mProfiling;
+
+  public FilterChain() {
+    Matrix.setIdentityM(mIdentity, 0);
+  }
+
+  public synchronized void addFilter(VideoFilter filter) {
+    mFilters.add(filter);
+    mRemoved.remove(filter);
+  }
+
+  public synchronized void addFilter(int index, VideoFilter filter) {
+    mFilters.add(index, filter);
+    mRemoved.remove(filter);
+  }
+
+  public synchronized void removeFilter(VideoFilter filter) {
+    if (mFilters.remove(filter))
+      mRemoved.add(filter);
+  }
+
+  public synchronized List<VideoFilter> getFilters() {
+    return new ArrayList<VideoFilter>(mFilters);
+  }
+
+  /**
+   * Measure the cost of every pass, see
+   * {@link VideoFilter#getAverageFrameCost()}. Profiling calls glFinish after
+   * each pass, which stalls the pipeline, so only enable it while
+   * benchmarking.
+   */
+  public void setProfiling(boolean profiling) {
+    mProfiling = profiling;
+  }
+
+  public boolean isProfiling() {
+    return mProfiling;
+  }
+
+  /**
+   * Render one frame, must be called on the GL thread.
+   *
+   * @param textureId    the GL_TEXTURE_EXTERNAL_OES texture of the SurfaceTexture
+   * @param stMatrix     the SurfaceTexture transform matrix
+   * @param inputWidth   the video width
+   * @param inputHeight  the video height
+   * @param outputWidth  the width of the EGL surface
+   * @param outputHeight the height of the EGL surface
+   */
+  public void draw(int textureId, float[] stMatrix, int inputWidth, int inputHeight, int outputWidth, int outputHeight) {
+    synchronized (this) {
+      for (VideoFilter filter : mRemoved)
+        filter.release();
+      mRemoved.clear();
+      mActive.clear();
+      for (VideoFilter filter : mFilters) {
+        if (filter.isEnabled())
+          mActive.add(filter);
+      }
+    }
+    if (mActive.isEmpty())
+      mActive.add(mPassthrough);
+
+    int count = mActive.size();
+    VideoFilter first = mActive.get(0);
+    if (mExternalFilter != first) {
+      if (mExternalFilter != null && mExternalFilter.isInitialized())
+        mExternalFilter.release();
+      first.release();
+      mExternalFilter = first;
+    }
+    if (count > 1)
+      prepareFrameBuffers(outputWidth, outputHeight);
+
+    boolean profiling = mProfiling;
+    long start = 0;
+    if (profiling) {
+      GLES20.glFinish();
+      start = System.nanoTime();
+    }
+
+    int texture = textureId;
+    int width = inputWidth;
+    int height = inputHeight;
+    for (int i = 0; i < count; i++) {
+      VideoFilter filter = mActive.get(i);
+      if (!filter.isInitialized())
+        filter.init(i == 0);
+
+      boolean last = i == count - 1;
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, last ? 0 : mFrameBuffers[i % 2]);
+      GLES20.glViewport(0, 0, outputWidth, outputHeight);
+      System.arraycopy(i == 0 ? stMatrix : mIdentity, 0, mTexMatrix, 0, 16);
+      filter.draw(texture, mTexMatrix, width, height);
+
+      if (profiling) {
+        GLES20.glFinish();
+        long now = System.nanoTime();
+        filter.recordFrameCost(now - start);
+        start = now;
+      }
+
+      if (!last) {
+        texture = mFrameTextures[i % 2];
+        width = outputWidth;
+        height = outputHeight;
+      }
+    }
+  }
+
+  /**
+   * Free all the GL resources, must be called on the GL thread while the
+   * context is still current.
+   */
+  public void release() {
+    synchronized (this) {
+      for (VideoFilter filter : mFilters)
+        filter.release();
+      for (VideoFilter filter : mRemoved)
+        filter.release();
+      mRemoved.clear();
+    }
+    mPassthrough.release();
+    mExternalFilter = null;
+    releaseFrameBuffers();
+  }
+
+  private void prepareFrameBuffers(int width, int height) {
+    if (mFrameBuffers != null && mFrameWidth == width && mFrameHeight == height)
+      return;
+    releaseFrameBuffers();
+
+    mFrameBuffers = new int[2];
+    mFrameTextures = new int[2];
+    GLES20.glGenFramebuffers(2, mFrameBuffers, 0);
+    GLES20.glGenTextures(2, mFrameTextures, 0);
+    for (int i = 0; i < 2; i++) {
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFrameTextures[i]);
+      GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+      GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+      GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+      GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+      GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
+      GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mFrameTextures[i], 0);
+    }
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    mFrameWidth = width;
+    mFrameHeight = height;
+  }
+
+  private void releaseFrameBuffers() {
+    if (mFrameBuffers != null) {
+      GLES20.glDeleteFramebuffers(2, mFrameBuffers, 0);
+      GLES20.glDeleteTextures(2, mFrameTextures, 0);
+      mFrameBuffers = null;
+      mFrameTextures = null;
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.filter;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import io.vov.vitamio.EGL;
+import io.vov.vitamio.utils.Log;
+
+/**
+ * Runs a {@link FilterChain} between the player and the screen on a dedicated
+ * GL thread. The decoder renders into {@link #getInputSurface()}, which is
+ * backed by a SurfaceTexture, and every new frame is filtered and posted to
+ * the output Surface through {@link EGL}.
+ * <p/>
+ * <pre>
+ * FilterChain chain = new FilterChain();
+ * chain.addFilter(new DeinterlaceFilter());
+ * FilterRenderer renderer = new FilterRenderer(holder.getSurface(), chain);
+ * renderer.start();
+ * mediaPlayer.setSurface(renderer.getInputSurface());
+ * </pre>
+ */
+public class FilterRenderer implements SurfaceTexture.OnFrameAvailableListener {
+  private final Surface mOutputSurface;
+  private final FilterChain mFilterChain;
+  private final float[] mSTMatrix = new float[16];
+  private final ConditionVariable mStarted = new ConditionVariable();
+  private HandlerThread mThread;
+  private Handler mHandler;
+  private EGL mEgl;
+  private SurfaceTexture mSurfaceTexture;
+  private Surface mInputSurface;
+  private int mTextureId;
+  private volatile int mVideoWidth;
+  private volatile int mVideoHeight;
+  private volatile int mOutputWidth;
+  private volatile int mOutputHeight;
+
+  public FilterRenderer(Surface output, FilterChain chain) {
+    mOutputSurface = output;
+    mFilterChain = chain;
+  }
+
+  public FilterChain getFilterChain() {
+    return mFilterChain;
+  }
+
+  /**
+   * Start the GL thread, returns once the input surface is ready.
+   */
+  public void start() {
+    if (mThread != null)
+      return;
+    mThread = new HandlerThread("VitamioFilterRenderer");
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          setupGL();
+        } catch (RuntimeException e) {
+          Log.e("FilterRenderer setup", e);
+          releaseGL();
+        }
+        mStarted.open();
+      }
+    });
+    mStarted.block();
+  }
+
+  /**
+   * @return the surface to pass to
+   *         {@link io.vov.vitamio.MediaPlayer#setSurface(Surface)}, null if
+   *         the GL setup failed
+   */
+  public Surface getInputSurface() {
+    return mInputSurface;
+  }
+
+  /**
+   * The video size, used to compute the texel size of the first pass.
+   */
+  public void setVideoSize(int width, int height) {
+    mVideoWidth = width;
+    mVideoHeight = height;
+    if (mSurfaceTexture != null)
+      mSurfaceTexture.setDefaultBufferSize(width, height);
+  }
+
+  /**
+   * The size of the output surface, call it from surfaceChanged.
+   */
+  public void setOutputSize(int width, int height) {
+    mOutputWidth = width;
+    mOutputHeight = height;
+  }
+
+  /**
+   * Stop the GL thread and release all its resources. The output surface is
+   * not released, it's owned by the caller.
+   */
+  public void release() {
+    if (mThread == null)
+      return;
+    final ConditionVariable released = new ConditionVariable();
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        releaseGL();
+        released.open();
+      }
+    });
+    released.block();
+    mThread.quit();
+    mThread = null;
+    mHandler = null;
+  }
+
+  @Override
+  public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+    // delivered on mThread, as the SurfaceTexture was created there
+    if (mSurfaceTexture == null)
+      return;
+    try {
+      mSurfaceTexture.updateTexImage();
+      mSurfaceTexture.getTransformMatrix(mSTMatrix);
+      int outputWidth = mOutputWidth;
+      int outputHeight = mOutputHeight;
+      if (outputWidth == 0 || outputHeight == 0)
+        return;
+      int videoWidth = mVideoWidth > 0 ? mVideoWidth : outputWidth;
+      int videoHeight = mVideoHeight > 0 ? mVideoHeight : outputHeight;
+      mFilterChain.draw(mTextureId, mSTMatrix, videoWidth, videoHeight, outputWidth, outputHeight);
+      mEgl.swap();
+    } catch (RuntimeException e) {
+      Log.e("FilterRenderer draw", e);
+    }
+  }
+
+  private void setupGL() {
+    mEgl = new EGL();
+    if (!mEgl.initialize(mOutputSurface))
+      throw new RuntimeException("EGL initialize failed");
+
+    int[] textures = new int[1];
+    GLES20.glGenTextures(1, textures, 0);
+    mTextureId = textures[0];
+    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureId);
+    GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+    mSurfaceTexture = new SurfaceTexture(mTextureId);
+    mSurfaceTexture.setOnFrameAvailableListener(this);
+    if (mVideoWidth > 0 && mVideoHeight > 0)
+      mSurfaceTexture.setDefaultBufferSize(mVideoWidth, mVideoHeight);
+    mInputSurface = new Surface(mSurfaceTexture);
+  }
+
+  private void releaseGL() {
+    mFilterChain.release();
+    if (mInputSurface != null) {
+      mInputSurface.release();
+      mInputSurface = null;
+    }
+    if (mSurfaceTexture != null) {
+      mSurfaceTexture.setOnFrameAvailableListener(null);
+      mSurfaceTexture.release();
+      mSurfaceTexture = null;
+    }
+    if (mTextureId != 0) {
+      GLES20.glDeleteTextures(1, new int[]{mTextureId}, 0);
+      mTextureId = 0;
+    }
+    if (mEgl != null) {
+      mEgl.release();
+      mEgl = null;
+    }
+  }
+}
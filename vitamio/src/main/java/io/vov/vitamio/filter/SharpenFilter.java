@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.filter;
+
+import android.opengl.GLES20;
+
+/**
+ * Unsharp mask on a 4-neighbour kernel.
+ */
+public class SharpenFilter extends VideoFilter {
+  private static final String BODY = "" + //
+      "uniform vec2 uTexelSize;\n" + //
+      "uniform float uAmount;\n" + //
+      "vec4 applyFilter(vec2 coord) {\n" + //
+      "  vec4 c = texture2D(sTexture, coord);\n" + //
+      "  vec3 n = texture2D(sTexture, coord + vec2(uTexelSize.x, 0.0)).rgb\n" + //
+      "         + texture2D(sTexture, coord - vec2(uTexelSize.x, 0.0)).rgb\n" + //
+      "         + texture2D(sTexture, coord + vec2(0.0, uTexelSize.y)).rgb\n" + //
+      "         + texture2D(sTexture, coord - vec2(0.0, uTexelSize.y)).rgb;\n" + //
+      "  return vec4(clamp(c.rgb * (1.0 + 4.0 * uAmount) - n * uAmount, 0.0, 1.0), c.a);\n" + //
+      "}\n";
+  private volatile float mAmount;
+  private int muAmountHandle;
+
+  public SharpenFilter() {
+    this(0.5f);
+  }
+
+  /**
+   * @param amount sharpen strength, 0 means no effect, usually less than 2
+   */
+  public SharpenFilter(float amount) {
+    super("sharpen");
+    mAmount = amount;
+  }
+
+  public void setAmount(float amount) {
+    mAmount = amount;
+  }
+
+  public float getAmount() {
+    return mAmount;
+  }
+
+  @Override
+  protected String getFragmentBody() {
+    return BODY;
+  }
+
+  @Override
+  protected void onInit(int program) {
+    muAmountHandle = GLES20.glGetUniformLocation(program, "uAmount");
+  }
+
+  @Override
+  protected void onPreDraw(float[] texMatrix) {
+    GLES20.glUniform1f(muAmountHandle, mAmount);
+  }
+}
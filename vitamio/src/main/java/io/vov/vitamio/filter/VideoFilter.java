@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.filter;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import io.vov.vitamio.utils.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A single GLSL pass of a {@link FilterChain}. The default implementation
+ * copies the input texture unchanged; subclasses override
+ * {@link #getFragmentBody()} and {@link #onPreDraw(float[])} to do real work.
+ * <p/>
+ * The fragment body must define <code>vec4 applyFilter(vec2 coord)</code> and
+ * sample the input through <code>sTexture</code>, which is declared by this
+ * class as either a <code>samplerExternalOES</code> (first pass, fed by a
+ * SurfaceTexture) or a <code>sampler2D</code> (later passes).
+ * <p/>
+ * All methods must be called on the GL thread owning the current context.
+ */
+public class VideoFilter {
+  private static final String VERTEX_SHADER = "" + //
+      "uniform mat4 uTexMatrix;\n" + //
+      "attribute vec4 aPosition;\n" + //
+      "attribute vec4 aTextureCoord;\n" + //
+      "varying vec2 vTextureCoord;\n" + //
+      "void main() {\n" + //
+      "  gl_Position = aPosition;\n" + //
+      "  vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" + //
+      "}\n";
+  private static final String HEADER_EXTERNAL = "" + //
+      "#extension GL_OES_EGL_image_external : require\n" + //
+      "precision mediump float;\n" + //
+      "uniform samplerExternalOES sTexture;\n";
+  private static final String HEADER_2D = "" + //
+      "precision mediump float;\n" + //
+      "uniform sampler2D sTexture;\n";
+  private static final String FOOTER = "" + //
+      "varying vec2 vTextureCoord;\n" + //
+      "void main() {\n" + //
+      "  gl_FragColor = applyFilter(vTextureCoord);\n" + //
+      "}\n";
+  private static final String PASSTHROUGH_BODY = "" + //
+      "vec4 applyFilter(vec2 coord) {\n" + //
+      "  return texture2D(sTexture, coord);\n" + //
+      "}\n";
+  private static final float[] VERTICES = {-1f, -1f, 1f, -1f, -1f, 1f, 1f, 1f};
+  private static final float[] TEX_COORDS = {0f, 0f, 1f, 0f, 0f, 1f, 1f, 1f};
+
+  private final String mName;
+  private FloatBuffer mVertices;
+  private FloatBuffer mTexCoords;
+  private int mProgram;
+  private int mTextureTarget;
+  private int maPositionHandle;
+  private int maTextureCoordHandle;
+  private int muTexMatrixHandle;
+  private int muTexelSizeHandle;
+  private boolean mEnabled = true;
+  private long mFrameCount;
+  private long mTotalNanos;
+  private long mMaxNanos;
+
+  public VideoFilter() {
+    this("passthrough");
+  }
+
+  protected VideoFilter(String name) {
+    mName = name;
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  /**
+   * @return the GLSL source defining <code>vec4 applyFilter(vec2 coord)</code>.
+   *         <code>uTexelSize</code> (a <code>vec2</code>) is available when
+   *         declared here.
+   */
+  protected String getFragmentBody() {
+    return PASSTHROUGH_BODY;
+  }
+
+  /**
+   * Called after the program is bound and before the quad is drawn, set
+   * filter specific uniforms here.
+   *
+   * @param texMatrix the texture transform, may be modified in place
+   */
+  protected void onPreDraw(float[] texMatrix) {
+  }
+
+  /**
+   * Called right after the program is linked to look up uniform handles.
+   */
+  protected void onInit(int program) {
+  }
+
+  public void setEnabled(boolean enabled) {
+    mEnabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return mEnabled;
+  }
+
+  public boolean isInitialized() {
+    return mProgram != 0;
+  }
+
+  /**
+   * Compile and link the program for the given input texture target.
+   *
+   * @param external true if this pass samples the SurfaceTexture directly
+   */
+  void init(boolean external) {
+    release();
+    mTextureTarget = external ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES : GLES20.GL_TEXTURE_2D;
+    mProgram = createProgram(VERTEX_SHADER, (external ? HEADER_EXTERNAL : HEADER_2D) + getFragmentBody() + FOOTER);
+    if (mProgram == 0)
+      throw new RuntimeException("Could not create program for filter " + mName);
+    maPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
+    maTextureCoordHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
+    muTexMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uTexMatrix");
+    muTexelSizeHandle = GLES20.glGetUniformLocation(mProgram, "uTexelSize");
+    if (mVertices == null) {
+      mVertices = createFloatBuffer(VERTICES);
+      mTexCoords = createFloatBuffer(TEX_COORDS);
+    }
+    onInit(mProgram);
+  }
+
+  void draw(int textureId, float[] texMatrix, int width, int height) {
+    GLES20.glUseProgram(mProgram);
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(mTextureTarget, textureId);
+    onPreDraw(texMatrix);
+    GLES20.glUniformMatrix4fv(muTexMatrixHandle, 1, false, texMatrix, 0);
+    if (muTexelSizeHandle >= 0)
+      GLES20.glUniform2f(muTexelSizeHandle, 1f / width, 1f / height);
+    GLES20.glEnableVertexAttribArray(maPositionHandle);
+    GLES20.glVertexAttribPointer(maPositionHandle, 2, GLES20.GL_FLOAT, false, 8, mVertices);
+    GLES20.glEnableVertexAttribArray(maTextureCoordHandle);
+    GLES20.glVertexAttribPointer(maTextureCoordHandle, 2, GLES20.GL_FLOAT, false, 8, mTexCoords);
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    GLES20.glDisableVertexAttribArray(maPositionHandle);
+    GLES20.glDisableVertexAttribArray(maTextureCoordHandle);
+    GLES20.glBindTexture(mTextureTarget, 0);
+  }
+
+  void release() {
+    if (mProgram != 0) {
+      GLES20.glDeleteProgram(mProgram);
+      mProgram = 0;
+    }
+  }
+
+  void recordFrameCost(long nanos) {
+    mFrameCount++;
+    mTotalNanos += nanos;
+    if (nanos > mMaxNanos)
+      mMaxNanos = nanos;
+  }
+
+  /**
+   * @return the average GPU time in nanoseconds spent in this pass per frame,
+   *         only measured while {@link FilterChain#setProfiling(boolean)} is on
+   */
+  public long getAverageFrameCost() {
+    return mFrameCount == 0 ? 0 : mTotalNanos / mFrameCount;
+  }
+
+  /**
+   * @return the worst measured per-frame cost in nanoseconds
+   */
+  public long getMaxFrameCost() {
+    return mMaxNanos;
+  }
+
+  public long getProfiledFrames() {
+    return mFrameCount;
+  }
+
+  public void resetFrameCost() {
+    mFrameCount = 0;
+    mTotalNanos = 0;
+    mMaxNanos = 0;
+  }
+
+  private static FloatBuffer createFloatBuffer(float[] coords) {
+    FloatBuffer fb = ByteBuffer.allocateDirect(coords.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    fb.put(coords);
+    fb.position(0);
+    return fb;
+  }
+
+  private static int loadShader(int shaderType, String source) {
+    int shader = GLES20.glCreateShader(shaderType);
+    GLES20.glShaderSource(shader, source);
+    GLES20.glCompileShader(shader);
+    int[] compiled = new int[1];
+    GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+    if (compiled[0] == 0) {
+      Log.e("Could not compile shader %d: %s", shaderType, GLES20.glGetShaderInfoLog(shader));
+      GLES20.glDeleteShader(shader);
+      shader = 0;
+    }
+    return shader;
+  }
+
+  private static int createProgram(String vertexSource, String fragmentSource) {
+    int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+    if (vertexShader == 0)
+      return 0;
+    int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+    if (pixelShader == 0) {
+      GLES20.glDeleteShader(vertexShader);
+      return 0;
+    }
+
+    int program = GLES20.glCreateProgram();
+    GLES20.glAttachShader(program, vertexShader);
+    GLES20.glAttachShader(program, pixelShader);
+    GLES20.glLinkProgram(program);
+    GLES20.glDeleteShader(vertexShader);
+    GLES20.glDeleteShader(pixelShader);
+    int[] linkStatus = new int[1];
+    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+    if (linkStatus[0] != GLES20.GL_TRUE) {
+      Log.e("Could not link program: %s", GLES20.glGetProgramInfoLog(program));
+      GLES20.glDeleteProgram(program);
+      program = 0;
+    }
+    return program;
+  }
+}
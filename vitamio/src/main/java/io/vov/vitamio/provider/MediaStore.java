@@ -28,8 +28,10 @@ import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 
+import io.vov.vitamio.ThumbnailService;
 import io.vov.vitamio.utils.Log;
 
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -175,10 +177,17 @@ public final class MediaStore {
         InternalThumbnails.cancelThumbnailRequest(cr, origId, CONTENT_URI, InternalThumbnails.DEFAULT_GROUP_ID);
       }
 
+      /**
+       * Thumbnails served from or added to the in-memory cache are copied, so
+       * the returned bitmap belongs to the caller and may be recycled.
+       */
       public static Bitmap getThumbnail(Context ctx, ContentResolver cr, long origId, int kind, BitmapFactory.Options options) {
         return InternalThumbnails.getThumbnail(ctx, cr, origId, InternalThumbnails.DEFAULT_GROUP_ID, kind, options, CONTENT_URI);
       }
 
+      /**
+       * @see #getThumbnail(Context, ContentResolver, long, int, BitmapFactory.Options)
+       */
       public static Bitmap getThumbnail(Context ctx, ContentResolver cr, long origId, long groupId, int kind, BitmapFactory.Options options) {
         return InternalThumbnails.getThumbnail(ctx, cr, origId, groupId, kind, options, CONTENT_URI);
       }
@@ -190,6 +199,14 @@ public final class MediaStore {
       public static void cancelThumbnailRequest(ContentResolver cr, long origId, long groupId) {
         InternalThumbnails.cancelThumbnailRequest(cr, origId, CONTENT_URI, groupId);
       }
+
+      /**
+       * Drop the micro thumbnails of deleted videos, compacting the thumbnail
+       * store once enough of it is dead.
+       */
+      public static void removeThumbnails(Context ctx, long[] origIds) {
+        InternalThumbnails.removeThumbnails(ctx, origIds, CONTENT_URI);
+      }
     }
   }
 
@@ -198,18 +215,33 @@ public final class MediaStore {
     private static final int MINI_KIND = 1;
     private static final int MICRO_KIND = 3;
     private static final String[] PROJECTION = new String[]{_ID, MediaColumns.DATA};
-    private static final Object sThumbBufLock = new Object();
-    private static byte[] sThumbBuf;
+    private static final ThreadLocal<byte[]> sThumbBuf = new ThreadLocal<byte[]>() {
+      @Override
+      protected byte[] initialValue() {
+        return new byte[MiniThumbFile.BYTES_PER_MINTHUMB];
+      }
+    };
 
-    private static Bitmap getMiniThumbFromFile(Cursor c, Uri baseUri, ContentResolver cr, BitmapFactory.Options options) {
+    private static Bitmap getMiniThumbFromFile(Cursor c, Uri baseUri, ContentResolver cr, BitmapFactory.Options options, ThumbnailCache cache) {
       Bitmap bitmap = null;
       Uri thumbUri = null;
       try {
         long thumbId = c.getLong(0);
         thumbUri = ContentUris.withAppendedId(baseUri, thumbId);
         ParcelFileDescriptor pfdInput = cr.openFileDescriptor(thumbUri, "r");
-        bitmap = BitmapFactory.decodeFileDescriptor(pfdInput.getFileDescriptor(), null, options);
-        pfdInput.close();
+        try {
+          FileDescriptor fd = pfdInput.getFileDescriptor();
+          if (options == null) {
+            options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+            options.inJustDecodeBounds = false;
+            cache.setReusable(options);
+          }
+          bitmap = decodeFileDescriptor(fd, options);
+        } finally {
+          pfdInput.close();
+        }
       } catch (FileNotFoundException ex) {
         Log.e("getMiniThumbFromFile", ex);
       } catch (IOException ex) {
@@ -220,7 +252,45 @@ public final class MediaStore {
       return bitmap;
     }
 
+    private static Bitmap decodeFileDescriptor(FileDescriptor fd, BitmapFactory.Options options) {
+      try {
+        return BitmapFactory.decodeFileDescriptor(fd, null, options);
+      } catch (IllegalArgumentException ex) {
+        if (options.inBitmap == null)
+          throw ex;
+        options.inBitmap = null;
+        return BitmapFactory.decodeFileDescriptor(fd, null, options);
+      }
+    }
+
+    /**
+     * The cache keeps its own bitmap; callers get a copy they may recycle.
+     */
+    private static Bitmap copyOf(Bitmap bitmap) {
+      Bitmap.Config config = bitmap.getConfig();
+      return bitmap.copy(config != null ? config : Bitmap.Config.ARGB_8888, true);
+    }
+
+    private static Bitmap decodeMicroThumb(byte[] data, ThumbnailCache cache) {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeByteArray(data, 0, data.length, options);
+      options.inJustDecodeBounds = false;
+      cache.setReusable(options);
+      Bitmap bitmap;
+      try {
+        bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+      } catch (IllegalArgumentException ex) {
+        options.inBitmap = null;
+        bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+      }
+      if (bitmap == null)
+        Log.d("couldn't decode byte array.");
+      return bitmap;
+    }
+
     static void cancelThumbnailRequest(ContentResolver cr, long origId, Uri baseUri, long groupId) {
+      ThumbnailService.cancelRequests(origId);
       Uri cancelUri = baseUri.buildUpon().appendQueryParameter("cancel", "1").appendQueryParameter("orig_id", String.valueOf(origId)).appendQueryParameter("group_id", String.valueOf(groupId)).build();
       Cursor c = null;
       try {
@@ -231,6 +301,19 @@ public final class MediaStore {
       }
     }
 
+    static void removeThumbnails(Context ctx, long[] origIds, Uri baseUri) {
+      if (origIds.length == 0)
+        return;
+      MiniThumbFile thumbFile = MiniThumbFile.instance(baseUri);
+      ThumbnailCache cache = ThumbnailCache.getInstance(ctx);
+      for (long origId : origIds) {
+        thumbFile.removeMiniThumb(origId);
+        cache.remove(origId);
+      }
+      thumbFile.flush();
+      thumbFile.compactIfNeeded();
+    }
+
     static String getThumbnailPath(Context ctx, ContentResolver cr, long origId, Uri baseUri) {
       String column = "video_id=";
       String path = "";
@@ -250,17 +333,21 @@ public final class MediaStore {
     static Bitmap getThumbnail(Context ctx, ContentResolver cr, long origId, long groupId, int kind, BitmapFactory.Options options, Uri baseUri) {
       Bitmap bitmap = null;
       MiniThumbFile thumbFile = MiniThumbFile.instance(baseUri);
+      ThumbnailCache cache = ThumbnailCache.getInstance(ctx);
       long magic = thumbFile.getMagic(origId);
       if (magic != 0) {
+        if (options == null || kind == MICRO_KIND) {
+          bitmap = cache.get(origId, kind, magic);
+          if (bitmap != null)
+            return copyOf(bitmap);
+        }
         if (kind == MICRO_KIND) {
-          synchronized (sThumbBufLock) {
-            if (sThumbBuf == null)
-              sThumbBuf = new byte[MiniThumbFile.BYTES_PER_MINTHUMB];
-            if (thumbFile.getMiniThumbFromFile(origId, sThumbBuf) != null) {
-              bitmap = BitmapFactory.decodeByteArray(sThumbBuf, 0, sThumbBuf.length);
-              if (bitmap == null)
-                Log.d("couldn't decode byte array.");
-            }
+          byte[] data = thumbFile.getMiniThumbFromFile(origId, sThumbBuf.get());
+          if (data != null)
+            bitmap = decodeMicroThumb(data, cache);
+          if (bitmap != null) {
+            cache.put(origId, kind, magic, bitmap);
+            bitmap = copyOf(bitmap);
           }
           return bitmap;
         } else if (kind == MINI_KIND) {
@@ -269,9 +356,14 @@ public final class MediaStore {
           try {
             c = cr.query(baseUri, PROJECTION, column + origId, null, null);
             if (c != null && c.moveToFirst()) {
-              bitmap = getMiniThumbFromFile(c, baseUri, cr, options);
-              if (bitmap != null)
+              bitmap = getMiniThumbFromFile(c, baseUri, cr, options, cache);
+              if (bitmap != null) {
+                if (options == null) {
+                  cache.put(origId, kind, magic, bitmap);
+                  bitmap = copyOf(bitmap);
+                }
                 return bitmap;
+              }
             }
           } finally {
             if (c != null)
@@ -288,21 +380,19 @@ public final class MediaStore {
           return null;
 
         if (kind == MICRO_KIND) {
-          synchronized (sThumbBufLock) {
-            if (sThumbBuf == null)
-              sThumbBuf = new byte[MiniThumbFile.BYTES_PER_MINTHUMB];
-            if (thumbFile.getMiniThumbFromFile(origId, sThumbBuf) != null) {
-              bitmap = BitmapFactory.decodeByteArray(sThumbBuf, 0, sThumbBuf.length);
-              if (bitmap == null)
-                Log.d("couldn't decode byte array.");
-            }
-          }
+          byte[] data = thumbFile.getMiniThumbFromFile(origId, sThumbBuf.get());
+          if (data != null)
+            bitmap = decodeMicroThumb(data, cache);
         } else if (kind == MINI_KIND) {
           if (c.moveToFirst())
-            bitmap = getMiniThumbFromFile(c, baseUri, cr, options);
+            bitmap = getMiniThumbFromFile(c, baseUri, cr, options, cache);
         } else {
           throw new IllegalArgumentException("Unsupported kind: " + kind);
         }
+        if (bitmap != null && (options == null || kind == MICRO_KIND)) {
+          cache.put(origId, kind, thumbFile.getMagic(origId), bitmap);
+          bitmap = copyOf(bitmap);
+        }
       } catch (SQLiteException ex) {
         Log.e("getThumbnail", ex);
       } finally {
@@ -21,6 +21,7 @@ import android.net.Uri;
 import android.os.Environment;
 
 import io.vov.vitamio.provider.MediaStore.Video;
+import io.vov.vitamio.utils.IOUtils;
 import io.vov.vitamio.utils.Log;
 
 import java.io.File;
@@ -30,20 +31,69 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Hashtable;
+import java.util.zip.CRC32;
 
+/**
+ * Micro thumbnails of one media type, stored as an append-only data log plus
+ * a fixed width index keyed by media id.
+ * <p/>
+ * The log starts with two alternating commit blocks, each holding a sequence
+ * number, the generation, the committed end of the log, the number of live
+ * bytes and a CRC. Records <code>[id:8][magic:8][length:4][jpeg data]</code>
+ * are appended after it and only become durable when a commit block covering
+ * them is written, which happens after the log is forced. A torn commit block
+ * fails its CRC and the other one is used.
+ * <p/>
+ * Index entry <code>id</code> lives at a fixed offset and holds
+ * <code>[magic:8][offset:8][length:4]</code>. Readers check it against the
+ * record header, so an index entry that doesn't match the log reads as a miss.
+ * If the index generation doesn't match the log, the index is rebuilt by
+ * scanning the log.
+ * <p/>
+ * Overwritten and removed thumbnails leave dead records behind which
+ * {@link #compact()} drops once they outweigh the live ones. Files of the old
+ * fixed slot format (<code>.thumbdata7</code>) are migrated on first use.
+ * <p/>
+ * Reads are lock free on the mapped files. Writers, in this or any other
+ * process, hold a lock on the index file from reading the newest commit
+ * block until the commit covering their records, so every write is committed
+ * on its own; {@link #saveMiniThumbsToFile} writes many thumbnails under one
+ * lock and one commit. A reader that finds an index entry past the end it knows
+ * re-reads the commit block, and reopens the log if another process
+ * compacted it.
+ */
 public class MiniThumbFile {
   protected static final int BYTES_PER_MINTHUMB = 10000;
-  private static final int MINI_THUMB_DATA_FILE_VERSION = 7;
-  private static final int HEADER_SIZE = 1 + 8 + 4;
+  private static final int MINI_THUMB_DATA_FILE_VERSION = 8;
+  private static final int FILE_MAGIC = 0x56544842; // VTHB
+  private static final int COMMIT_SIZE = 8 + 8 + 8 + 8 + 8;
+  private static final int LOG_HEADER_SIZE = 4 + 4 + 2 * COMMIT_SIZE;
+  private static final int RECORD_HEADER_SIZE = 8 + 8 + 4;
+  private static final int INDEX_HEADER_SIZE = 4 + 4 + 8;
+  private static final int INDEX_ENTRY_SIZE = 8 + 8 + 4;
+  private static final int INDEX_GROW_SIZE = 64 * 1024;
+  private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+  private static final int V7_BYTES_PER_MINTHUMB = 10000;
+  private static final int V7_HEADER_SIZE = 1 + 8 + 4;
   private static Hashtable<String, MiniThumbFile> sThumbFiles = new Hashtable<String, MiniThumbFile>();
   private Uri mUri;
-  private RandomAccessFile mMiniThumbFile;
-  private FileChannel mChannel;
-  private ByteBuffer mBuffer;
+  private final Object mWriteLock = new Object();
+  private RandomAccessFile mLogFile;
+  private RandomAccessFile mIndexFile;
+  private FileChannel mLog;
+  private FileChannel mIndex;
+  private boolean mWritable;
+  private volatile ByteBuffer mLogMap;
+  private volatile ByteBuffer mIndexMap;
+  private volatile long mEnd;
+  private long mCommittedEnd;
+  private long mSeq;
+  private long mGeneration;
+  private long mLive;
+  private int mUncommitted;
 
   public MiniThumbFile(Uri uri) {
     mUri = uri;
-    mBuffer = ByteBuffer.allocateDirect(BYTES_PER_MINTHUMB);
   }
 
   protected static synchronized void reset() {
@@ -63,14 +113,13 @@ public class MiniThumbFile {
     return file;
   }
 
-  private String randomAccessFilePath(int version) {
+  private String dataFilePath(String name, int version) {
     String directoryName = Environment.getExternalStorageDirectory().toString() + "/" + Video.Thumbnails.THUMBNAILS_DIRECTORY;
-    return directoryName + "/.thumbdata" + version + "-" + mUri.hashCode();
+    return directoryName + "/." + name + version + "-" + mUri.hashCode();
   }
 
   private void removeOldFile() {
-    String oldPath = randomAccessFilePath(MINI_THUMB_DATA_FILE_VERSION - 1);
-    File oldFile = new File(oldPath);
+    File oldFile = new File(dataFilePath("thumbdata", MINI_THUMB_DATA_FILE_VERSION - 2));
     if (oldFile.exists()) {
       try {
         oldFile.delete();
@@ -79,138 +128,641 @@ public class MiniThumbFile {
     }
   }
 
-  private RandomAccessFile miniThumbDataFile() {
-    if (mMiniThumbFile == null) {
-      removeOldFile();
-      String path = randomAccessFilePath(MINI_THUMB_DATA_FILE_VERSION);
-      File directory = new File(path).getParentFile();
-      if (!directory.isDirectory()) {
-        if (!directory.mkdirs())
-          Log.e("Unable to create .thumbnails directory %s", directory.toString());
-      }
-      File f = new File(path);
+  /**
+   * Open the log and index, recovering the last commit and migrating a
+   * version 7 file if there is one. Must hold mWriteLock.
+   */
+  private boolean openLocked() {
+    if (mLog != null)
+      return true;
+
+    removeOldFile();
+    File logFile = new File(dataFilePath("thumbdata", MINI_THUMB_DATA_FILE_VERSION));
+    File indexFile = new File(dataFilePath("thumbindex", MINI_THUMB_DATA_FILE_VERSION));
+    File directory = logFile.getParentFile();
+    if (!directory.isDirectory()) {
+      if (!directory.mkdirs())
+        Log.e("Unable to create .thumbnails directory %s", directory.toString());
+    }
+    File oldFile = new File(dataFilePath("thumbdata", MINI_THUMB_DATA_FILE_VERSION - 1));
+    boolean migrate = false;
+    FileLock lock = null;
+
+    try {
       try {
-        mMiniThumbFile = new RandomAccessFile(f, "rw");
+        mLogFile = new RandomAccessFile(logFile, "rw");
+        mIndexFile = new RandomAccessFile(indexFile, "rw");
+        mWritable = true;
       } catch (IOException ex) {
-        try {
-          mMiniThumbFile = new RandomAccessFile(f, "r");
-        } catch (IOException ex2) {
-        }
+        IOUtils.closeSilently(mLogFile);
+        mLogFile = new RandomAccessFile(logFile, "r");
+        mIndexFile = new RandomAccessFile(indexFile, "r");
+        mWritable = false;
       }
+      mLog = mLogFile.getChannel();
+      mIndex = mIndexFile.getChannel();
+      lock = lockLocked();
+      migrate = mWritable && mLog.size() == 0 && oldFile.exists();
+      recoverLocked();
+      if (migrate)
+        migrateLocked(oldFile);
+      else if (mWritable && needsCompactLocked())
+        compactLocked();
+    } catch (IOException ex) {
+      Log.e("Unable to open thumbnail store %s: %s", logFile, ex.getMessage());
+      closeLocked();
+      return false;
+    } finally {
+      unlock(lock);
+    }
+    return mLog != null;
+  }
+
+  /**
+   * Lock the index file against writers in other processes, the index is
+   * never replaced so the lock outlives a compaction of the log.
+   *
+   * @return the lock, or null for a read-only store
+   */
+  private FileLock lockLocked() throws IOException {
+    return mWritable ? mIndex.lock() : null;
+  }
 
-      if (mMiniThumbFile != null)
-        mChannel = mMiniThumbFile.getChannel();
+  private static void unlock(FileLock lock) {
+    if (lock == null)
+      return;
+    try {
+      lock.release();
+    } catch (IOException ex) {
+      // closing the channel released it already
     }
-    return mMiniThumbFile;
   }
 
-  protected synchronized void deactivate() {
-    if (mMiniThumbFile != null) {
-      try {
-        mMiniThumbFile.close();
-        mMiniThumbFile = null;
-      } catch (IOException ex) {
-      }
+  /**
+   * Pick up the commits of other processes. Must hold mWriteLock, and the
+   * file lock before writing.
+   */
+  private void refreshLocked() throws IOException {
+    if (mIndexMap.getLong(8) != mGeneration)
+      reopenLogLocked();
+    long seq = mSeq;
+    long generation = mGeneration;
+    long committedEnd = mCommittedEnd;
+    long live = mLive;
+    long end = mEnd;
+    if (readCommitLocked() == 0 || (mGeneration == generation && mSeq < seq)) {
+      mSeq = seq;
+      mGeneration = generation;
+      mCommittedEnd = committedEnd;
+      mLive = live;
+      mEnd = end;
     }
   }
 
-  protected synchronized long getMagic(long id) {
-    RandomAccessFile r = miniThumbDataFile();
-    if (r != null) {
-      long pos = id * BYTES_PER_MINTHUMB;
-      FileLock lock = null;
+  private void reopenLogLocked() throws IOException {
+    IOUtils.closeSilently(mLogFile);
+    mLogMap = null;
+    mLogFile = new RandomAccessFile(new File(dataFilePath("thumbdata", MINI_THUMB_DATA_FILE_VERSION)), mWritable ? "rw" : "r");
+    mLog = mLogFile.getChannel();
+  }
+
+  /**
+   * Re-read the commit block after a miss that may be caused by another
+   * process.
+   */
+  private void refresh() {
+    synchronized (mWriteLock) {
+      if (mLog == null)
+        return;
       try {
-        mBuffer.clear();
-        mBuffer.limit(1 + 8);
-
-        lock = mChannel.lock(pos, 1 + 8, true);
-        if (mChannel.read(mBuffer, pos) == 9) {
-          mBuffer.position(0);
-          if (mBuffer.get() == 1)
-            return mBuffer.getLong();
-        }
+        refreshLocked();
       } catch (IOException ex) {
-        Log.e("Got exception checking file magic: ", ex);
-      } catch (RuntimeException ex) {
-        Log.e("Got exception when reading magic, id = %d, disk full or mount read-only? %s", id, ex.getClass().toString());
-      } finally {
-        try {
-          if (lock != null)
-            lock.release();
-        } catch (IOException ex) {
-        }
+        Log.e("Got exception refreshing thumbnail store: %s", ex.getMessage());
       }
     }
-    return 0;
   }
 
-  protected synchronized void saveMiniThumbToFile(byte[] data, long id, long magic) throws IOException {
-    RandomAccessFile r = miniThumbDataFile();
-    if (r == null)
+  private void recoverLocked() throws IOException {
+    int commits = readCommitLocked();
+    // Both blocks are written from the second commit on, so a single valid
+    // one after that means the newest commit was torn and the index may be
+    // ahead of the log.
+    boolean rebuild = commits == 0 || (commits == 1 && mSeq > 1);
+    if (commits == 0) {
+      if (!mWritable)
+        throw new IOException("no valid commit in read-only thumbnail store");
+      if (mLog.size() > 0)
+        Log.e("Discarding unreadable thumbnail store of %s", mUri);
+      ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+      header.putInt(FILE_MAGIC).putInt(MINI_THUMB_DATA_FILE_VERSION);
+      header.flip();
+      mLog.truncate(0);
+      mLog.write(header, 0);
+      mSeq = 0;
+      mGeneration = System.currentTimeMillis();
+      mEnd = mCommittedEnd = LOG_HEADER_SIZE;
+      mLive = 0;
+      writeCommitLocked();
+    } else if (mWritable) {
+      mLog.truncate(mEnd);
+    }
+    mLogMap = null;
+    mapIndexLocked(0);
+
+    ByteBuffer index = mIndexMap;
+    if (rebuild || index.getInt(0) != FILE_MAGIC || index.getInt(4) != MINI_THUMB_DATA_FILE_VERSION || index.getLong(8) != mGeneration)
+      rebuildIndexLocked();
+  }
+
+  /**
+   * Load the newest valid commit block.
+   *
+   * @return the number of valid commit blocks
+   */
+  private int readCommitLocked() throws IOException {
+    if (mLog.size() < LOG_HEADER_SIZE)
+      return 0;
+    ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+    mLog.read(header, 0);
+    if (header.getInt(0) != FILE_MAGIC || header.getInt(4) != MINI_THUMB_DATA_FILE_VERSION)
+      return 0;
+
+    int found = 0;
+    for (int i = 0; i < 2; i++) {
+      int pos = 8 + i * COMMIT_SIZE;
+      long seq = header.getLong(pos);
+      if (header.getLong(pos + 32) != checksum(header, pos))
+        continue;
+      if (found++ > 0 && seq <= mSeq)
+        continue;
+      mSeq = seq;
+      mGeneration = header.getLong(pos + 8);
+      mCommittedEnd = header.getLong(pos + 16);
+      mLive = header.getLong(pos + 24);
+    }
+    if (found == 0 || mCommittedEnd < LOG_HEADER_SIZE || mCommittedEnd > mLog.size())
+      return 0;
+    mEnd = mCommittedEnd;
+    return found;
+  }
+
+  private static long checksum(ByteBuffer buffer, int pos) {
+    CRC32 crc = new CRC32();
+    for (int i = pos; i < pos + 32; i++)
+      crc.update(buffer.get(i));
+    return crc.getValue();
+  }
+
+  private void writeCommitLocked() throws IOException {
+    mSeq++;
+    ByteBuffer commit = ByteBuffer.allocate(COMMIT_SIZE);
+    commit.putLong(mSeq).putLong(mGeneration).putLong(mCommittedEnd).putLong(mLive);
+    commit.putLong(checksum(commit, 0));
+    commit.flip();
+    mLog.write(commit, commitOffset(mSeq));
+    mUncommitted = 0;
+  }
+
+  private static int commitOffset(long seq) {
+    return 8 + (int) (seq & 1) * COMMIT_SIZE;
+  }
+
+  /**
+   * Make everything appended so far durable. Must hold mWriteLock.
+   */
+  private void commitLocked() throws IOException {
+    if (mLog == null || !mWritable || (mUncommitted == 0 && mCommittedEnd == mEnd))
       return;
+    mLog.force(false);
+    mCommittedEnd = mEnd;
+    writeCommitLocked();
+    mLog.force(false);
+  }
 
-    long pos = id * BYTES_PER_MINTHUMB;
-    FileLock lock = null;
+  private void mapIndexLocked(long minSize) throws IOException {
+    long size = Math.max(mIndex.size(), INDEX_HEADER_SIZE);
+    if (minSize > size)
+      size = (minSize + INDEX_GROW_SIZE - 1) / INDEX_GROW_SIZE * INDEX_GROW_SIZE;
+    if (mIndexMap != null && mIndexMap.capacity() >= size)
+      return;
+    if (mWritable)
+      mIndexMap = mIndex.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    else if (mIndex.size() >= INDEX_HEADER_SIZE)
+      mIndexMap = mIndex.map(FileChannel.MapMode.READ_ONLY, 0, mIndex.size());
+    else
+      mIndexMap = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+  }
+
+  private void rebuildIndexLocked() throws IOException {
+    Log.i("Rebuilding thumbnail index of %s", mUri);
+    if (!mWritable)
+      throw new IOException("stale index in read-only thumbnail store");
+    // Other processes may have the index mapped, so clear it instead of
+    // truncating it under them.
+    mapIndexLocked(INDEX_HEADER_SIZE);
+    ByteBuffer index = mIndexMap;
+    byte[] zeros = new byte[INDEX_GROW_SIZE];
+    ByteBuffer clear = index.duplicate();
+    clear.clear();
+    while (clear.hasRemaining())
+      clear.put(zeros, 0, Math.min(zeros.length, clear.remaining()));
+    index.putInt(0, FILE_MAGIC);
+    index.putInt(4, MINI_THUMB_DATA_FILE_VERSION);
+    index.putLong(8, mGeneration);
+
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    long live = 0;
+    long pos = LOG_HEADER_SIZE;
+    while (pos + RECORD_HEADER_SIZE <= mEnd) {
+      header.clear();
+      mLog.read(header, pos);
+      long id = header.getLong(0);
+      long magic = header.getLong(8);
+      int length = header.getInt(16);
+      if (id < 0 || length <= 0 || length > BYTES_PER_MINTHUMB || pos + RECORD_HEADER_SIZE + length > mEnd)
+        break;
+      live += putIndexLocked(id, magic, pos, length);
+      pos += RECORD_HEADER_SIZE + length;
+    }
+    mLive = live;
+  }
+
+  /**
+   * @return the change in live bytes
+   */
+  private long putIndexLocked(long id, long magic, long offset, int length) throws IOException {
+    long pos = INDEX_HEADER_SIZE + id * INDEX_ENTRY_SIZE;
+    mapIndexLocked(pos + INDEX_ENTRY_SIZE);
+    ByteBuffer index = mIndexMap;
+    int entry = (int) pos;
+    long delta = 0;
+    if (index.getLong(entry) != 0)
+      delta -= RECORD_HEADER_SIZE + index.getInt(entry + 16);
+    if (magic != 0)
+      delta += RECORD_HEADER_SIZE + length;
+    index.putLong(entry, 0);
+    index.putLong(entry + 8, offset);
+    index.putInt(entry + 16, length);
+    index.putLong(entry, magic);
+    return delta;
+  }
+
+  private void migrateLocked(File oldFile) {
+    Log.i("Migrating thumbnails from %s", oldFile);
+    RandomAccessFile old = null;
     try {
-      if (data != null) {
-        if (data.length > BYTES_PER_MINTHUMB - HEADER_SIZE)
-          return;
-
-        mBuffer.clear();
-        mBuffer.put((byte) 1);
-        mBuffer.putLong(magic);
-        mBuffer.putInt(data.length);
-        mBuffer.put(data);
-        mBuffer.flip();
-
-        lock = mChannel.lock(pos, BYTES_PER_MINTHUMB, false);
-        mChannel.write(mBuffer, pos);
+      old = new RandomAccessFile(oldFile, "r");
+      FileChannel channel = old.getChannel();
+      ByteBuffer slot = ByteBuffer.allocate(V7_BYTES_PER_MINTHUMB);
+      long size = channel.size();
+      for (long pos = 0; pos + V7_HEADER_SIZE <= size; pos += V7_BYTES_PER_MINTHUMB) {
+        slot.clear();
+        channel.read(slot, pos);
+        if (slot.position() < V7_HEADER_SIZE || slot.get(0) != 1)
+          continue;
+        long magic = slot.getLong(1);
+        int length = slot.getInt(1 + 8);
+        if (magic == 0 || length <= 0 || V7_HEADER_SIZE + length > slot.position())
+          continue;
+        byte[] data = new byte[length];
+        slot.position(V7_HEADER_SIZE);
+        slot.get(data);
+        appendLocked(data, pos / V7_BYTES_PER_MINTHUMB, magic);
       }
+      commitLocked();
     } catch (IOException ex) {
-      Log.e("couldn't save mini thumbnail data for %d; %s", id, ex.getMessage());
-      throw ex;
-    } catch (RuntimeException ex) {
-      Log.e("couldn't save mini thumbnail data for %d, disk full or mount read-only? %s", id, ex.getClass().toString());
+      Log.e("Unable to migrate thumbnails from %s: %s", oldFile, ex.getMessage());
+      return;
     } finally {
+      IOUtils.closeSilently(old);
+    }
+    try {
+      oldFile.delete();
+    } catch (SecurityException ex) {
+    }
+  }
+
+  private void closeLocked() {
+    IOUtils.closeSilently(mLogFile);
+    IOUtils.closeSilently(mIndexFile);
+    mLogFile = null;
+    mIndexFile = null;
+    mLog = null;
+    mIndex = null;
+    mLogMap = null;
+    mIndexMap = null;
+  }
+
+  protected void deactivate() {
+    synchronized (mWriteLock) {
       try {
-        if (lock != null)
-          lock.release();
+        commitLocked();
       } catch (IOException ex) {
+        Log.e("couldn't commit thumbnails: %s", ex.getMessage());
       }
+      closeLocked();
     }
   }
 
-  protected synchronized byte[] getMiniThumbFromFile(long id, byte[] data) {
-    RandomAccessFile r = miniThumbDataFile();
-    if (r == null)
-      return null;
+  private ByteBuffer indexMap(long id) {
+    long end = INDEX_HEADER_SIZE + (id + 1) * INDEX_ENTRY_SIZE;
+    ByteBuffer index = mIndexMap;
+    if (index != null && index.capacity() >= end)
+      return index;
+    synchronized (mWriteLock) {
+      try {
+        if (!openLocked())
+          return null;
+        if (mIndexMap.capacity() < end && mIndex.size() >= end)
+          mapIndexLocked(end);
+      } catch (IOException ex) {
+        Log.e("Got exception mapping thumbnail index: %s", ex.getMessage());
+        return null;
+      }
+      index = mIndexMap;
+      return index.capacity() >= end ? index : null;
+    }
+  }
 
-    long pos = id * BYTES_PER_MINTHUMB;
-    FileLock lock = null;
+  private ByteBuffer logMap(long end) {
+    ByteBuffer log = mLogMap;
+    if (log != null && log.capacity() >= end)
+      return log;
+    synchronized (mWriteLock) {
+      try {
+        if (!openLocked())
+          return null;
+        if (mLogMap == null || mLogMap.capacity() < end)
+          mLogMap = mLog.map(FileChannel.MapMode.READ_ONLY, 0, mLog.size());
+      } catch (IOException ex) {
+        Log.e("Got exception mapping thumbnail log: %s", ex.getMessage());
+        return null;
+      }
+      log = mLogMap;
+      return log.capacity() >= end ? log : null;
+    }
+  }
+
+  protected long getMagic(long id) {
+    if (id < 0)
+      return 0;
     try {
-      mBuffer.clear();
-      lock = mChannel.lock(pos, BYTES_PER_MINTHUMB, true);
-      int size = mChannel.read(mBuffer, pos);
-      if (size > 1 + 8 + 4) {
-        mBuffer.position(9);
-        int length = mBuffer.getInt();
-
-        if (size >= 1 + 8 + 4 + length && data.length >= length) {
-          mBuffer.get(data, 0, length);
-          return data;
-        }
+      ByteBuffer index = indexMap(id);
+      if (index != null) {
+        int entry = (int) (INDEX_HEADER_SIZE + id * INDEX_ENTRY_SIZE);
+        long magic = index.getLong(entry);
+        if (magic == 0)
+          return 0;
+        if (index.getLong(entry + 8) + RECORD_HEADER_SIZE + index.getInt(entry + 16) > mEnd)
+          refresh();
+        if (index.getLong(entry + 8) + RECORD_HEADER_SIZE + index.getInt(entry + 16) <= mEnd)
+          return index.getLong(entry);
       }
-    } catch (IOException ex) {
-      Log.e("got exception when reading thumbnail id = %d, exception: %s", id, ex.getMessage());
+    } catch (RuntimeException ex) {
+      Log.e("Got exception when reading magic, id = %d, disk full or mount read-only? %s", id, ex.getClass().toString());
+    }
+    return 0;
+  }
+
+  protected byte[] getMiniThumbFromFile(long id, byte[] data) {
+    if (id < 0)
+      return null;
+    byte[] result = readMiniThumb(id, data);
+    if (result == null && getMagic(id) != 0) {
+      // written or compacted by another process since we last looked
+      refresh();
+      result = readMiniThumb(id, data);
+    }
+    return result;
+  }
+
+  private byte[] readMiniThumb(long id, byte[] data) {
+    try {
+      ByteBuffer index = indexMap(id);
+      if (index == null)
+        return null;
+      int entry = (int) (INDEX_HEADER_SIZE + id * INDEX_ENTRY_SIZE);
+      long magic = index.getLong(entry);
+      long offset = index.getLong(entry + 8);
+      int length = index.getInt(entry + 16);
+      if (magic == 0 || length <= 0 || length > data.length || offset < LOG_HEADER_SIZE || offset + RECORD_HEADER_SIZE + length > mEnd)
+        return null;
+
+      ByteBuffer log = logMap(offset + RECORD_HEADER_SIZE + length);
+      if (log == null)
+        return null;
+      int pos = (int) offset;
+      if (log.getLong(pos) != id || log.getLong(pos + 8) != magic || log.getInt(pos + 16) != length)
+        return null;
+      ByteBuffer record = log.duplicate();
+      record.position(pos + RECORD_HEADER_SIZE);
+      record.get(data, 0, length);
+      return data;
     } catch (RuntimeException ex) {
       Log.e("Got exception when reading thumbnail, id = %d, disk full or mount read-only? %s", id, ex.getClass().toString());
-    } finally {
+    }
+    return null;
+  }
+
+  private void appendLocked(byte[] data, long id, long magic) throws IOException {
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+    record.putLong(id).putLong(magic).putInt(data.length).put(data);
+    record.flip();
+    long offset = mEnd;
+    while (record.hasRemaining())
+      mLog.write(record, offset + record.position());
+    mEnd = offset + RECORD_HEADER_SIZE + data.length;
+    mLive += putIndexLocked(id, magic, offset, data.length);
+    mUncommitted++;
+  }
+
+  protected void saveMiniThumbToFile(byte[] data, long id, long magic) throws IOException {
+    saveMiniThumbsToFile(new byte[][]{data}, new long[]{id}, new long[]{magic}, 1);
+  }
+
+  /**
+   * Save count thumbnails holding the file lock once and committing them
+   * together, which costs two syncs for the whole batch instead of two per
+   * thumbnail. Invalid entries are skipped.
+   */
+  protected void saveMiniThumbsToFile(byte[][] data, long[] ids, long[] magics, int count) throws IOException {
+    synchronized (mWriteLock) {
+      if (count <= 0 || !openLocked() || !mWritable)
+        return;
+      FileLock lock = null;
       try {
-        if (lock != null)
-          lock.release();
+        lock = lockLocked();
+        refreshLocked();
+        for (int i = 0; i < count; i++) {
+          if (data[i] != null && data[i].length > 0 && data[i].length <= BYTES_PER_MINTHUMB && ids[i] >= 0 && magics[i] != 0)
+            appendLocked(data[i], ids[i], magics[i]);
+        }
+        commitLocked();
       } catch (IOException ex) {
+        Log.e("couldn't save %d mini thumbnails; %s", count, ex.getMessage());
+        throw ex;
+      } catch (RuntimeException ex) {
+        Log.e("couldn't save %d mini thumbnails, disk full or mount read-only? %s", count, ex.getClass().toString());
+      } finally {
+        unlock(lock);
       }
     }
-    return null;
   }
-}
\ No newline at end of file
+
+  /**
+   * Forget the thumbnail of id, its data is dropped by the next compaction.
+   */
+  protected void removeMiniThumb(long id) {
+    if (id < 0)
+      return;
+    synchronized (mWriteLock) {
+      if (!openLocked() || !mWritable || getMagic(id) == 0)
+        return;
+      FileLock lock = null;
+      try {
+        lock = lockLocked();
+        refreshLocked();
+        mLive += putIndexLocked(id, 0, 0, 0);
+        mUncommitted++;
+        commitLocked();
+      } catch (IOException ex) {
+        Log.e("couldn't remove mini thumbnail data for %d; %s", id, ex.getMessage());
+      } finally {
+        unlock(lock);
+      }
+    }
+  }
+
+  /**
+   * Make the thumbnails saved so far durable.
+   */
+  protected void flush() {
+    synchronized (mWriteLock) {
+      if (mLog == null || !mWritable)
+        return;
+      FileLock lock = null;
+      try {
+        lock = lockLocked();
+        commitLocked();
+      } catch (IOException ex) {
+        Log.e("couldn't commit thumbnails: %s", ex.getMessage());
+      } finally {
+        unlock(lock);
+      }
+    }
+  }
+
+  /**
+   * Compact the log if dead records outweigh the live ones, e.g. after many
+   * thumbnails were removed.
+   */
+  protected void compactIfNeeded() {
+    compact(true);
+  }
+
+  private boolean needsCompactLocked() {
+    return mEnd - LOG_HEADER_SIZE - mLive > Math.max(mLive, MIN_COMPACT_BYTES);
+  }
+
+  /**
+   * Rewrite the log without removed and overwritten thumbnails.
+   */
+  protected void compact() {
+    compact(false);
+  }
+
+  private void compact(boolean ifNeeded) {
+    synchronized (mWriteLock) {
+      if (!openLocked() || !mWritable)
+        return;
+      FileLock lock = null;
+      try {
+        lock = lockLocked();
+        refreshLocked();
+        if (!ifNeeded || needsCompactLocked())
+          compactLocked();
+      } catch (IOException ex) {
+        Log.e("couldn't compact thumbnails: %s", ex.getMessage());
+      } finally {
+        unlock(lock);
+      }
+    }
+  }
+
+  private void compactLocked() {
+    File logFile = new File(dataFilePath("thumbdata", MINI_THUMB_DATA_FILE_VERSION));
+    File tmpFile = new File(logFile.getPath() + ".tmp");
+    Log.i("Compacting %s: %d of %d bytes live", logFile, mLive, mEnd);
+    RandomAccessFile tmp = null;
+    try {
+      commitLocked();
+      tmp = new RandomAccessFile(tmpFile, "rw");
+      tmp.setLength(0);
+      FileChannel out = tmp.getChannel();
+      ByteBuffer index = mIndexMap;
+      long entries = (index.capacity() - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE;
+      long[] offsets = new long[(int) Math.min(entries, Integer.MAX_VALUE)];
+      ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + BYTES_PER_MINTHUMB);
+      long end = LOG_HEADER_SIZE;
+      long live = 0;
+      for (int id = 0; id < offsets.length; id++) {
+        int entry = INDEX_HEADER_SIZE + id * INDEX_ENTRY_SIZE;
+        long magic = index.getLong(entry);
+        long offset = index.getLong(entry + 8);
+        int length = index.getInt(entry + 16);
+        if (magic == 0 || length <= 0 || length > BYTES_PER_MINTHUMB || offset + RECORD_HEADER_SIZE + length > mEnd)
+          continue;
+        record.clear();
+        record.limit(RECORD_HEADER_SIZE + length);
+        mLog.read(record, offset);
+        if (record.hasRemaining() || record.getLong(0) != id || record.getLong(8) != magic)
+          continue;
+        record.flip();
+        out.write(record, end);
+        offsets[id] = end;
+        end += RECORD_HEADER_SIZE + length;
+        live += RECORD_HEADER_SIZE + length;
+      }
+
+      // Commit 1 goes to the slot writeCommitLocked() uses for odd sequence
+      // numbers, so commit 2 lands in the other slot and a torn write of it
+      // still leaves this one. The zeroed slot fails its CRC.
+      long generation = mGeneration + 1;
+      ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+      header.putInt(FILE_MAGIC).putInt(MINI_THUMB_DATA_FILE_VERSION);
+      int slot = commitOffset(1);
+      header.position(slot);
+      header.putLong(1).putLong(generation).putLong(end).putLong(live);
+      header.putLong(checksum(header, slot));
+      header.clear();
+      out.write(header, 0);
+      out.force(false);
+      tmp.close();
+      tmp = null;
+
+      // Once the log is replaced, an index of the old generation is rebuilt on
+      // open, so a crash between the two steps loses nothing.
+      if (!tmpFile.renameTo(logFile))
+        throw new IOException("unable to replace " + logFile);
+      reopenLogLocked();
+      mSeq = 1;
+      mGeneration = generation;
+      mEnd = mCommittedEnd = end;
+      mLive = live;
+      index = mIndexMap;
+      for (int id = 0; id < offsets.length && INDEX_HEADER_SIZE + (long) id * INDEX_ENTRY_SIZE < index.capacity(); id++) {
+        int entry = INDEX_HEADER_SIZE + id * INDEX_ENTRY_SIZE;
+        if (offsets[id] == 0)
+          index.putLong(entry, 0);
+        else
+          index.putLong(entry + 8, offsets[id]);
+      }
+      index.putLong(8, generation);
+    } catch (IOException ex) {
+      Log.e("couldn't compact thumbnails: %s", ex.getMessage());
+      IOUtils.closeSilently(tmp);
+      tmpFile.delete();
+      closeLocked();
+    }
+  }
+}
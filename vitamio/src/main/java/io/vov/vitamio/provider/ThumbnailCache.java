@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.provider;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps recently decoded video thumbnails in memory, keyed by original media
+ * id and kind, so scrolling a grid back and forth doesn't decode the same
+ * JPEGs again. The cache is bounded by bitmap bytes, 1/8 of the heap by
+ * default, and trims itself when the system asks for memory.
+ * <p/>
+ * Bitmaps handed out by the cache may still be on screen, so they are never
+ * reused. Only bitmaps given back with {@link #release(Bitmap)} by their sole
+ * owner go to a small pool, which the next decode that fits takes through
+ * {@link BitmapFactory.Options#inBitmap}.
+ */
+public class ThumbnailCache implements ComponentCallbacks2 {
+  private static final int DEFAULT_MEMORY_FRACTION = 8;
+  private static final int POOL_FRACTION = 4;
+  private static ThumbnailCache sInstance;
+
+  private final LruCache<Long, Entry> mCache;
+  private final List<Bitmap> mPool = new ArrayList<Bitmap>();
+  private final WeakHashMap<Bitmap, Boolean> mShared = new WeakHashMap<Bitmap, Boolean>();
+  private int mPoolSize;
+  private long mHits;
+  private long mMisses;
+  private long mReuses;
+
+  private static class Entry {
+    final Bitmap mBitmap;
+    final long mMagic;
+
+    Entry(Bitmap bitmap, long magic) {
+      mBitmap = bitmap;
+      mMagic = magic;
+    }
+  }
+
+  public ThumbnailCache(int maxBytes) {
+    mCache = new LruCache<Long, Entry>(maxBytes) {
+      @Override
+      protected int sizeOf(Long key, Entry value) {
+        return byteCount(value.mBitmap);
+      }
+    };
+  }
+
+  /**
+   * @return the shared cache, registered for memory trim callbacks of the
+   *         application
+   */
+  public static synchronized ThumbnailCache getInstance(Context ctx) {
+    if (sInstance == null) {
+      sInstance = new ThumbnailCache((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_FRACTION));
+      ctx.getApplicationContext().registerComponentCallbacks(sInstance);
+    }
+    return sInstance;
+  }
+
+  private static long key(long origId, int kind) {
+    return origId << 3 | (kind & 7);
+  }
+
+  /**
+   * @param magic the current magic of the thumbnail, a cached bitmap with a
+   *              different one is stale and dropped
+   * @return the cached thumbnail or null, it may be shared with other callers
+   *         and must not be recycled
+   */
+  public Bitmap get(long origId, int kind, long magic) {
+    Long key = key(origId, kind);
+    Entry entry = mCache.get(key);
+    if (entry != null && (entry.mMagic != magic || entry.mBitmap.isRecycled())) {
+      mCache.remove(key);
+      entry = null;
+    }
+    synchronized (this) {
+      if (entry == null)
+        mMisses++;
+      else
+        mHits++;
+    }
+    return entry == null ? null : entry.mBitmap;
+  }
+
+  public void put(long origId, int kind, long magic, Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled())
+      return;
+    synchronized (this) {
+      mShared.put(bitmap, Boolean.TRUE);
+    }
+    mCache.put(key(origId, kind), new Entry(bitmap, magic));
+  }
+
+  /**
+   * Give back a bitmap the caller owns and no longer draws, e.g. the result
+   * of a cancelled request, so a later decode can reuse its memory. Bitmaps
+   * that ever went through the cache are ignored since others may hold them.
+   */
+  public void release(Bitmap bitmap) {
+    if (bitmap == null)
+      return;
+    synchronized (this) {
+      if (!mShared.containsKey(bitmap))
+        addReusable(bitmap);
+    }
+  }
+
+  public void remove(long origId) {
+    mCache.remove(key(origId, MediaStore.Video.Thumbnails.MINI_KIND));
+    mCache.remove(key(origId, MediaStore.Video.Thumbnails.MICRO_KIND));
+  }
+
+  /**
+   * Drop all cached and pooled bitmaps.
+   */
+  public void clear() {
+    mCache.evictAll();
+    synchronized (this) {
+      mPool.clear();
+      mPoolSize = 0;
+    }
+  }
+
+  /**
+   * Set {@link BitmapFactory.Options#inBitmap} to a pooled bitmap the image
+   * described by options (after a bounds only decode) can be decoded into,
+   * and make the result mutable so it can be pooled in turn.
+   */
+  public void setReusable(BitmapFactory.Options options) {
+    options.inMutable = true;
+    synchronized (this) {
+      for (int i = 0; i < mPool.size(); i++) {
+        Bitmap candidate = mPool.get(i);
+        if (canReuse(candidate, options)) {
+          mPool.remove(i);
+          mPoolSize -= byteCount(candidate);
+          mReuses++;
+          options.inBitmap = candidate;
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Take a pooled bitmap to draw a width x height ARGB_8888 image into.
+   *
+   * @return a mutable bitmap of exactly that size, or null if none fits
+   */
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  public synchronized Bitmap obtainBitmap(int width, int height) {
+    for (int i = 0; i < mPool.size(); i++) {
+      Bitmap candidate = mPool.get(i);
+      boolean exact = candidate.getWidth() == width && candidate.getHeight() == height && candidate.getConfig() == Bitmap.Config.ARGB_8888;
+      if (exact || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && width * height * 4 <= candidate.getAllocationByteCount())) {
+        mPool.remove(i);
+        mPoolSize -= byteCount(candidate);
+        mReuses++;
+        if (!exact)
+          candidate.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  private synchronized void addReusable(Bitmap bitmap) {
+    if (bitmap.isRecycled() || !bitmap.isMutable())
+      return;
+    int size = byteCount(bitmap);
+    int maxSize = mCache.maxSize() / POOL_FRACTION;
+    if (size > maxSize)
+      return;
+    while (mPoolSize + size > maxSize)
+      mPoolSize -= byteCount(mPool.remove(0));
+    mPool.add(bitmap);
+    mPoolSize += size;
+  }
+
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private static boolean canReuse(Bitmap candidate, BitmapFactory.Options options) {
+    if (candidate.isRecycled())
+      return false;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      int sampleSize = Math.max(1, options.inSampleSize);
+      int width = options.outWidth / sampleSize;
+      int height = options.outHeight / sampleSize;
+      return width * height * bytesPerPixel(candidate.getConfig()) <= candidate.getAllocationByteCount();
+    }
+    return candidate.getWidth() == options.outWidth && candidate.getHeight() == options.outHeight && options.inSampleSize <= 1;
+  }
+
+  private static int bytesPerPixel(Bitmap.Config config) {
+    if (config == Bitmap.Config.ARGB_8888)
+      return 4;
+    else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+      return 2;
+    return 1;
+  }
+
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private static int byteCount(Bitmap bitmap) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+      return bitmap.getAllocationByteCount();
+    return bitmap.getByteCount();
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    if (level >= TRIM_MEMORY_MODERATE) {
+      clear();
+    } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      mCache.trimToSize(mCache.maxSize() / 2);
+      synchronized (this) {
+        mPool.clear();
+        mPoolSize = 0;
+      }
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    clear();
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {
+  }
+
+  public synchronized long getHitCount() {
+    return mHits;
+  }
+
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  /**
+   * @return how many decodes reused a pooled bitmap
+   */
+  public synchronized long getReuseCount() {
+    return mReuses;
+  }
+
+  public int getEvictionCount() {
+    return mCache.evictionCount();
+  }
+
+  /**
+   * @return the bytes held by cached bitmaps
+   */
+  public int size() {
+    return mCache.size();
+  }
+
+  public int maxSize() {
+    return mCache.maxSize();
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.provider;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.os.RemoteException;
+
+import io.vov.vitamio.MediaMetadataRetriever;
+import io.vov.vitamio.ThumbnailUtils;
+import io.vov.vitamio.provider.MediaStore.Video;
+import io.vov.vitamio.utils.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background stage of {@link io.vov.vitamio.MediaScanner} creating the micro
+ * thumbnails of the videos it inserts or updates, so they don't have to be
+ * made on first display. A single worker reuses one retriever for all files,
+ * and for {@link #BATCH_SIZE} videos at a time saves the thumbnails to
+ * {@link MiniThumbFile} in one commit, then sets
+ * {@link Video.Media#MINI_THUMB_MAGIC} in one provider batch.
+ */
+public class ThumbnailStage {
+  public static final int BATCH_SIZE = 32;
+  private static final int MAX_QUEUED = 256;
+  private static final int[] JPEG_QUALITIES = {75, 50, 30};
+  private static final Item END = new Item(-1, null);
+  private static final long OFFER_TIMEOUT_MS = 1000;
+
+  private final Context mContext;
+  private final BlockingQueue<Item> mQueue = new ArrayBlockingQueue<Item>(MAX_QUEUED);
+  private final Random mRandom = new Random();
+  private volatile boolean mCancelled;
+  private volatile boolean mFinished;
+  private Thread mWorker;
+
+  private static class Item {
+    final long mId;
+    final String mPath;
+
+    Item(long id, String path) {
+      mId = id;
+      mPath = path;
+    }
+  }
+
+  private static class Thumbnails {
+    final byte[][] mData = new byte[BATCH_SIZE][];
+    final long[] mIds = new long[BATCH_SIZE];
+    final long[] mMagics = new long[BATCH_SIZE];
+    int mCount;
+
+    void add(byte[] data, long id, long magic) {
+      mData[mCount] = data;
+      mIds[mCount] = id;
+      mMagics[mCount] = magic;
+      mCount++;
+    }
+
+    void clear() {
+      Arrays.fill(mData, null);
+      mCount = 0;
+    }
+  }
+
+  public ThumbnailStage(Context ctx) {
+    mContext = ctx.getApplicationContext();
+  }
+
+  public synchronized void start() {
+    if (mWorker != null)
+      return;
+    mWorker = new Thread("VitamioScannerThumbnails") {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        work();
+      }
+    };
+    mWorker.start();
+  }
+
+  /**
+   * Queue the video with row id at path, waiting while the queue is full so
+   * a fast scan doesn't pile up work. Nothing is queued once the worker has
+   * stopped.
+   */
+  public void add(long id, String path) {
+    Item item = new Item(id, path);
+    try {
+      while (!mCancelled && !mFinished) {
+        if (mQueue.offer(item, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+          return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * No more videos will be added, the worker finishes the queue and stops.
+   */
+  public void finish() {
+    mFinished = true;
+    mQueue.offer(END);
+  }
+
+  /**
+   * Drop the queued videos, the thumbnails made so far are still committed.
+   */
+  public void cancel() {
+    mCancelled = true;
+    mQueue.clear();
+    mQueue.offer(END);
+  }
+
+  private void work() {
+    MediaMetadataRetriever retriever = null;
+    ContentProviderClient provider = mContext.getContentResolver().acquireContentProviderClient(MediaStore.AUTHORITY);
+    MiniThumbFile thumbFile = MiniThumbFile.instance(Video.Media.CONTENT_URI);
+    ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>(BATCH_SIZE);
+    Thumbnails thumbnails = new Thumbnails();
+    try {
+      retriever = new MediaMetadataRetriever(mContext);
+      while (!mCancelled) {
+        // finish() may not get END in if the queue is full, so poll for the flag too
+        Item item = mQueue.poll(OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (item == END || (item == null && mFinished))
+          break;
+        if (item == null)
+          continue;
+
+        try {
+          byte[] data = createThumbnail(retriever, item.mPath);
+          if (data == null)
+            continue;
+          long magic;
+          do {
+            magic = mRandom.nextLong();
+          } while (magic == 0);
+          ContentProviderOperation op = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(Video.Media.CONTENT_URI, item.mId)).withValue(Video.Media.MINI_THUMB_MAGIC, magic).build();
+          thumbnails.add(data, item.mId, magic);
+          batch.add(op);
+        } catch (Exception e) {
+          Log.e("Unable to save thumbnail of %s: %s", item.mPath, e.getMessage());
+        }
+        if (batch.size() >= BATCH_SIZE)
+          commit(provider, thumbFile, thumbnails, batch);
+      }
+    } catch (Exception e) {
+      Log.e("ThumbnailStage", e);
+    } finally {
+      // nothing drains the queue any more, make add() return right away
+      mCancelled = true;
+      mQueue.clear();
+      commit(provider, thumbFile, thumbnails, batch);
+      if (provider != null)
+        provider.release();
+      if (retriever != null)
+        retriever.release();
+    }
+  }
+
+  private byte[] createThumbnail(MediaMetadataRetriever retriever, String path) {
+    Bitmap bitmap = null;
+    try {
+      retriever.setDataSource(path);
+      bitmap = retriever.getScaledFrameAtTime(-1, ThumbnailUtils.TARGET_SIZE_MICRO_THUMBNAIL_WIDTH, ThumbnailUtils.TARGET_SIZE_MICRO_THUMBNAIL_HEIGHT, null);
+      if (bitmap == null)
+        return null;
+      ByteArrayOutputStream out = new ByteArrayOutputStream(MiniThumbFile.BYTES_PER_MINTHUMB);
+      for (int quality : JPEG_QUALITIES) {
+        out.reset();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+        if (out.size() <= MiniThumbFile.BYTES_PER_MINTHUMB)
+          return out.toByteArray();
+      }
+    } catch (Exception e) {
+      Log.e("Unable to create thumbnail of %s: %s", path, e.getMessage());
+    } finally {
+      if (bitmap != null)
+        bitmap.recycle();
+    }
+    return null;
+  }
+
+  /**
+   * Save the thumbnails of a batch, then point their videos at them.
+   */
+  private void commit(ContentProviderClient provider, MiniThumbFile thumbFile, Thumbnails thumbnails, ArrayList<ContentProviderOperation> batch) {
+    if (batch.isEmpty())
+      return;
+    try {
+      thumbFile.saveMiniThumbsToFile(thumbnails.mData, thumbnails.mIds, thumbnails.mMagics, thumbnails.mCount);
+      if (provider != null)
+        provider.applyBatch(batch);
+    } catch (IOException e) {
+      Log.e("ThumbnailStage.commit", e);
+    } catch (RemoteException e) {
+      Log.e("ThumbnailStage.commit", e);
+    } catch (OperationApplicationException e) {
+      Log.e("ThumbnailStage.commit", e);
+    } catch (RuntimeException e) {
+      Log.e("ThumbnailStage.commit", e);
+    }
+    batch.clear();
+    thumbnails.clear();
+  }
+}
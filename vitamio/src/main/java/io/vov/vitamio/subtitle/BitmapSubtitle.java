@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An image subtitle (DVB, PGS, VobSub...) backed by pooled memory. The pixels
+ * are RGBA, 4 bytes per pixel. Both the buffer and the bitmap are owned by the
+ * {@link BitmapSubtitlePool} and must be given back with {@link #release()}
+ * once the image is no longer drawn.
+ */
+public class BitmapSubtitle {
+  private final BitmapSubtitlePool mPool;
+  private ByteBuffer mPixels;
+  private Bitmap mBitmap;
+  private int mWidth;
+  private int mHeight;
+
+  BitmapSubtitle(BitmapSubtitlePool pool, ByteBuffer pixels, int width, int height) {
+    mPool = pool;
+    mPixels = pixels;
+    mWidth = width;
+    mHeight = height;
+  }
+
+  public int getWidth() {
+    return mWidth;
+  }
+
+  public int getHeight() {
+    return mHeight;
+  }
+
+  /**
+   * @return the direct buffer holding the pixels, positioned at 0, or null
+   *         once released
+   */
+  public ByteBuffer getPixels() {
+    return mPixels;
+  }
+
+  /**
+   * Copy the pixels into a pooled ARGB_8888 bitmap, reused across subtitles of
+   * the same size. Don't recycle it, call {@link #release()} instead.
+   *
+   * @return the bitmap, or null if released or the pixels are incomplete
+   */
+  public Bitmap getBitmap() {
+    if (mBitmap == null && mPixels != null && mWidth > 0 && mHeight > 0 && mPixels.limit() >= mWidth * mHeight * 4) {
+      mBitmap = mPool.obtainBitmap(mWidth, mHeight);
+      mPixels.position(0);
+      mBitmap.copyPixelsFromBuffer(mPixels);
+      mPixels.position(0);
+    }
+    return mBitmap;
+  }
+
+  /**
+   * Give the buffer and the bitmap back to the pool, neither may be used
+   * afterwards. Calling it twice is harmless.
+   */
+  public void release() {
+    if (mPixels != null) {
+      mPool.recycleBuffer(mPixels);
+      mPixels = null;
+    }
+    if (mBitmap != null) {
+      mPool.recycleBitmap(mBitmap);
+      mBitmap = null;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recycles the direct buffers and bitmaps of {@link BitmapSubtitle}s, so a
+ * stream updating its images several times per second doesn't allocate for
+ * each of them. At most {@link #MAX_POOLED} buffers and bitmaps are kept.
+ */
+public class BitmapSubtitlePool {
+  public static final int MAX_POOLED = 3;
+
+  private final List<ByteBuffer> mBuffers = new ArrayList<ByteBuffer>(MAX_POOLED);
+  private final List<Bitmap> mBitmaps = new ArrayList<Bitmap>(MAX_POOLED);
+
+  /**
+   * Copy the pixels of a subtitle image into a pooled buffer.
+   */
+  public BitmapSubtitle obtain(byte[] pixels, int width, int height) {
+    ByteBuffer buffer = obtainBuffer(pixels.length);
+    buffer.put(pixels);
+    buffer.flip();
+    return new BitmapSubtitle(this, buffer, width, height);
+  }
+
+  private synchronized ByteBuffer obtainBuffer(int size) {
+    int best = -1;
+    for (int i = 0; i < mBuffers.size(); i++) {
+      int capacity = mBuffers.get(i).capacity();
+      if (capacity >= size && (best < 0 || capacity < mBuffers.get(best).capacity()))
+        best = i;
+    }
+    if (best >= 0) {
+      ByteBuffer buffer = mBuffers.remove(best);
+      buffer.clear();
+      buffer.limit(size);
+      return buffer;
+    }
+    return ByteBuffer.allocateDirect(size);
+  }
+
+  synchronized void recycleBuffer(ByteBuffer buffer) {
+    if (mBuffers.size() >= MAX_POOLED) {
+      int smallest = 0;
+      for (int i = 1; i < mBuffers.size(); i++) {
+        if (mBuffers.get(i).capacity() < mBuffers.get(smallest).capacity())
+          smallest = i;
+      }
+      if (mBuffers.get(smallest).capacity() >= buffer.capacity())
+        return;
+      mBuffers.remove(smallest);
+    }
+    mBuffers.add(buffer);
+  }
+
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  synchronized Bitmap obtainBitmap(int width, int height) {
+    for (int i = 0; i < mBitmaps.size(); i++) {
+      Bitmap bitmap = mBitmaps.get(i);
+      if (bitmap.getWidth() == width && bitmap.getHeight() == height)
+        return mBitmaps.remove(i);
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      for (int i = 0; i < mBitmaps.size(); i++) {
+        Bitmap bitmap = mBitmaps.get(i);
+        if (bitmap.getAllocationByteCount() >= width * height * 4) {
+          mBitmaps.remove(i);
+          bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+          return bitmap;
+        }
+      }
+    }
+    return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  synchronized void recycleBitmap(Bitmap bitmap) {
+    if (mBitmaps.size() >= MAX_POOLED)
+      mBitmaps.remove(0).recycle();
+    mBitmaps.add(bitmap);
+  }
+
+  /**
+   * Drop the pooled memory, subtitles still in use stay valid.
+   */
+  public synchronized void clear() {
+    for (Bitmap bitmap : mBitmaps)
+      bitmap.recycle();
+    mBitmaps.clear();
+    mBuffers.clear();
+  }
+}
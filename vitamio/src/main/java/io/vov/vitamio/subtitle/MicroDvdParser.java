@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MicroDVD parser for <code>{start}{end}text</code> lines timed in frames.
+ * A leading <code>{1}{1}fps</code> line sets the frame rate, otherwise
+ * {@link #DEFAULT_FRAME_RATE} is assumed.
+ */
+public class MicroDvdParser extends SubtitleParser {
+  public static final float DEFAULT_FRAME_RATE = 23.976f;
+
+  private float mFrameRate;
+
+  public MicroDvdParser() {
+    this(DEFAULT_FRAME_RATE);
+  }
+
+  public MicroDvdParser(float frameRate) {
+    mFrameRate = frameRate;
+  }
+
+  @Override
+  public List<SubtitleCue> parse(BufferedReader reader) throws IOException {
+    List<SubtitleCue> cues = new ArrayList<SubtitleCue>();
+    long[] frames = new long[2];
+    String line;
+    boolean first = true;
+    while ((line = reader.readLine()) != null) {
+      int pos = parseFrames(line, frames);
+      if (pos < 0)
+        continue;
+      String text = line.substring(pos);
+      if (first && frames[0] == 1 && frames[1] == 1) {
+        try {
+          float fps = Float.parseFloat(text.trim());
+          if (fps > 0)
+            mFrameRate = fps;
+          first = false;
+          continue;
+        } catch (NumberFormatException e) {
+        }
+      }
+      first = false;
+      long start = (long) (frames[0] * 1000 / mFrameRate);
+      long end = (long) (frames[1] * 1000 / mFrameRate);
+      if (end > start)
+        cues.add(new SubtitleCue(start, end, stripTags(text, '{', '}').replace('|', '\n').trim()));
+    }
+    return cues;
+  }
+
+  private static int parseFrames(String line, long[] frames) {
+    int pos = 0;
+    for (int f = 0; f < 2; f++) {
+      if (pos >= line.length() || line.charAt(pos) != '{')
+        return -1;
+      int close = line.indexOf('}', pos);
+      if (close < 0)
+        return -1;
+      long value = 0;
+      for (int i = pos + 1; i < close; i++) {
+        char c = line.charAt(i);
+        if (c < '0' || c > '9')
+          return -1;
+        value = value * 10 + (c - '0');
+      }
+      if (close == pos + 1)
+        return -1;
+      frames[f] = value;
+      pos = close + 1;
+    }
+    return pos;
+  }
+}
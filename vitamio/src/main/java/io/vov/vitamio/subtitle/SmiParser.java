@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * SAMI parser. Each <code>&lt;SYNC Start=ms&gt;</code> block lasts until the
+ * next one, an empty or <code>&amp;nbsp;</code> block clears the text. The
+ * last block is shown until the end.
+ */
+public class SmiParser extends SubtitleParser {
+  private static final String SYNC = "<sync";
+  private static final String START = "start";
+
+  @Override
+  public List<SubtitleCue> parse(BufferedReader reader) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    String line;
+    while ((line = reader.readLine()) != null)
+      sb.append(line).append('\n');
+    String content = sb.toString();
+    String lower = content.toLowerCase(Locale.US);
+
+    List<SubtitleCue> cues = new ArrayList<SubtitleCue>();
+    long pendingStart = -1;
+    String pendingText = null;
+    int pos = lower.indexOf(SYNC);
+    while (pos >= 0) {
+      int tagEnd = lower.indexOf('>', pos);
+      if (tagEnd < 0)
+        break;
+      long start = parseStart(lower, pos + SYNC.length(), tagEnd);
+      int next = lower.indexOf(SYNC, tagEnd);
+      int bodyEnd = next >= 0 ? next : lower.indexOf("</body", tagEnd);
+      if (bodyEnd < 0)
+        bodyEnd = content.length();
+      if (start < 0) {
+        pos = next;
+        continue;
+      }
+
+      if (pendingText != null && start > pendingStart)
+        cues.add(new SubtitleCue(pendingStart, start, pendingText));
+      String text = cleanText(content.substring(tagEnd + 1, bodyEnd));
+      pendingStart = start;
+      pendingText = text.length() > 0 ? text : null;
+      pos = next;
+    }
+    if (pendingText != null)
+      cues.add(new SubtitleCue(pendingStart, Long.MAX_VALUE, pendingText));
+    return cues;
+  }
+
+  private static long parseStart(String tag, int from, int to) {
+    int attr = tag.indexOf(START, from);
+    if (attr < 0 || attr >= to)
+      return -1;
+    int i = tag.indexOf('=', attr);
+    if (i < 0 || i >= to)
+      return -1;
+    i++;
+    while (i < to && (tag.charAt(i) == ' ' || tag.charAt(i) == '"' || tag.charAt(i) == '\''))
+      i++;
+    long value = 0;
+    int digits = 0;
+    while (i < to && tag.charAt(i) >= '0' && tag.charAt(i) <= '9') {
+      value = value * 10 + (tag.charAt(i++) - '0');
+      digits++;
+    }
+    return digits > 0 ? value : -1;
+  }
+
+  static String cleanText(String html) {
+    StringBuilder sb = new StringBuilder(html.length());
+    int i = 0;
+    while (i < html.length()) {
+      char c = html.charAt(i);
+      if (c == '<') {
+        int close = html.indexOf('>', i);
+        if (close < 0)
+          break;
+        if (html.regionMatches(true, i, "<br", 0, 3))
+          sb.append('\n');
+        i = close + 1;
+      } else if (c == '&') {
+        int semi = html.indexOf(';', i);
+        String entity = semi > i && semi - i < 8 ? html.substring(i + 1, semi).toLowerCase(Locale.US) : null;
+        if ("nbsp".equals(entity))
+          sb.append(' ');
+        else if ("amp".equals(entity))
+          sb.append('&');
+        else if ("lt".equals(entity))
+          sb.append('<');
+        else if ("gt".equals(entity))
+          sb.append('>');
+        else if ("quot".equals(entity))
+          sb.append('"');
+        else
+          entity = null;
+        if (entity != null) {
+          i = semi + 1;
+        } else {
+          sb.append(c);
+          i++;
+        }
+      } else if (c == '\r' || c == '\n') {
+        i++;
+      } else {
+        sb.append(c);
+        i++;
+      }
+    }
+    return sb.toString().trim();
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SubRip parser, also reading WebVTT since both share the
+ * <code>start --&gt; end</code> cue timing line. Cue numbers, the WEBVTT
+ * header, NOTE and STYLE blocks and cue settings are skipped.
+ */
+public class SrtParser extends SubtitleParser {
+  private static final String ARROW = "-->";
+
+  @Override
+  public List<SubtitleCue> parse(BufferedReader reader) throws IOException {
+    List<SubtitleCue> cues = new ArrayList<SubtitleCue>();
+    StringBuilder text = new StringBuilder();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      int arrow = line.indexOf(ARROW);
+      if (arrow < 0)
+        continue;
+      long start = parseClockTime(line, 0, arrow);
+      int endStart = arrow + ARROW.length();
+      while (endStart < line.length() && line.charAt(endStart) == ' ')
+        endStart++;
+      int endEnd = line.indexOf(' ', endStart);
+      long end = parseClockTime(line, endStart, endEnd < 0 ? line.length() : endEnd);
+
+      text.setLength(0);
+      while ((line = reader.readLine()) != null && line.trim().length() > 0) {
+        if (text.length() > 0)
+          text.append('\n');
+        text.append(line);
+      }
+      if (start >= 0 && end > start && text.length() > 0)
+        cues.add(new SubtitleCue(start, end, stripTags(text.toString(), '<', '>')));
+      if (line == null)
+        break;
+    }
+    return cues;
+  }
+}
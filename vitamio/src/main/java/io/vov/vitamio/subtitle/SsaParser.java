@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SubStation Alpha (SSA/ASS) parser. Only the <code>Dialogue</code> lines of
+ * the <code>[Events]</code> section are read, styles and override tags are
+ * dropped.
+ */
+public class SsaParser extends SubtitleParser {
+  private static final String FORMAT = "Format:";
+  private static final String DIALOGUE = "Dialogue:";
+
+  private int mFieldCount = 10;
+  private int mStartField = 1;
+  private int mEndField = 2;
+  private boolean mInEvents = false;
+
+  @Override
+  public List<SubtitleCue> parse(BufferedReader reader) throws IOException {
+    List<SubtitleCue> cues = new ArrayList<SubtitleCue>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      SubtitleCue cue = parseLine(line);
+      if (cue != null)
+        cues.add(cue);
+    }
+    return cues;
+  }
+
+  /**
+   * Feed one line of the file, section headers and the event format are
+   * remembered across calls.
+   *
+   * @return the cue of a dialogue line, or null
+   */
+  public SubtitleCue parseLine(String line) {
+    if (line.startsWith("[")) {
+      mInEvents = line.trim().equalsIgnoreCase("[Events]");
+      return null;
+    }
+    if (!mInEvents)
+      return null;
+    if (line.startsWith(FORMAT)) {
+      parseFormat(line);
+      return null;
+    }
+    if (!line.startsWith(DIALOGUE))
+      return null;
+
+    long start = -1, end = -1;
+    int field = 0;
+    int pos = DIALOGUE.length();
+    while (field < mFieldCount - 1) {
+      int comma = line.indexOf(',', pos);
+      if (comma < 0)
+        return null;
+      if (field == mStartField)
+        start = parseClockTime(line, pos, comma);
+      else if (field == mEndField)
+        end = parseClockTime(line, pos, comma);
+      pos = comma + 1;
+      field++;
+    }
+    if (start < 0 || end <= start)
+      return null;
+    return new SubtitleCue(start, end, cleanText(line.substring(pos)));
+  }
+
+  private void parseFormat(String line) {
+    int field = 0;
+    int pos = FORMAT.length();
+    while (pos <= line.length()) {
+      int comma = line.indexOf(',', pos);
+      if (comma < 0)
+        comma = line.length();
+      String name = line.substring(pos, comma).trim();
+      if ("Start".equalsIgnoreCase(name))
+        mStartField = field;
+      else if ("End".equalsIgnoreCase(name))
+        mEndField = field;
+      field++;
+      pos = comma + 1;
+    }
+    mFieldCount = field;
+  }
+
+  int getFieldCount() {
+    return mFieldCount;
+  }
+
+  int getStartField() {
+    return mStartField;
+  }
+
+  int getEndField() {
+    return mEndField;
+  }
+
+  static String cleanText(String text) {
+    text = stripTags(text, '{', '}');
+    StringBuilder sb = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '\\' && i + 1 < text.length()) {
+        char n = text.charAt(i + 1);
+        if (n == 'N' || n == 'n') {
+          sb.append('\n');
+          i++;
+          continue;
+        } else if (n == 'h') {
+          sb.append(' ');
+          i++;
+          continue;
+        }
+      }
+      sb.append(c);
+    }
+    return sb.toString().trim();
+  }
+}
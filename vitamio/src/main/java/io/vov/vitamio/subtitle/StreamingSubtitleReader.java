@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import io.vov.vitamio.utils.IOUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a large SSA/ASS file without loading it. The file is memory-mapped,
+ * a background thread builds a sparse index of fixed size blocks with the
+ * time range each one covers, and only the blocks overlapping a window of
+ * {@link #WINDOW_DURATION} milliseconds around the playback position are
+ * decoded and parsed. Windows are only loaded on the background thread: on a
+ * miss, e.g. after a seek, {@link #query(long)} returns the cues of the current
+ * window, or none, until the window at the new position is ready. The next
+ * window is prefetched once playback is half way through the current one.
+ * {@link #newCursor()} keeps its own window and loads it on the calling thread.
+ * <p/>
+ * Timing fields are read from the raw bytes, so the charset must be ASCII
+ * compatible (UTF-8, GBK, Big5, ...), UTF-16 files are rejected. Files are
+ * expected to be mostly sorted by start time: until the background indexing
+ * completes, a lookup only scans ahead until a block starts after the window,
+ * the windows loaded meanwhile are reloaded once it completes.
+ */
+public class StreamingSubtitleReader implements SubtitleSource {
+  public static final int BLOCK_SIZE = 256 * 1024;
+  public static final long WINDOW_DURATION = 30 * 1000;
+  private static final long PENDING_POLL_INTERVAL = 50;
+  private static final byte[] EVENTS = "[Events]".getBytes();
+  private static final byte[] FORMAT = "Format:".getBytes();
+  private static final byte[] DIALOGUE = "Dialogue:".getBytes();
+
+  private final String mPath;
+  private final Charset mCharset;
+  private RandomAccessFile mFile;
+  private ByteBuffer mBuffer;
+  private String mFormatLine;
+  private int mFieldCount;
+  private int mStartField;
+  private int mEndField;
+  private final List<Block> mBlocks = new ArrayList<Block>();
+  private int mIndexedOffset;
+  private volatile boolean mIndexComplete;
+  private final Cursor mCursor = new Cursor(false);
+  private HandlerThread mThread;
+  private Handler mHandler;
+  private volatile boolean mClosed;
+
+  private static class Block {
+    final int offset;
+    final int length;
+    long minStart = Long.MAX_VALUE;
+    long maxEnd = Long.MIN_VALUE;
+
+    Block(int offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private static class Window {
+    final long start;
+    final long end;
+    final SubtitleIndex index;
+    final boolean complete;
+
+    Window(long start, long end, SubtitleIndex index, boolean complete) {
+      this.start = start;
+      this.end = end;
+      this.index = index;
+      this.complete = complete;
+    }
+
+    boolean covers(long time) {
+      return start <= time && time < end;
+    }
+  }
+
+  /**
+   * The window a reader is at. A blocking cursor loads its windows on the
+   * calling thread, the others on the background thread.
+   */
+  private class Cursor implements SubtitleSource {
+    private final boolean mBlocking;
+    private volatile Window mWindow;
+    private volatile Window mLoaded;
+    private final AtomicLong mPending = new AtomicLong(-1);
+
+    Cursor(boolean blocking) {
+      mBlocking = blocking;
+    }
+
+    /**
+     * @return the window covering time, or null if it is still being loaded
+     */
+    private Window getWindow(long time) {
+      Window window = mWindow;
+      if (window != null && window.covers(time) && isFresh(window)) {
+        if (!mBlocking && time >= window.start + WINDOW_DURATION / 2)
+          request(window.end);
+        return window;
+      }
+      if (mBlocking) {
+        window = mClosed ? null : loadWindow(time);
+        mWindow = window;
+        return window;
+      }
+      Window loaded = mLoaded;
+      if (loaded != null && loaded.covers(time) && isFresh(loaded)) {
+        mWindow = loaded;
+        return getWindow(time);
+      }
+      request(time);
+      return window != null && window.covers(time) ? window : null;
+    }
+
+    /**
+     * Load the window starting at start on the background thread, unless it is
+     * already loaded or a pending load will cover it.
+     */
+    private void request(final long start) {
+      if (mClosed)
+        return;
+      Window loaded = mLoaded;
+      if (loaded != null && loaded.start == start && isFresh(loaded))
+        return;
+      long pending = mPending.get();
+      if (pending >= 0 && pending <= start && start < pending + WINDOW_DURATION / 2)
+        return;
+      if (!mPending.compareAndSet(pending, start))
+        return;
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          if (mClosed || mPending.get() != start)
+            return;
+          mLoaded = loadWindow(start);
+          mPending.compareAndSet(start, -1);
+        }
+      });
+    }
+
+    @Override
+    public List<SubtitleCue> query(long time) {
+      Window window = getWindow(time);
+      return window == null ? Collections.<SubtitleCue>emptyList() : window.index.query(time);
+    }
+
+    @Override
+    public long nextChange(long time) {
+      Window window = getWindow(time);
+      if (window == null)
+        return mClosed ? -1 : time + PENDING_POLL_INTERVAL;
+      if (!isFresh(window))
+        return time + PENDING_POLL_INTERVAL;
+      long next = window.index.nextChange(time);
+      return next < 0 || next > window.end ? window.end : next;
+    }
+
+    @Override
+    public SubtitleSource newCursor() {
+      return StreamingSubtitleReader.this.newCursor();
+    }
+
+    @Override
+    public void close() {
+      mWindow = null;
+      mLoaded = null;
+    }
+  }
+
+  private final Runnable mIndexTask = new Runnable() {
+    @Override
+    public void run() {
+      if (!mClosed && indexNextBlock())
+        mHandler.post(this);
+      else if (!mClosed)
+        Log.d("Indexed %s: %d blocks", mPath, mBlocks.size());
+    }
+  };
+
+  /**
+   * @param path     an SSA/ASS file
+   * @param encoding the charset of the file, UTF-8 if null
+   * @throws IOException if the file can't be mapped or has no events
+   */
+  public StreamingSubtitleReader(String path, String encoding) throws IOException {
+    mPath = path;
+    mCharset = Charset.forName(encoding == null ? "UTF-8" : encoding.trim());
+    mFile = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = mFile.getChannel();
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException("Subtitle too large: " + path);
+      mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      readHeader();
+    } catch (IOException e) {
+      IOUtils.closeSilently(mFile);
+      throw e;
+    }
+
+    mThread = new HandlerThread("VitamioSubtitleReader");
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+    mHandler.post(mIndexTask);
+  }
+
+  private void readHeader() throws IOException {
+    int limit = mBuffer.limit();
+    if (limit >= 2 && ((mBuffer.get(0) & 0xff) == 0xff && (mBuffer.get(1) & 0xff) == 0xfe || (mBuffer.get(0) & 0xff) == 0xfe && (mBuffer.get(1) & 0xff) == 0xff))
+      throw new IOException("UTF-16 subtitles can't be streamed: " + mPath);
+
+    boolean inEvents = false;
+    boolean hasEvents = false;
+    int pos = 0;
+    while (pos < limit) {
+      int end = lineEnd(pos);
+      if (mBuffer.get(pos) == '[') {
+        inEvents = startsWithIgnoreCase(pos, EVENTS);
+        hasEvents |= inEvents;
+      } else if (inEvents && startsWith(pos, FORMAT)) {
+        mFormatLine = decodeAscii(pos, end);
+      } else if (inEvents && startsWith(pos, DIALOGUE)) {
+        break;
+      }
+      pos = end + 1;
+    }
+    if (!hasEvents)
+      throw new IOException("No [Events] in " + mPath);
+
+    SsaParser parser = newParser();
+    mFieldCount = parser.getFieldCount();
+    mStartField = parser.getStartField();
+    mEndField = parser.getEndField();
+    mIndexedOffset = Math.min(pos, limit);
+  }
+
+  private SsaParser newParser() {
+    SsaParser parser = new SsaParser();
+    parser.parseLine("[Events]");
+    if (mFormatLine != null)
+      parser.parseLine(mFormatLine);
+    return parser;
+  }
+
+  /**
+   * Index the next block of the file.
+   *
+   * @return false if the whole file is indexed
+   */
+  private synchronized boolean indexNextBlock() {
+    if (mIndexComplete)
+      return false;
+    int limit = mBuffer.limit();
+    int offset = mIndexedOffset;
+    int end = Math.min(offset + BLOCK_SIZE, limit);
+    if (end < limit)
+      end = Math.min(lineEnd(end) + 1, limit);
+
+    Block block = new Block(offset, end - offset);
+    int pos = offset;
+    while (pos < end) {
+      int lineEnd = lineEnd(pos);
+      if (startsWith(pos, DIALOGUE))
+        indexDialogue(block, pos + DIALOGUE.length, lineEnd);
+      pos = lineEnd + 1;
+    }
+    if (block.minStart <= block.maxEnd)
+      mBlocks.add(block);
+    mIndexedOffset = end;
+    mIndexComplete = end >= limit;
+    return !mIndexComplete;
+  }
+
+  private void indexDialogue(Block block, int pos, int end) {
+    long start = -1, stop = -1;
+    int field = 0;
+    while (field <= Math.max(mStartField, mEndField)) {
+      int comma = indexOf(',', pos, end);
+      if (comma < 0)
+        return;
+      if (field == mStartField)
+        start = parseClockTime(pos, comma);
+      else if (field == mEndField)
+        stop = parseClockTime(pos, comma);
+      pos = comma + 1;
+      field++;
+    }
+    if (start < 0 || stop <= start)
+      return;
+    block.minStart = Math.min(block.minStart, start);
+    block.maxEnd = Math.max(block.maxEnd, stop);
+  }
+
+  /**
+   * Parse the cues of a window, on the background thread or the thread of a
+   * blocking cursor.
+   */
+  private synchronized Window loadWindow(long start) {
+    long end = start + WINDOW_DURATION;
+    while (!mIndexComplete && (mBlocks.isEmpty() || mBlocks.get(mBlocks.size() - 1).minStart < end))
+      indexNextBlock();
+
+    List<SubtitleCue> cues = new ArrayList<SubtitleCue>();
+    CharsetDecoder decoder = mCharset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    for (Block block : mBlocks) {
+      if (block.minStart >= end || block.maxEnd <= start)
+        continue;
+      ByteBuffer bytes = mBuffer.duplicate();
+      bytes.position(block.offset);
+      bytes.limit(block.offset + block.length);
+      CharBuffer chars;
+      try {
+        chars = decoder.reset().decode(bytes);
+      } catch (CharacterCodingException e) {
+        Log.e("loadWindow", e);
+        continue;
+      }
+      SsaParser parser = newParser();
+      String text = chars.toString();
+      int pos = 0;
+      while (pos < text.length()) {
+        int lineEnd = text.indexOf('\n', pos);
+        if (lineEnd < 0)
+          lineEnd = text.length();
+        String line = text.substring(pos, lineEnd > pos && text.charAt(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd);
+        SubtitleCue cue = parser.parseLine(line);
+        if (cue != null && cue.getStart() < end && cue.getEnd() > start)
+          cues.add(cue);
+        pos = lineEnd + 1;
+      }
+    }
+    return new Window(start, end, new SubtitleIndex(cues), mIndexComplete);
+  }
+
+  private boolean isFresh(Window window) {
+    return window.complete || !mIndexComplete;
+  }
+
+  @Override
+  public List<SubtitleCue> query(long time) {
+    return mCursor.query(time);
+  }
+
+  @Override
+  public long nextChange(long time) {
+    return mCursor.nextChange(time);
+  }
+
+  @Override
+  public SubtitleSource newCursor() {
+    return new Cursor(true);
+  }
+
+  @Override
+  public void close() {
+    mClosed = true;
+    if (mThread != null)
+      mThread.quit();
+    mCursor.close();
+    IOUtils.closeSilently(mFile);
+  }
+
+  private int lineEnd(int pos) {
+    int limit = mBuffer.limit();
+    while (pos < limit && mBuffer.get(pos) != '\n')
+      pos++;
+    return pos;
+  }
+
+  private int indexOf(char c, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (mBuffer.get(i) == c)
+        return i;
+    }
+    return -1;
+  }
+
+  private boolean startsWith(int pos, byte[] prefix) {
+    if (pos + prefix.length > mBuffer.limit())
+      return false;
+    for (int i = 0; i < prefix.length; i++) {
+      if (mBuffer.get(pos + i) != prefix[i])
+        return false;
+    }
+    return true;
+  }
+
+  private boolean startsWithIgnoreCase(int pos, byte[] prefix) {
+    if (pos + prefix.length > mBuffer.limit())
+      return false;
+    for (int i = 0; i < prefix.length; i++) {
+      if (Character.toLowerCase((char) mBuffer.get(pos + i)) != Character.toLowerCase((char) prefix[i]))
+        return false;
+    }
+    return true;
+  }
+
+  private long parseClockTime(int from, int to) {
+    String time = decodeAscii(from, to);
+    return SubtitleParser.parseClockTime(time, 0, time.length());
+  }
+
+  private String decodeAscii(int from, int to) {
+    if (to > from && mBuffer.get(to - 1) == '\r')
+      to--;
+    char[] chars = new char[to - from];
+    for (int i = from; i < to; i++)
+      chars[i - from] = (char) (mBuffer.get(i) & 0xff);
+    return new String(chars);
+  }
+}
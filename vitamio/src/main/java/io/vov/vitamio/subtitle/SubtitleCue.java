@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+/**
+ * A single timed text entry of an external subtitle file.
+ */
+public class SubtitleCue implements Comparable<SubtitleCue> {
+  private final long mStart;
+  private final long mEnd;
+  private final String mText;
+
+  /**
+   * @param start the time in milliseconds the cue is shown
+   * @param end   the time in milliseconds the cue is hidden, exclusive
+   * @param text  the plain text, lines separated by '\n'
+   */
+  public SubtitleCue(long start, long end, String text) {
+    mStart = start;
+    mEnd = end;
+    mText = text;
+  }
+
+  public long getStart() {
+    return mStart;
+  }
+
+  public long getEnd() {
+    return mEnd;
+  }
+
+  public String getText() {
+    return mText;
+  }
+
+  public boolean contains(long time) {
+    return mStart <= time && time < mEnd;
+  }
+
+  @Override
+  public int compareTo(SubtitleCue another) {
+    if (mStart != another.mStart)
+      return mStart < another.mStart ? -1 : 1;
+    if (mEnd != another.mEnd)
+      return mEnd < another.mEnd ? -1 : 1;
+    return 0;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof SubtitleCue))
+      return false;
+    SubtitleCue cue = (SubtitleCue) o;
+    return mStart == cue.mStart && mEnd == cue.mEnd && mText.equals(cue.mText);
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (mStart ^ (mStart >>> 32)) * 31 + mText.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "[" + mStart + ", " + mEnd + ") " + mText;
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import io.vov.vitamio.MediaPlayer;
+import io.vov.vitamio.MediaPlayer.OnTimedTextListener;
+import io.vov.vitamio.utils.IOUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Plays an external subtitle file in Java instead of
+ * {@link MediaPlayer#addTimedTextSource(String)}. The file is parsed once into
+ * a {@link SubtitleIndex}, which can be inspected with {@link #getSource()},
+ * or streamed by a {@link StreamingSubtitleReader} if it is a SSA/ASS file
+ * larger than {@link #STREAMING_THRESHOLD} bytes. The cues are delivered to {@link OnTimedTextListener#onTimedText(String)}
+ * on the main thread following {@link MediaPlayer#getCurrentPosition()}.
+ * <p/>
+ * The clock is polled at least every {@link #MAX_POLL_INTERVAL} milliseconds
+ * so seeks and pauses are picked up, call {@link #refresh()} after a seek to
+ * update the text at once.
+ */
+public class SubtitleEngine {
+  public static final long MAX_POLL_INTERVAL = 250;
+  public static final long STREAMING_THRESHOLD = 2 * 1024 * 1024;
+  private static final long MIN_POLL_INTERVAL = 10;
+  private static final String DEFAULT_ENCODING = "UTF-8";
+
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private SubtitleSource mSource = new SubtitleIndex(Collections.<SubtitleCue>emptyList());
+  private MediaPlayer mPlayer;
+  private OnTimedTextListener mListener;
+  private List<SubtitleCue> mShown = Collections.emptyList();
+  private long mDelay;
+  private long mLoadTime;
+  private SubtitlePrerenderer mPrerenderer;
+
+  private final Runnable mTick = new Runnable() {
+    @Override
+    public void run() {
+      if (mPlayer == null)
+        return;
+      long position = mPlayer.getCurrentPosition() - mDelay;
+      update(position);
+      if (mPrerenderer != null)
+        mPrerenderer.schedule(mSource, position);
+      long next = mSource.nextChange(position);
+      long delay = next < 0 ? MAX_POLL_INTERVAL : Math.max(MIN_POLL_INTERVAL, Math.min(next - position, MAX_POLL_INTERVAL));
+      mHandler.postDelayed(this, delay);
+    }
+  };
+
+  /**
+   * Parse a subtitle file, the format is chosen by its extension.
+   *
+   * @param path     a local file with one of {@link MediaPlayer#SUB_TYPES}
+   * @param encoding the charset of the file, UTF-8 is used if null unless the
+   *                 file starts with a byte order mark
+   * @throws IOException if the file can't be read or the format is unknown
+   */
+  public void load(String path, String encoding) throws IOException {
+    SubtitleParser parser = SubtitleParser.forPath(path);
+    if (parser == null)
+      throw new IOException("Unsupported subtitle format: " + path);
+    long begin = SystemClock.elapsedRealtime();
+    if (parser instanceof SsaParser && new File(path).length() > STREAMING_THRESHOLD) {
+      try {
+        setSource(new StreamingSubtitleReader(path, encoding));
+        mLoadTime = SystemClock.elapsedRealtime() - begin;
+        Log.d("Streaming %s, opened in %dms", path, mLoadTime);
+        return;
+      } catch (IOException e) {
+        Log.e("Unable to stream " + path, e);
+      }
+    }
+
+    BufferedReader reader = null;
+    SubtitleIndex index;
+    try {
+      reader = openReader(new FileInputStream(path), encoding);
+      index = new SubtitleIndex(parser.parse(reader));
+    } finally {
+      IOUtils.closeSilently(reader);
+    }
+    setSource(index);
+    mLoadTime = SystemClock.elapsedRealtime() - begin;
+    Log.d("Loaded %d cues from %s in %dms", index.size(), path, mLoadTime);
+  }
+
+  static BufferedReader openReader(InputStream in, String encoding) throws IOException {
+    PushbackInputStream pin = new PushbackInputStream(in, 3);
+    byte[] bom = new byte[3];
+    int n = pin.read(bom, 0, 3);
+    String charset = encoding == null ? DEFAULT_ENCODING : encoding.trim();
+    int skip = 0;
+    if (n >= 3 && (bom[0] & 0xff) == 0xef && (bom[1] & 0xff) == 0xbb && (bom[2] & 0xff) == 0xbf) {
+      charset = "UTF-8";
+      skip = 3;
+    } else if (n >= 2 && (bom[0] & 0xff) == 0xff && (bom[1] & 0xff) == 0xfe) {
+      charset = "UTF-16LE";
+      skip = 2;
+    } else if (n >= 2 && (bom[0] & 0xff) == 0xfe && (bom[1] & 0xff) == 0xff) {
+      charset = "UTF-16BE";
+      skip = 2;
+    }
+    if (n > skip)
+      pin.unread(bom, skip, n - skip);
+    return new BufferedReader(new InputStreamReader(pin, charset), 64 * 1024);
+  }
+
+  /**
+   * Replace the cues, the previous source is closed.
+   */
+  public void setSource(SubtitleSource source) {
+    if (mSource != source)
+      IOUtils.closeSilently(mSource);
+    mSource = source;
+    mShown = Collections.emptyList();
+    if (mPrerenderer != null)
+      mPrerenderer.reset();
+    refresh();
+  }
+
+  public SubtitleSource getSource() {
+    return mSource;
+  }
+
+  /**
+   * @return the time in milliseconds the last {@link #load(String, String)}
+   *         took to read and index the file, or to open it for streaming
+   */
+  public long getLoadTime() {
+    return mLoadTime;
+  }
+
+  /**
+   * Render the upcoming cues ahead of time, the listener then only needs
+   * {@link SubtitlePrerenderer#getBitmap(String)} to display them.
+   *
+   * @param prerenderer null to stop prerendering
+   */
+  public void setPrerenderer(SubtitlePrerenderer prerenderer) {
+    mPrerenderer = prerenderer;
+  }
+
+  /**
+   * @param delay milliseconds to show the subtitle later, negative for earlier
+   */
+  public void setDelay(long delay) {
+    mDelay = delay;
+    refresh();
+  }
+
+  /**
+   * Start following the clock of mp, must be called on the main thread.
+   */
+  public void start(MediaPlayer mp, OnTimedTextListener listener) {
+    mPlayer = mp;
+    mListener = listener;
+    refresh();
+  }
+
+  /**
+   * Stop delivering cues and clear the shown text.
+   */
+  public void stop() {
+    mHandler.removeCallbacks(mTick);
+    if (mListener != null && !mShown.isEmpty())
+      mListener.onTimedText("");
+    mShown = Collections.emptyList();
+    mPlayer = null;
+    mListener = null;
+  }
+
+  /**
+   * Stop and close the subtitle file.
+   */
+  public void release() {
+    stop();
+    setSource(new SubtitleIndex(Collections.<SubtitleCue>emptyList()));
+  }
+
+  /**
+   * Re-evaluate the cues at once, e.g. after a seek.
+   */
+  public void refresh() {
+    mHandler.removeCallbacks(mTick);
+    if (mPlayer != null)
+      mHandler.post(mTick);
+  }
+
+  private void update(long position) {
+    List<SubtitleCue> cues = mSource.query(position);
+    if (cues.equals(mShown))
+      return;
+    mShown = cues;
+    if (mListener != null)
+      mListener.onTimedText(joinText(cues));
+  }
+
+  static String joinText(List<SubtitleCue> cues) {
+    if (cues.size() == 1)
+      return cues.get(0).getText();
+    StringBuilder sb = new StringBuilder();
+    for (SubtitleCue cue : cues) {
+      if (sb.length() > 0)
+        sb.append('\n');
+      sb.append(cue.getText());
+    }
+    return sb.toString();
+  }
+}
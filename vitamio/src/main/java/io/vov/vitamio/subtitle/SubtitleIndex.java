@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable interval tree over {@link SubtitleCue}s. The cues are sorted by
+ * start time and the tree is implicit in that array: the node of a range is
+ * its middle element, augmented with the latest end time of the range. A
+ * stabbing query costs O(log n + k) for k matching cues.
+ */
+public class SubtitleIndex implements SubtitleSource {
+  private final SubtitleCue[] mCues;
+  private final long[] mStarts;
+  private final long[] mEnds;
+  private final long[] mMaxEnds;
+  private final long[] mBoundaries;
+
+  public SubtitleIndex(List<SubtitleCue> cues) {
+    mCues = cues.toArray(new SubtitleCue[cues.size()]);
+    Arrays.sort(mCues);
+    int n = mCues.length;
+    mStarts = new long[n];
+    mEnds = new long[n];
+    mMaxEnds = new long[n];
+    long[] boundaries = new long[n * 2];
+    for (int i = 0; i < n; i++) {
+      mStarts[i] = mCues[i].getStart();
+      mEnds[i] = mCues[i].getEnd();
+      boundaries[i * 2] = mStarts[i];
+      boundaries[i * 2 + 1] = mEnds[i];
+    }
+    build(0, n - 1);
+    Arrays.sort(boundaries);
+    int unique = 0;
+    for (int i = 0; i < boundaries.length; i++) {
+      if (unique == 0 || boundaries[unique - 1] != boundaries[i])
+        boundaries[unique++] = boundaries[i];
+    }
+    mBoundaries = Arrays.copyOf(boundaries, unique);
+  }
+
+  private long build(int lo, int hi) {
+    if (lo > hi)
+      return Long.MIN_VALUE;
+    int mid = (lo + hi) >>> 1;
+    long max = Math.max(mEnds[mid], Math.max(build(lo, mid - 1), build(mid + 1, hi)));
+    mMaxEnds[mid] = max;
+    return max;
+  }
+
+  public int size() {
+    return mCues.length;
+  }
+
+  /**
+   * @return all cues sorted by start time
+   */
+  public List<SubtitleCue> getCues() {
+    return Collections.unmodifiableList(Arrays.asList(mCues));
+  }
+
+  @Override
+  public List<SubtitleCue> query(long time) {
+    List<SubtitleCue> result = new ArrayList<SubtitleCue>(2);
+    query(0, mCues.length - 1, time, result);
+    return result;
+  }
+
+  private void query(int lo, int hi, long time, List<SubtitleCue> result) {
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (mMaxEnds[mid] <= time)
+        return;
+      query(lo, mid - 1, time, result);
+      if (mStarts[mid] > time)
+        return;
+      if (mEnds[mid] > time)
+        result.add(mCues[mid]);
+      lo = mid + 1;
+    }
+  }
+
+  @Override
+  public long nextChange(long time) {
+    int i = Arrays.binarySearch(mBoundaries, time);
+    i = i >= 0 ? i + 1 : -i - 1;
+    return i < mBoundaries.length ? mBoundaries[i] : -1;
+  }
+
+  @Override
+  public SubtitleSource newCursor() {
+    return this;
+  }
+
+  @Override
+  public void close() {
+  }
+}
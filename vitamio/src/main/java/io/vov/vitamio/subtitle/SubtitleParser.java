@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parses one of the external subtitle formats in
+ * {@link io.vov.vitamio.MediaPlayer#SUB_TYPES} into {@link SubtitleCue}s.
+ */
+public abstract class SubtitleParser {
+
+  /**
+   * @param reader the decoded subtitle file
+   * @return the cues in file order, not necessarily sorted
+   */
+  public abstract List<SubtitleCue> parse(BufferedReader reader) throws IOException;
+
+  /**
+   * @param path the subtitle file
+   * @return a parser for the file extension, or null if unsupported
+   */
+  public static SubtitleParser forPath(String path) {
+    int dot = path.lastIndexOf('.');
+    String ext = dot < 0 ? "" : path.substring(dot).toLowerCase(Locale.US);
+    if (".srt".equals(ext) || ".webvtt".equals(ext) || ".vtt".equals(ext))
+      return new SrtParser();
+    if (".ssa".equals(ext) || ".ass".equals(ext))
+      return new SsaParser();
+    if (".smi".equals(ext) || ".sami".equals(ext))
+      return new SmiParser();
+    if (".sub".equals(ext) || ".txt".equals(ext))
+      return new MicroDvdParser();
+    return null;
+  }
+
+  /**
+   * Parse a clock time like <code>01:02:03,456</code>, <code>1:02:03.45</code>
+   * or <code>02:03.456</code>.
+   *
+   * @return the time in milliseconds, or -1 if malformed
+   */
+  static long parseClockTime(String s, int start, int end) {
+    long time = 0;
+    long value = 0;
+    int digits = 0;
+    boolean fraction = false;
+    long millis = 0;
+    int fractionDigits = 0;
+    while (start < end && s.charAt(start) == ' ')
+      start++;
+    while (end > start && s.charAt(end - 1) == ' ')
+      end--;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c >= '0' && c <= '9') {
+        if (fraction) {
+          if (fractionDigits < 3) {
+            millis = millis * 10 + (c - '0');
+            fractionDigits++;
+          }
+        } else {
+          value = value * 10 + (c - '0');
+          digits++;
+        }
+      } else if (c == ':' && !fraction && digits > 0) {
+        time = (time + value) * 60;
+        value = 0;
+        digits = 0;
+      } else if ((c == ',' || c == '.') && !fraction && digits > 0) {
+        fraction = true;
+      } else {
+        return -1;
+      }
+    }
+    if (digits == 0)
+      return -1;
+    while (fractionDigits++ < 3)
+      millis *= 10;
+    return (time + value) * 1000 + millis;
+  }
+
+  /**
+   * Remove markup between the open and close characters, e.g. HTML tags or
+   * SSA override blocks.
+   */
+  static String stripTags(String text, char open, char close) {
+    if (text.indexOf(open) < 0)
+      return text;
+    StringBuilder sb = new StringBuilder(text.length());
+    int depth = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == open)
+        depth++;
+      else if (c == close && depth > 0)
+        depth--;
+      else if (depth == 0)
+        sb.append(c);
+    }
+    return sb.toString();
+  }
+}
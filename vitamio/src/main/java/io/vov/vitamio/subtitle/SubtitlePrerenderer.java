@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+
+import io.vov.vitamio.utils.Log;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rasterizes styled subtitle text on a background thread, a few seconds ahead
+ * of playback, into a cache bounded in bytes. The text is drawn centered like
+ * {@link io.vov.vitamio.widget.OutlineTextView}, an optional stroke paint
+ * draws the outline under the fill.
+ * <p/>
+ * Attach it with {@link SubtitleEngine#setPrerenderer(SubtitlePrerenderer)}
+ * and call {@link #getBitmap(String)} from
+ * {@link io.vov.vitamio.MediaPlayer.OnTimedTextListener#onTimedText(String)},
+ * a cue missed by the background thread is rendered on the calling thread.
+ * The background thread scans the cues with its own
+ * {@link SubtitleSource#newCursor() cursor}.
+ * The returned bitmaps belong to the cache and must not be recycled.
+ */
+public class SubtitlePrerenderer {
+  public static final long LOOKAHEAD = 5000;
+  private static final float SPACING_MULT = 1.0f;
+  private static final float SPACING_ADD = 0;
+
+  private final LruCache<String, Bitmap> mCache;
+  private final TextPaint mFillPaint;
+  private final TextPaint mOutlinePaint;
+  private final TextPaint mBackgroundFillPaint;
+  private final TextPaint mBackgroundOutlinePaint;
+  private volatile int mWidth;
+  private HandlerThread mThread;
+  private Handler mHandler;
+  private long mScheduledFrom = -1;
+  private long mScheduledUntil = -1;
+  private final AtomicInteger mHits = new AtomicInteger();
+  private final AtomicInteger mMisses = new AtomicInteger();
+  private SubtitleSource mSource;
+  private SubtitleSource mCursor;
+
+  /**
+   * @param width    the width of the subtitle area in pixels
+   * @param fill     the paint of the text
+   * @param outline  the stroke paint of the border, may be null
+   * @param maxBytes the size of the cache
+   */
+  public SubtitlePrerenderer(int width, TextPaint fill, TextPaint outline, int maxBytes) {
+    mWidth = width;
+    mFillPaint = fill;
+    mOutlinePaint = outline;
+    mBackgroundFillPaint = new TextPaint(fill);
+    mBackgroundOutlinePaint = outline == null ? null : new TextPaint(outline);
+    mCache = new LruCache<String, Bitmap>(maxBytes) {
+      @Override
+      protected int sizeOf(String key, Bitmap value) {
+        return value.getRowBytes() * value.getHeight();
+      }
+    };
+    mThread = new HandlerThread("VitamioSubtitlePrerender");
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+  }
+
+  /**
+   * Change the width of the subtitle area, drops the rendered cues.
+   */
+  public void setWidth(int width) {
+    if (width == mWidth)
+      return;
+    mWidth = width;
+    mCache.evictAll();
+    mScheduledFrom = mScheduledUntil = -1;
+  }
+
+  /**
+   * Forget the range already scheduled and drop the queued work, call it when
+   * the cues change so the next {@link #schedule(SubtitleSource, long)} renders
+   * them again.
+   */
+  public void reset() {
+    mScheduledFrom = mScheduledUntil = -1;
+    mHandler.removeCallbacksAndMessages(null);
+  }
+
+  /**
+   * @return the rendered text, or null if text is empty
+   */
+  public Bitmap getBitmap(String text) {
+    if (text == null || text.length() == 0)
+      return null;
+    Bitmap bitmap = mCache.get(key(text, mWidth));
+    if (bitmap != null) {
+      mHits.incrementAndGet();
+      return bitmap;
+    }
+    mMisses.incrementAndGet();
+    bitmap = render(text, mWidth, mFillPaint, mOutlinePaint);
+    if (bitmap != null)
+      mCache.put(key(text, mWidth), bitmap);
+    return bitmap;
+  }
+
+  /**
+   * Render the cues of source between position and {@link #LOOKAHEAD} later
+   * in the background. Cheap to call on every clock tick, the work is only
+   * queued when playback leaves the range already scheduled.
+   */
+  public void schedule(final SubtitleSource source, final long position) {
+    if (mThread == null || position >= mScheduledFrom && position + LOOKAHEAD / 2 < mScheduledUntil)
+      return;
+    boolean seeked = position < mScheduledFrom || position >= mScheduledUntil;
+    final long from = seeked ? position : mScheduledUntil;
+    final long until = position + LOOKAHEAD;
+    mScheduledFrom = position;
+    mScheduledUntil = until;
+    if (seeked)
+      mHandler.removeCallbacksAndMessages(null);
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        prerender(source, from, until);
+      }
+    });
+  }
+
+  private void prerender(SubtitleSource source, long from, long until) {
+    if (source != mSource) {
+      mSource = source;
+      mCursor = source.newCursor();
+    }
+    SubtitleSource cursor = mCursor;
+    int width = mWidth;
+    int rendered = 0;
+    long time = from;
+    while (time >= 0 && time < until) {
+      List<SubtitleCue> cues = cursor.query(time);
+      if (!cues.isEmpty()) {
+        String text = SubtitleEngine.joinText(cues);
+        String key = key(text, width);
+        if (text.length() > 0 && mCache.get(key) == null) {
+          Bitmap bitmap = render(text, width, mBackgroundFillPaint, mBackgroundOutlinePaint);
+          if (bitmap != null && width == mWidth) {
+            mCache.put(key, bitmap);
+            rendered++;
+          }
+        }
+      }
+      time = cursor.nextChange(time);
+    }
+    Log.d("Prerendered %d subtitles in [%d, %d)", rendered, from, until);
+  }
+
+  private static Bitmap render(String text, int width, TextPaint fill, TextPaint outline) {
+    if (width <= 0)
+      return null;
+    Layout fillLayout = new StaticLayout(text, fill, width, Layout.Alignment.ALIGN_CENTER, SPACING_MULT, SPACING_ADD, true);
+    Layout outlineLayout = outline == null ? null : new StaticLayout(text, outline, width, Layout.Alignment.ALIGN_CENTER, SPACING_MULT, SPACING_ADD, true);
+    int border = outline == null ? 0 : (int) Math.ceil(outline.getStrokeWidth());
+    int height = Math.max(fillLayout.getHeight(), outlineLayout == null ? 0 : outlineLayout.getHeight()) + border * 2;
+    if (height <= 0)
+      return null;
+    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    Canvas canvas = new Canvas(bitmap);
+    canvas.translate(0, border);
+    if (outlineLayout != null)
+      outlineLayout.draw(canvas);
+    fillLayout.draw(canvas);
+    return bitmap;
+  }
+
+  private static String key(String text, int width) {
+    return width + ":" + text;
+  }
+
+  public int getHitCount() {
+    return mHits.get();
+  }
+
+  public int getMissCount() {
+    return mMisses.get();
+  }
+
+  /**
+   * Stop the background thread and drop the cache.
+   */
+  public void release() {
+    if (mThread != null) {
+      mThread.quit();
+      mThread = null;
+    }
+    mCache.evictAll();
+  }
+}
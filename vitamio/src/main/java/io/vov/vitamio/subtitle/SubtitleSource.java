@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.subtitle;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Answers which cues are shown at a playback position.
+ */
+public interface SubtitleSource extends Closeable {
+  /**
+   * @param time the playback position in milliseconds
+   * @return the cues shown at time, in start order
+   */
+  List<SubtitleCue> query(long time);
+
+  /**
+   * @return the first time after the given one at which the displayed cues
+   *         may change, or -1 if nothing changes anymore
+   */
+  long nextChange(long time);
+
+  /**
+   * @return a source over the same cues with its own read position, for
+   *         another thread to scan them without disturbing this one. It may
+   *         block while loading, and stays valid until this source is closed
+   */
+  SubtitleSource newCursor();
+}
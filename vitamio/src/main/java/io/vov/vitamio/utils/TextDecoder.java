@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes the text handed over by the native layer (subtitles, track names,
+ * tags). Charsets are looked up once, the decoders and the output buffer are
+ * cached per thread, and when no usable encoding is given the charset is
+ * detected (UTF-8, GBK or Big5) and remembered for the source it came from.
+ */
+public class TextDecoder {
+	public static final String UTF_8 = "UTF-8";
+	public static final String GBK = "GBK";
+	public static final String BIG5 = "Big5";
+	private static final int MAX_SOURCES = 64;
+	private static final Map<String, Charset> sCharsets = new ConcurrentHashMap<String, Charset>();
+	private static final Map<String, Boolean> sUnsupported = new ConcurrentHashMap<String, Boolean>();
+	private static final Map<String, String> sDetected = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_SOURCES;
+		}
+	};
+	private static final ThreadLocal<DecoderCache> sDecoders = new ThreadLocal<DecoderCache>() {
+		@Override
+		protected DecoderCache initialValue() {
+			return new DecoderCache();
+		}
+	};
+
+	private static class DecoderCache {
+		final HashMap<Charset, CharsetDecoder> decoders = new HashMap<Charset, CharsetDecoder>();
+		CharBuffer buffer = CharBuffer.allocate(256);
+
+		CharsetDecoder get(Charset charset) {
+			CharsetDecoder decoder = decoders.get(charset);
+			if (decoder == null) {
+				decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+				decoders.put(charset, decoder);
+			}
+			return decoder.reset();
+		}
+	}
+
+	/**
+	 * @return the charset for name, or null if unknown
+	 */
+	public static Charset forName(String name) {
+		if (name == null || sUnsupported.containsKey(name))
+			return null;
+		Charset charset = sCharsets.get(name);
+		if (charset == null) {
+			try {
+				charset = Charset.forName(name.trim());
+				sCharsets.put(name, charset);
+			} catch (Exception e) {
+				Log.e("Unsupported charset %s", name);
+				sUnsupported.put(name, Boolean.TRUE);
+			}
+		}
+		return charset;
+	}
+
+	public static String decode(byte[] bytes, String encoding) {
+		return decode(bytes, encoding, null);
+	}
+
+	/**
+	 * @param bytes    the encoded text
+	 * @param encoding the charset name, detected if null or unsupported
+	 * @param source   the key the detected charset is remembered for, e.g. the
+	 *                 path of the file, may be null
+	 */
+	public static String decode(byte[] bytes, String encoding, String source) {
+		if (bytes == null)
+			return null;
+		if (bytes.length == 0)
+			return "";
+		return decode(bytes, 0, bytes.length, resolve(bytes, encoding, source));
+	}
+
+	/**
+	 * @return the charset named encoding, or the one detected for bytes if
+	 *         encoding is null or unsupported
+	 */
+	public static Charset resolve(byte[] bytes, String encoding, String source) {
+		Charset charset = forName(encoding);
+		return charset != null ? charset : forName(detect(bytes, source));
+	}
+
+	public static String decode(byte[] bytes, int offset, int length, Charset charset) {
+		DecoderCache cache = sDecoders.get();
+		CharsetDecoder decoder = cache.get(charset);
+		ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+		int capacity = (int) (length * (double) decoder.maxCharsPerByte()) + 1;
+		if (cache.buffer.capacity() < capacity)
+			cache.buffer = CharBuffer.allocate(capacity);
+		CharBuffer out = cache.buffer;
+		out.clear();
+		CoderResult result = decoder.decode(in, out, true);
+		if (!result.isError())
+			decoder.flush(out);
+		out.flip();
+		return out.toString();
+	}
+
+	/**
+	 * Detect the charset of bytes, or return the one already detected for
+	 * source. Pure ASCII text is reported as UTF-8 but not remembered.
+	 */
+	public static String detect(byte[] bytes, String source) {
+		if (source != null) {
+			synchronized (sDetected) {
+				String charset = sDetected.get(source);
+				if (charset != null)
+					return charset;
+			}
+		}
+		String charset = detect(bytes);
+		if (charset == null)
+			return UTF_8;
+		if (source != null) {
+			synchronized (sDetected) {
+				sDetected.put(source, charset);
+			}
+			Log.d("Detected %s for %s", charset, source);
+		}
+		return charset;
+	}
+
+	/**
+	 * Forget the charset detected for source, e.g. when the file changed.
+	 */
+	public static void forget(String source) {
+		synchronized (sDetected) {
+			sDetected.remove(source);
+		}
+	}
+
+	/**
+	 * @return {@link #UTF_8}, {@link #GBK} or {@link #BIG5}, or null if bytes
+	 *         are plain ASCII
+	 */
+	public static String detect(byte[] bytes) {
+		int utf8 = checkUtf8(bytes);
+		if (utf8 == 0)
+			return null;
+		if (utf8 > 0)
+			return UTF_8;
+
+		int gbk = 0, big5 = 0;
+		for (int i = 0; i < bytes.length - 1; i++) {
+			int lead = bytes[i] & 0xff;
+			if (lead < 0x81 || lead == 0xff)
+				continue;
+			int trail = bytes[++i] & 0xff;
+			if (lead <= 0xa0) {
+				// only GBK uses these lead bytes
+				gbk += 2;
+			} else if (trail >= 0x40 && trail <= 0x7e) {
+				// GB2312 never has a low trail byte, Big5 often does
+				big5++;
+			} else if (trail >= 0xa1 && trail <= 0xfe) {
+				if (lead >= 0xb0 && lead <= 0xd7)
+					gbk++;
+				if (lead >= 0xa4 && lead <= 0xc6)
+					big5++;
+			}
+		}
+		return big5 > gbk ? BIG5 : GBK;
+	}
+
+	/**
+	 * @return 0 if ASCII, 1 if valid UTF-8 with multi-byte sequences, -1 if
+	 *         not UTF-8
+	 */
+	private static int checkUtf8(byte[] bytes) {
+		boolean multiByte = false;
+		int i = 0;
+		while (i < bytes.length) {
+			int b = bytes[i] & 0xff;
+			int follow;
+			if (b < 0x80) {
+				i++;
+				continue;
+			} else if (b >= 0xc2 && b <= 0xdf) {
+				follow = 1;
+			} else if (b >= 0xe0 && b <= 0xef) {
+				follow = 2;
+			} else if (b >= 0xf0 && b <= 0xf4) {
+				follow = 3;
+			} else {
+				return -1;
+			}
+			for (int j = 1; j <= follow; j++) {
+				if (i + j >= bytes.length || (bytes[i + j] & 0xc0) != 0x80)
+					return -1;
+			}
+			multiByte = true;
+			i += follow + 1;
+		}
+		return multiByte ? 1 : 0;
+	}
+}
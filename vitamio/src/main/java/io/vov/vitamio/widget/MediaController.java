@@ -20,6 +20,9 @@ package io.vov.vitamio.widget;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.media.AudioManager;
 import android.os.Build;
@@ -34,6 +37,7 @@ import android.view.View;
 import android.view.WindowManager;
 import android.widget.FrameLayout;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.PopupWindow;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
@@ -41,6 +45,7 @@ import android.widget.TextView;
 
 import java.lang.reflect.Method;
 
+import io.vov.vitamio.SpriteSheet;
 import io.vov.vitamio.utils.Log;
 import io.vov.vitamio.utils.StringUtils;
 
@@ -68,7 +73,9 @@ import io.vov.vitamio.utils.StringUtils;
  * mediacontroller_pause, current time's must be mediacontroller_time_current,
  * total time's must be mediacontroller_time_total, file name's must be
  * mediacontroller_file_name. And your resources must have a pause_button
- * drawable and a play_button drawable.
+ * drawable and a play_button drawable. An optional ImageView with id
+ * mediacontroller_preview shows seek previews, see
+ * {@link #setSpriteSheet(SpriteSheet)}.
  * <p/>
  * Functions like show() and hide() have no effect when MediaController is
  * created in an xml layout.
@@ -97,6 +104,11 @@ public class MediaController extends FrameLayout {
   private AudioManager mAM;
   private OnShownListener mShownListener;
   private OnHiddenListener mHiddenListener;
+  private SpriteSheet mSprites;
+  private ImageView mPreview;
+  private PopupWindow mPreviewWindow;
+  private Bitmap mPreviewBitmap;
+  private int mPreviewIndex = -1;
   @SuppressLint("HandlerLeak")
   private Handler mHandler = new Handler() {
     @Override
@@ -134,6 +146,7 @@ public class MediaController extends FrameLayout {
         mInfoView.setText("");
         mInfoView.setVisibility(View.VISIBLE);
       }
+      showPreview();
     }
 
     public void onProgressChanged(SeekBar bar, int progress, boolean fromuser) {
@@ -148,6 +161,7 @@ public class MediaController extends FrameLayout {
         mInfoView.setText(time);
       if (mCurrentTime != null)
         mCurrentTime.setText(time);
+      updatePreview(newposition);
     }
 
     public void onStopTrackingTouch(SeekBar bar) {
@@ -157,6 +171,7 @@ public class MediaController extends FrameLayout {
         mInfoView.setText("");
         mInfoView.setVisibility(View.GONE);
       }
+      hidePreview();
       show(sDefaultTimeout);
       mHandler.removeMessages(SHOW_PROGRESS);
       mAM.setStreamMute(AudioManager.STREAM_MUSIC, false);
@@ -260,6 +275,9 @@ public class MediaController extends FrameLayout {
     mFileName = (TextView) v.findViewById(getResources().getIdentifier("mediacontroller_file_name", "id", mContext.getPackageName()));
     if (mFileName != null)
       mFileName.setText(mTitle);
+    mPreview = (ImageView) v.findViewById(getResources().getIdentifier("mediacontroller_preview", "id", mContext.getPackageName()));
+    if (mPreview != null)
+      mPreview.setVisibility(View.GONE);
   }
 
   public void setMediaPlayer(MediaPlayerControl player) {
@@ -301,6 +319,95 @@ public class MediaController extends FrameLayout {
     mInfoView = v;
   }
 
+  /**
+   * Set the seek previews shown above the SeekBar while it is dragged, in the
+   * mediacontroller_preview ImageView if the layout has one, otherwise in a
+   * small floating window.
+   *
+   * @param sprites the previews of the current media, e.g. from
+   *                {@link io.vov.vitamio.SpriteGenerator#getSpriteSheet}, or
+   *                null to show none. The caller still owns them.
+   */
+  public void setSpriteSheet(SpriteSheet sprites) {
+    hidePreview();
+    mSprites = sprites;
+    mPreviewIndex = -1;
+    if (mPreviewBitmap != null && (sprites == null || mPreviewBitmap.getWidth() != sprites.getTileWidth() || mPreviewBitmap.getHeight() != sprites.getTileHeight())) {
+      if (mPreview != null)
+        mPreview.setImageDrawable(null);
+      mPreviewBitmap.recycle();
+      mPreviewBitmap = null;
+    }
+  }
+
+  private void showPreview() {
+    if (mSprites == null || mSprites.getTileCount() == 0 || mProgress == null)
+      return;
+    if (mPreviewBitmap == null)
+      mPreviewBitmap = Bitmap.createBitmap(mSprites.getTileWidth(), mSprites.getTileHeight(), Bitmap.Config.RGB_565);
+    mPreviewIndex = -1;
+    updatePreview((mDuration * mProgress.getProgress()) / 1000);
+    if (mPreview != null) {
+      mPreview.setVisibility(View.VISIBLE);
+      return;
+    }
+
+    if (mPreviewWindow == null) {
+      ImageView image = new ImageView(mContext);
+      image.setScaleType(ImageView.ScaleType.FIT_XY);
+      mPreviewWindow = new PopupWindow(image, mPreviewBitmap.getWidth(), mPreviewBitmap.getHeight());
+      mPreviewWindow.setFocusable(false);
+      mPreviewWindow.setTouchable(false);
+      mPreviewWindow.setBackgroundDrawable(null);
+    }
+    ((ImageView) mPreviewWindow.getContentView()).setImageBitmap(mPreviewBitmap);
+    if (mProgress.getWindowToken() != null) {
+      int[] location = getPreviewLocation();
+      mPreviewWindow.showAtLocation(mProgress, Gravity.NO_GRAVITY, location[0], location[1]);
+    }
+  }
+
+  private void updatePreview(long position) {
+    if (mSprites == null || mPreviewBitmap == null)
+      return;
+    int index = mSprites.indexOf(position);
+    if (index >= 0 && index != mPreviewIndex) {
+      mPreviewIndex = index;
+      mSprites.draw(new Canvas(mPreviewBitmap), index, new Rect(0, 0, mPreviewBitmap.getWidth(), mPreviewBitmap.getHeight()), new Paint(Paint.FILTER_BITMAP_FLAG));
+      if (mPreview != null)
+        mPreview.setImageBitmap(mPreviewBitmap);
+      if (mPreviewWindow != null)
+        mPreviewWindow.getContentView().invalidate();
+    }
+    if (mPreviewWindow != null && mPreviewWindow.isShowing()) {
+      int[] location = getPreviewLocation();
+      mPreviewWindow.update(location[0], location[1], -1, -1);
+    }
+  }
+
+  /**
+   * @return the screen position that centers the preview window above the
+   *         SeekBar thumb
+   */
+  private int[] getPreviewLocation() {
+    int[] location = new int[2];
+    mProgress.getLocationOnScreen(location);
+    int track = mProgress.getWidth() - mProgress.getPaddingLeft() - mProgress.getPaddingRight();
+    int thumb = location[0] + mProgress.getPaddingLeft() + track * mProgress.getProgress() / Math.max(1, mProgress.getMax());
+    int width = mPreviewBitmap.getWidth();
+    int left = Math.max(location[0], Math.min(thumb - width / 2, location[0] + mProgress.getWidth() - width));
+    location[0] = left;
+    location[1] = location[1] - mPreviewBitmap.getHeight();
+    return location;
+  }
+
+  private void hidePreview() {
+    if (mPreview != null)
+      mPreview.setVisibility(View.GONE);
+    if (mPreviewWindow != null && mPreviewWindow.isShowing())
+      mPreviewWindow.dismiss();
+  }
+
   /**
    * <p>
    * Change the animation style resource for this controller.
@@ -367,6 +474,7 @@ public class MediaController extends FrameLayout {
     if (mShowing) {
       try {
         mHandler.removeMessages(SHOW_PROGRESS);
+        hidePreview();
         if (mFromXml)
           setVisibility(View.GONE);
         else
@@ -17,12 +17,15 @@
 package io.vov.vitamio.widget;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Typeface;
 import android.text.Layout;
 import android.text.StaticLayout;
 import android.text.TextPaint;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.widget.TextView;
 
@@ -30,6 +33,10 @@ import android.widget.TextView;
  * Display text with border, use the same XML attrs as
  * {@link android.widget.TextView}, except that {@link OutlineTextView} will
  * transform the shadow to border
+ * <p/>
+ * The layouts are cached until the text, the width or the paint changes, and
+ * with {@link #setBitmapCacheEnabled(boolean)} the outlined text is rendered
+ * once into a bitmap which is then blitted on every draw.
  */
 public class OutlineTextView extends TextView {
   private TextPaint mTextPaint;
@@ -42,6 +49,14 @@ public class OutlineTextView extends TextView {
   private float mSpacingMult = 1.0f;
   private float mSpacingAdd = 0;
   private boolean mIncludePad = true;
+  private Layout mOutlineLayout;
+  private Layout mFillLayout;
+  private Layout mMeasureLayout;
+  private boolean mBitmapCacheEnabled = false;
+  private Bitmap mCacheBitmap;
+  private boolean mCacheValid = false;
+  private long mDrawCount;
+  private long mDrawNanos;
 
   public OutlineTextView(Context context) {
     super(context);
@@ -73,6 +88,70 @@ public class OutlineTextView extends TextView {
     mTextPaintOutline.setStyle(Paint.Style.STROKE);
     mTextPaintOutline.setTypeface(getTypeface());
     mTextPaintOutline.setStrokeWidth(mBorderSize);
+    invalidateLayouts();
+  }
+
+  private void invalidateLayouts() {
+    mOutlineLayout = null;
+    mFillLayout = null;
+    mMeasureLayout = null;
+    mCacheValid = false;
+  }
+
+  private Layout getOutlineLayout(int width) {
+    CharSequence text = getText();
+    if (mOutlineLayout == null || mOutlineLayout.getWidth() != width || !TextUtils.equals(mOutlineLayout.getText(), text)) {
+      mOutlineLayout = new StaticLayout(text, mTextPaintOutline, width, Layout.Alignment.ALIGN_CENTER, mSpacingMult, mSpacingAdd, mIncludePad);
+      mCacheValid = false;
+    }
+    return mOutlineLayout;
+  }
+
+  /**
+   * The outline layout at the width onMeasure() works with, which is narrower
+   * than the drawn one by the border, so it is kept apart from the latter.
+   */
+  private Layout getMeasureLayout(int width) {
+    CharSequence text = getText();
+    if (mMeasureLayout == null || mMeasureLayout.getWidth() != width || !TextUtils.equals(mMeasureLayout.getText(), text))
+      mMeasureLayout = new StaticLayout(text, mTextPaintOutline, width, Layout.Alignment.ALIGN_CENTER, mSpacingMult, mSpacingAdd, mIncludePad);
+    return mMeasureLayout;
+  }
+
+  private Layout getFillLayout(int width) {
+    CharSequence text = getText();
+    if (mFillLayout == null || mFillLayout.getWidth() != width || !TextUtils.equals(mFillLayout.getText(), text)) {
+      mFillLayout = new StaticLayout(text, mTextPaint, width, Layout.Alignment.ALIGN_CENTER, mSpacingMult, mSpacingAdd, mIncludePad);
+      mCacheValid = false;
+    }
+    return mFillLayout;
+  }
+
+  /**
+   * Render the outlined text once into a bitmap and blit it afterwards, which
+   * is faster for text redrawn on every frame at the cost of the bitmap
+   * memory.
+   */
+  public void setBitmapCacheEnabled(boolean enabled) {
+    mBitmapCacheEnabled = enabled;
+    if (!enabled && mCacheBitmap != null) {
+      mCacheBitmap.recycle();
+      mCacheBitmap = null;
+    }
+    mCacheValid = false;
+    invalidate();
+  }
+
+  /**
+   * @return the average time in nanoseconds spent in {@link #onDraw(Canvas)}
+   */
+  public long getAverageDrawCost() {
+    return mDrawCount == 0 ? 0 : mDrawNanos / mDrawCount;
+  }
+
+  public void resetDrawCost() {
+    mDrawCount = 0;
+    mDrawNanos = 0;
   }
 
   public void setText(String text) {
@@ -121,17 +200,54 @@ public class OutlineTextView extends TextView {
 
   @Override
   protected void onDraw(Canvas canvas) {
-    Layout layout = new StaticLayout(getText(), mTextPaintOutline, getWidth(), Layout.Alignment.ALIGN_CENTER, mSpacingMult, mSpacingAdd, mIncludePad);
-    layout.draw(canvas);
-    layout = new StaticLayout(getText(), mTextPaint, getWidth(), Layout.Alignment.ALIGN_CENTER, mSpacingMult, mSpacingAdd, mIncludePad);
-    layout.draw(canvas);
+    long begin = System.nanoTime();
+    int width = getWidth();
+    Layout outline = getOutlineLayout(width);
+    Layout fill = getFillLayout(width);
+    if (mBitmapCacheEnabled && width > 0 && outline.getHeight() > 0) {
+      if (!mCacheValid)
+        renderCache(outline, fill);
+      canvas.drawBitmap(mCacheBitmap, 0, 0, null);
+    } else {
+      outline.draw(canvas);
+      fill.draw(canvas);
+    }
+    mDrawNanos += System.nanoTime() - begin;
+    mDrawCount++;
+  }
+
+  private void renderCache(Layout outline, Layout fill) {
+    int width = outline.getWidth();
+    int height = Math.max(outline.getHeight(), fill.getHeight());
+    if (mCacheBitmap == null || mCacheBitmap.getWidth() != width || mCacheBitmap.getHeight() != height) {
+      if (mCacheBitmap != null)
+        mCacheBitmap.recycle();
+      mCacheBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    } else {
+      mCacheBitmap.eraseColor(Color.TRANSPARENT);
+    }
+    Canvas canvas = new Canvas(mCacheBitmap);
+    outline.draw(canvas);
+    fill.draw(canvas);
+    mCacheValid = true;
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    if (mCacheBitmap != null) {
+      mCacheBitmap.recycle();
+      mCacheBitmap = null;
+    }
+    mCacheValid = false;
   }
 
   @Override
   protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-    Layout layout = new StaticLayout(getText(), mTextPaintOutline, measureWidth(widthMeasureSpec), Layout.Alignment.ALIGN_CENTER, mSpacingMult, mSpacingAdd, mIncludePad);
+    int width = measureWidth(widthMeasureSpec);
+    Layout layout = getMeasureLayout(width);
     int ex = (int) (mBorderSize * 2 + 1);
-    setMeasuredDimension(measureWidth(widthMeasureSpec) + ex, measureHeight(heightMeasureSpec) * layout.getLineCount() + ex);
+    setMeasuredDimension(width + ex, measureHeight(heightMeasureSpec) * layout.getLineCount() + ex);
   }
 
   private int measureWidth(int measureSpec) {
@@ -0,0 +1,750 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.widget;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Matrix;
+import android.graphics.SurfaceTexture;
+import android.media.AudioManager;
+import android.net.Uri;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.util.SparseArray;
+import android.view.MotionEvent;
+import android.view.Surface;
+import android.view.TextureView;
+import android.view.View;
+
+import io.vov.vitamio.MediaFormat;
+import io.vov.vitamio.MediaPlayer;
+import io.vov.vitamio.MediaPlayer.OnBufferingUpdateListener;
+import io.vov.vitamio.MediaPlayer.OnCompletionListener;
+import io.vov.vitamio.MediaPlayer.OnErrorListener;
+import io.vov.vitamio.MediaPlayer.OnInfoListener;
+import io.vov.vitamio.MediaPlayer.OnPreparedListener;
+import io.vov.vitamio.MediaPlayer.OnSeekCompleteListener;
+import io.vov.vitamio.MediaPlayer.OnTimedTextBitmapListener;
+import io.vov.vitamio.MediaPlayer.OnTimedTextListener;
+import io.vov.vitamio.MediaPlayer.OnVideoSizeChangedListener;
+import io.vov.vitamio.MediaPlayer.TrackInfo;
+import io.vov.vitamio.utils.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link VideoView} alternative rendering into a {@link TextureView}. The
+ * video is part of the view hierarchy, so it can be animated, transformed,
+ * faded or scrolled in a list like any other view, and doesn't need its own
+ * composition layer.
+ * <p/>
+ * The player can outlive the view: with
+ * {@link #setKeepPlayerOnDetach(boolean)} the MediaPlayer and its
+ * SurfaceTexture survive the view leaving the window, and
+ * {@link #moveTo(TextureVideoView)} hands a playing MediaPlayer over to another
+ * TextureVideoView without reopening the stream.
+ */
+public class TextureVideoView extends TextureView implements MediaController.MediaPlayerControl {
+  private static final int STATE_ERROR = -1;
+  private static final int STATE_IDLE = 0;
+  private static final int STATE_PREPARING = 1;
+  private static final int STATE_PREPARED = 2;
+  private static final int STATE_PLAYING = 3;
+  private static final int STATE_PAUSED = 4;
+  private static final int STATE_PLAYBACK_COMPLETED = 5;
+  private Context mContext;
+  private Uri mUri;
+  private Map<String, String> mHeaders;
+  private long mDuration;
+  private int mCurrentState = STATE_IDLE;
+  private int mTargetState = STATE_IDLE;
+  private float mAspectRatio = 0;
+  private int mVideoLayout = VideoView.VIDEO_LAYOUT_SCALE;
+  private MediaPlayer mMediaPlayer = null;
+  private SurfaceTexture mSurfaceTexture;
+  private Surface mSurface;
+  private boolean mKeepPlayerOnDetach = false;
+  private int mVideoWidth;
+  private int mVideoHeight;
+  private float mVideoAspectRatio;
+  private int mVideoChroma = MediaPlayer.VIDEOCHROMA_RGBA;
+  private boolean mHardwareDecoder = false;
+  private int mBufSize;
+  private int mCurrentBufferPercentage;
+  private long mSeekWhenPrepared;
+  private MediaController mMediaController;
+  private View mMediaBufferingIndicator;
+  private OnCompletionListener mOnCompletionListener;
+  private OnPreparedListener mOnPreparedListener;
+  private OnErrorListener mOnErrorListener;
+  private OnSeekCompleteListener mOnSeekCompleteListener;
+  private OnTimedTextListener mOnTimedTextListener;
+  private OnTimedTextBitmapListener mOnTimedTextBitmapListener;
+  private OnInfoListener mOnInfoListener;
+  private OnBufferingUpdateListener mOnBufferingUpdateListener;
+
+  private SurfaceTextureListener mSTListener = new SurfaceTextureListener() {
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+      Log.d("onSurfaceTextureAvailable: %dx%d", width, height);
+      bindSurfaceTexture(surface);
+      if (mMediaPlayer == null)
+        openVideo();
+      applyVideoLayout();
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+      applyVideoLayout();
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+      if (mMediaController != null)
+        mMediaController.hide();
+      if (mKeepPlayerOnDetach && mMediaPlayer != null && surface == mSurfaceTexture) {
+        // Keep decoding into the detached texture, it will be reattached in
+        // onAttachedToWindow or handed over by moveTo.
+        return false;
+      }
+      release(true);
+      releaseSurface(surface);
+      return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+    }
+  };
+
+  private OnVideoSizeChangedListener mSizeChangedListener = new OnVideoSizeChangedListener() {
+    public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+      Log.d("onVideoSizeChanged: (%dx%d)", width, height);
+      mVideoWidth = mp.getVideoWidth();
+      mVideoHeight = mp.getVideoHeight();
+      mVideoAspectRatio = mp.getVideoAspectRatio();
+      if (mVideoWidth != 0 && mVideoHeight != 0)
+        setVideoLayout(mVideoLayout, mAspectRatio);
+    }
+  };
+
+  private OnPreparedListener mPreparedListener = new OnPreparedListener() {
+    public void onPrepared(MediaPlayer mp) {
+      Log.d("onPrepared");
+      mCurrentState = STATE_PREPARED;
+      if (mOnPreparedListener != null)
+        mOnPreparedListener.onPrepared(mMediaPlayer);
+      if (mMediaController != null)
+        mMediaController.setEnabled(true);
+      mVideoWidth = mp.getVideoWidth();
+      mVideoHeight = mp.getVideoHeight();
+      mVideoAspectRatio = mp.getVideoAspectRatio();
+      if (mVideoWidth != 0 && mVideoHeight != 0)
+        setVideoLayout(mVideoLayout, mAspectRatio);
+
+      long seekToPosition = mSeekWhenPrepared;
+      if (seekToPosition != 0)
+        seekTo(seekToPosition);
+      if (mTargetState == STATE_PLAYING) {
+        start();
+        if (mMediaController != null)
+          mMediaController.show();
+      } else if (!isPlaying() && (seekToPosition != 0 || getCurrentPosition() > 0)) {
+        if (mMediaController != null)
+          mMediaController.show(0);
+      }
+    }
+  };
+
+  private OnCompletionListener mCompletionListener = new OnCompletionListener() {
+    public void onCompletion(MediaPlayer mp) {
+      Log.d("onCompletion");
+      mCurrentState = STATE_PLAYBACK_COMPLETED;
+      mTargetState = STATE_PLAYBACK_COMPLETED;
+      if (mMediaController != null)
+        mMediaController.hide();
+      if (mOnCompletionListener != null)
+        mOnCompletionListener.onCompletion(mMediaPlayer);
+    }
+  };
+
+  private OnErrorListener mErrorListener = new OnErrorListener() {
+    public boolean onError(MediaPlayer mp, int framework_err, int impl_err) {
+      Log.d("Error: %d, %d", framework_err, impl_err);
+      mCurrentState = STATE_ERROR;
+      mTargetState = STATE_ERROR;
+      if (mMediaController != null)
+        mMediaController.hide();
+      if (mOnErrorListener != null)
+        return mOnErrorListener.onError(mMediaPlayer, framework_err, impl_err);
+      return true;
+    }
+  };
+
+  private OnBufferingUpdateListener mBufferingUpdateListener = new OnBufferingUpdateListener() {
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+      mCurrentBufferPercentage = percent;
+      if (mOnBufferingUpdateListener != null)
+        mOnBufferingUpdateListener.onBufferingUpdate(mp, percent);
+    }
+  };
+
+  private OnInfoListener mInfoListener = new OnInfoListener() {
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+      Log.d("onInfo: (%d, %d)", what, extra);
+      if (MediaPlayer.MEDIA_INFO_FILE_OPEN_OK == what) {
+        long buffersize = mMediaPlayer.audioTrackInit();
+        mMediaPlayer.audioInitedOk(buffersize);
+      }
+
+      if (mOnInfoListener != null) {
+        mOnInfoListener.onInfo(mp, what, extra);
+      } else if (mMediaPlayer != null) {
+        if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+          mMediaPlayer.pause();
+          if (mMediaBufferingIndicator != null)
+            mMediaBufferingIndicator.setVisibility(View.VISIBLE);
+        } else if (what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+          mMediaPlayer.start();
+          if (mMediaBufferingIndicator != null)
+            mMediaBufferingIndicator.setVisibility(View.GONE);
+        }
+      }
+      return true;
+    }
+  };
+
+  private OnSeekCompleteListener mSeekCompleteListener = new OnSeekCompleteListener() {
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+      Log.d("onSeekComplete");
+      if (mOnSeekCompleteListener != null)
+        mOnSeekCompleteListener.onSeekComplete(mp);
+    }
+  };
+
+  private OnTimedTextListener mTimedTextListener = new OnTimedTextListener() {
+    @Override
+    public void onTimedTextUpdate(byte[] pixels, int width, int height) {
+      if (mOnTimedTextListener != null)
+        mOnTimedTextListener.onTimedTextUpdate(pixels, width, height);
+    }
+
+    @Override
+    public void onTimedText(String text) {
+      if (mOnTimedTextListener != null)
+        mOnTimedTextListener.onTimedText(text);
+    }
+  };
+
+  public TextureVideoView(Context context) {
+    super(context);
+    initVideoView(context);
+  }
+
+  public TextureVideoView(Context context, AttributeSet attrs) {
+    this(context, attrs, 0);
+  }
+
+  public TextureVideoView(Context context, AttributeSet attrs, int defStyle) {
+    super(context, attrs, defStyle);
+    initVideoView(context);
+  }
+
+  private void initVideoView(Context ctx) {
+    mContext = ctx;
+    mVideoWidth = 0;
+    mVideoHeight = 0;
+    setSurfaceTextureListener(mSTListener);
+    setFocusable(true);
+    setFocusableInTouchMode(true);
+    mCurrentState = STATE_IDLE;
+    mTargetState = STATE_IDLE;
+    if (ctx instanceof Activity)
+      ((Activity) ctx).setVolumeControlStream(AudioManager.STREAM_MUSIC);
+  }
+
+  @Override
+  protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+    int width = getDefaultSize(mVideoWidth, widthMeasureSpec);
+    int height = getDefaultSize(mVideoHeight, heightMeasureSpec);
+    setMeasuredDimension(width, height);
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    if (mSurfaceTexture != null && mMediaPlayer != null && getSurfaceTexture() != mSurfaceTexture)
+      reuseSurfaceTexture(mSurfaceTexture);
+  }
+
+  /**
+   * Set the display options, the video is fitted with
+   * {@link #setTransform(Matrix)} so no layout pass is needed.
+   *
+   * @param layout      <ul>
+   *                    <li>{@link VideoView#VIDEO_LAYOUT_ORIGIN}
+   *                    <li>{@link VideoView#VIDEO_LAYOUT_SCALE}
+   *                    <li>{@link VideoView#VIDEO_LAYOUT_STRETCH}
+   *                    <li>{@link VideoView#VIDEO_LAYOUT_FIT_PARENT}
+   *                    <li>{@link VideoView#VIDEO_LAYOUT_ZOOM}
+   *                    </ul>
+   * @param aspectRatio video aspect ratio, will audo detect if 0.
+   */
+  public void setVideoLayout(int layout, float aspectRatio) {
+    mVideoLayout = layout;
+    mAspectRatio = aspectRatio;
+    applyVideoLayout();
+  }
+
+  private void applyVideoLayout() {
+    int viewWidth = getWidth();
+    int viewHeight = getHeight();
+    if (viewWidth == 0 || viewHeight == 0 || mVideoWidth == 0 || mVideoHeight == 0)
+      return;
+
+    float videoRatio = mAspectRatio <= 0.01f ? mVideoAspectRatio : mAspectRatio;
+    if (videoRatio <= 0.01f)
+      videoRatio = mVideoWidth / (float) mVideoHeight;
+    float viewRatio = viewWidth / (float) viewHeight;
+    float width, height;
+    if (mVideoLayout == VideoView.VIDEO_LAYOUT_ORIGIN && mVideoWidth < viewWidth && mVideoHeight < viewHeight) {
+      width = mVideoHeight * videoRatio;
+      height = mVideoHeight;
+    } else if (mVideoLayout == VideoView.VIDEO_LAYOUT_ZOOM) {
+      width = viewRatio > videoRatio ? viewWidth : videoRatio * viewHeight;
+      height = viewRatio < videoRatio ? viewHeight : viewWidth / videoRatio;
+    } else if (mVideoLayout == VideoView.VIDEO_LAYOUT_STRETCH) {
+      width = viewWidth;
+      height = viewHeight;
+    } else {
+      width = viewRatio < videoRatio ? viewWidth : videoRatio * viewHeight;
+      height = viewRatio > videoRatio ? viewHeight : viewWidth / videoRatio;
+    }
+
+    Matrix matrix = new Matrix();
+    matrix.setScale(width / viewWidth, height / viewHeight, viewWidth / 2f, viewHeight / 2f);
+    setTransform(matrix);
+    invalidate();
+    Log.d("VIDEO: %dx%dx%f, View: %dx%d, Content: %fx%f", mVideoWidth, mVideoHeight, videoRatio, viewWidth, viewHeight, width, height);
+  }
+
+  public void setVideoPath(String path) {
+    setVideoURI(Uri.parse(path));
+  }
+
+  public void setVideoURI(Uri uri) {
+    setVideoURI(uri, null);
+  }
+
+  public void setVideoURI(Uri uri, Map<String, String> headers) {
+    mUri = uri;
+    mHeaders = headers;
+    mSeekWhenPrepared = 0;
+    openVideo();
+    requestLayout();
+    invalidate();
+  }
+
+  public void stopPlayback() {
+    if (mMediaPlayer != null) {
+      mMediaPlayer.stop();
+      mMediaPlayer.release();
+      mMediaPlayer = null;
+      mCurrentState = STATE_IDLE;
+      mTargetState = STATE_IDLE;
+    }
+    if (mSurfaceTexture != null && mSurfaceTexture != getSurfaceTexture())
+      releaseSurface(mSurfaceTexture);
+  }
+
+  /**
+   * Keep the MediaPlayer and its SurfaceTexture alive when this view is
+   * detached from the window, e.g. scrolled out of a list. They are reused if
+   * the view is attached again, or can be moved with
+   * {@link #moveTo(TextureVideoView)}. Call {@link #stopPlayback()} to release
+   * them.
+   */
+  public void setKeepPlayerOnDetach(boolean keep) {
+    mKeepPlayerOnDetach = keep;
+  }
+
+  /**
+   * Hand the MediaPlayer of this view over to target, the playback goes on
+   * without reopening the stream. The listeners, the media controller and the
+   * display options of target are kept. This view is left idle.
+   *
+   * @param target the view to continue the playback, must not be playing
+   */
+  public void moveTo(TextureVideoView target) {
+    if (target == this || mMediaPlayer == null)
+      return;
+    target.release(true);
+
+    MediaPlayer mp = mMediaPlayer;
+    mMediaPlayer = null;
+    // adopt first, target takes over the states of this view
+    target.adoptPlayer(this, mp);
+    mCurrentState = STATE_IDLE;
+    mTargetState = STATE_IDLE;
+
+    if (mSurfaceTexture != null && mSurfaceTexture != getSurfaceTexture()) {
+      // this view is detached, its retained texture goes along with the player
+      target.mSurfaceTexture = mSurfaceTexture;
+      target.mSurface = mSurface;
+      mSurfaceTexture = null;
+      mSurface = null;
+      if (target.isAvailable())
+        target.bindSurfaceTexture(target.getSurfaceTexture());
+      else
+        target.reuseSurfaceTexture(target.mSurfaceTexture);
+    } else if (target.isAvailable()) {
+      target.bindSurfaceTexture(target.getSurfaceTexture());
+    } else {
+      // bound once the texture of target becomes available
+      mp.releaseDisplay();
+    }
+  }
+
+  private void adoptPlayer(TextureVideoView source, MediaPlayer mp) {
+    mMediaPlayer = mp;
+    mUri = source.mUri;
+    mHeaders = source.mHeaders;
+    mDuration = source.mDuration;
+    mCurrentState = source.mCurrentState;
+    mTargetState = source.mTargetState;
+    mVideoWidth = source.mVideoWidth;
+    mVideoHeight = source.mVideoHeight;
+    mVideoAspectRatio = source.mVideoAspectRatio;
+    mCurrentBufferPercentage = source.mCurrentBufferPercentage;
+    mSeekWhenPrepared = source.mSeekWhenPrepared;
+    setPlayerListeners(mp);
+    attachMediaController();
+    applyVideoLayout();
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private void reuseSurfaceTexture(SurfaceTexture texture) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      setSurfaceTexture(texture);
+    } else {
+      // can't reattach before API 16, a new texture will be bound once available
+      if (mMediaPlayer != null)
+        mMediaPlayer.releaseDisplay();
+      releaseSurface(texture);
+    }
+  }
+
+  private void bindSurfaceTexture(SurfaceTexture texture) {
+    SurfaceTexture oldTexture = null;
+    Surface oldSurface = null;
+    if (mSurfaceTexture != texture) {
+      oldTexture = mSurfaceTexture;
+      oldSurface = mSurface;
+      mSurfaceTexture = texture;
+      mSurface = null;
+    }
+    if (mSurface == null)
+      mSurface = new Surface(texture);
+    if (mMediaPlayer != null)
+      mMediaPlayer.setSurface(mSurface);
+    if (oldSurface != null)
+      oldSurface.release();
+    if (oldTexture != null && oldTexture != getSurfaceTexture())
+      oldTexture.release();
+  }
+
+  private void releaseSurface(SurfaceTexture texture) {
+    if (texture == mSurfaceTexture) {
+      if (mSurface != null)
+        mSurface.release();
+      mSurface = null;
+      mSurfaceTexture = null;
+    }
+    if (texture != getSurfaceTexture())
+      texture.release();
+  }
+
+  private void setPlayerListeners(MediaPlayer mp) {
+    mp.setOnPreparedListener(mPreparedListener);
+    mp.setOnVideoSizeChangedListener(mSizeChangedListener);
+    mp.setOnCompletionListener(mCompletionListener);
+    mp.setOnErrorListener(mErrorListener);
+    mp.setOnBufferingUpdateListener(mBufferingUpdateListener);
+    mp.setOnInfoListener(mInfoListener);
+    mp.setOnSeekCompleteListener(mSeekCompleteListener);
+    mp.setOnTimedTextListener(mTimedTextListener);
+    mp.setOnTimedTextBitmapListener(mOnTimedTextBitmapListener);
+  }
+
+  private void openVideo() {
+    if (mUri == null || mSurface == null)
+      return;
+    Intent i = new Intent("com.android.music.musicservicecommand");
+    i.putExtra("command", "pause");
+    mContext.sendBroadcast(i);
+
+    release(false);
+    try {
+      mDuration = -1;
+      mCurrentBufferPercentage = 0;
+      mMediaPlayer = new MediaPlayer(mContext, mHardwareDecoder);
+      setPlayerListeners(mMediaPlayer);
+
+      HashMap<String, String> options = new HashMap<String, String>();
+      options.put("rtsp_transport", "tcp");
+      options.put("analyzeduration", "1000000");
+      mMediaPlayer.setDataSource(mContext, mUri, mHeaders == null ? options : mHeaders);
+
+      mMediaPlayer.setSurface(mSurface);
+      mMediaPlayer.setBufferSize(mBufSize);
+      mMediaPlayer.setVideoChroma(mVideoChroma == MediaPlayer.VIDEOCHROMA_RGB565 ? MediaPlayer.VIDEOCHROMA_RGB565 : MediaPlayer.VIDEOCHROMA_RGBA);
+      setKeepScreenOn(true);
+      mMediaPlayer.prepareAsync();
+      mCurrentState = STATE_PREPARING;
+      attachMediaController();
+    } catch (IOException ex) {
+      Log.e("Unable to open content: " + mUri, ex);
+      mCurrentState = STATE_ERROR;
+      mTargetState = STATE_ERROR;
+      mErrorListener.onError(mMediaPlayer, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+    } catch (IllegalArgumentException ex) {
+      Log.e("Unable to open content: " + mUri, ex);
+      mCurrentState = STATE_ERROR;
+      mTargetState = STATE_ERROR;
+      mErrorListener.onError(mMediaPlayer, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+    }
+  }
+
+  public void setMediaController(MediaController controller) {
+    if (mMediaController != null)
+      mMediaController.hide();
+    mMediaController = controller;
+    attachMediaController();
+  }
+
+  public void setMediaBufferingIndicator(View mediaBufferingIndicator) {
+    if (mMediaBufferingIndicator != null)
+      mMediaBufferingIndicator.setVisibility(View.GONE);
+    mMediaBufferingIndicator = mediaBufferingIndicator;
+  }
+
+  private void attachMediaController() {
+    if (mMediaPlayer != null && mMediaController != null) {
+      mMediaController.setMediaPlayer(this);
+      View anchorView = this.getParent() instanceof View ? (View) this.getParent() : this;
+      mMediaController.setAnchorView(anchorView);
+      mMediaController.setEnabled(isInPlaybackState());
+
+      if (mUri != null) {
+        List<String> paths = mUri.getPathSegments();
+        String name = paths == null || paths.isEmpty() ? "null" : paths.get(paths.size() - 1);
+        mMediaController.setFileName(name);
+      }
+    }
+  }
+
+  public void setOnPreparedListener(OnPreparedListener l) {
+    mOnPreparedListener = l;
+  }
+
+  public void setOnCompletionListener(OnCompletionListener l) {
+    mOnCompletionListener = l;
+  }
+
+  public void setOnErrorListener(OnErrorListener l) {
+    mOnErrorListener = l;
+  }
+
+  public void setOnBufferingUpdateListener(OnBufferingUpdateListener l) {
+    mOnBufferingUpdateListener = l;
+  }
+
+  public void setOnSeekCompleteListener(OnSeekCompleteListener l) {
+    mOnSeekCompleteListener = l;
+  }
+
+  public void setOnTimedTextListener(OnTimedTextListener l) {
+    mOnTimedTextListener = l;
+  }
+
+  public void setOnTimedTextBitmapListener(OnTimedTextBitmapListener l) {
+    mOnTimedTextBitmapListener = l;
+    if (mMediaPlayer != null)
+      mMediaPlayer.setOnTimedTextBitmapListener(l);
+  }
+
+  public void setOnInfoListener(OnInfoListener l) {
+    mOnInfoListener = l;
+  }
+
+  private void release(boolean cleartargetstate) {
+    if (mMediaPlayer != null) {
+      mMediaPlayer.reset();
+      mMediaPlayer.release();
+      mMediaPlayer = null;
+      mCurrentState = STATE_IDLE;
+      if (cleartargetstate)
+        mTargetState = STATE_IDLE;
+    }
+  }
+
+  @Override
+  public boolean onTouchEvent(MotionEvent ev) {
+    if (isInPlaybackState() && mMediaController != null)
+      toggleMediaControlsVisiblity();
+    return false;
+  }
+
+  private void toggleMediaControlsVisiblity() {
+    if (mMediaController.isShowing()) {
+      mMediaController.hide();
+    } else {
+      mMediaController.show();
+    }
+  }
+
+  public void start() {
+    if (isInPlaybackState()) {
+      mMediaPlayer.start();
+      mCurrentState = STATE_PLAYING;
+    }
+    mTargetState = STATE_PLAYING;
+  }
+
+  public void pause() {
+    if (isInPlaybackState()) {
+      if (mMediaPlayer.isPlaying()) {
+        mMediaPlayer.pause();
+        mCurrentState = STATE_PAUSED;
+      }
+    }
+    mTargetState = STATE_PAUSED;
+  }
+
+  public long getDuration() {
+    if (isInPlaybackState()) {
+      if (mDuration > 0)
+        return mDuration;
+      mDuration = mMediaPlayer.getDuration();
+      return mDuration;
+    }
+    mDuration = -1;
+    return mDuration;
+  }
+
+  public long getCurrentPosition() {
+    if (isInPlaybackState())
+      return mMediaPlayer.getCurrentPosition();
+    return 0;
+  }
+
+  public void seekTo(long msec) {
+    if (isInPlaybackState()) {
+      mMediaPlayer.seekTo(msec);
+      mSeekWhenPrepared = 0;
+    } else {
+      mSeekWhenPrepared = msec;
+    }
+  }
+
+  public boolean isPlaying() {
+    return isInPlaybackState() && mMediaPlayer.isPlaying();
+  }
+
+  public int getBufferPercentage() {
+    if (mMediaPlayer != null)
+      return mCurrentBufferPercentage;
+    return 0;
+  }
+
+  public void setVolume(float leftVolume, float rightVolume) {
+    if (mMediaPlayer != null)
+      mMediaPlayer.setVolume(leftVolume, rightVolume);
+  }
+
+  public int getVideoWidth() {
+    return mVideoWidth;
+  }
+
+  public int getVideoHeight() {
+    return mVideoHeight;
+  }
+
+  public float getVideoAspectRatio() {
+    return mVideoAspectRatio;
+  }
+
+  /**
+   * Must set before {@link #setVideoURI}
+   *
+   * @param chroma
+   */
+  public void setVideoChroma(int chroma) {
+    mVideoChroma = chroma;
+  }
+
+  public void setHardwareDecoder(boolean hardware) {
+    mHardwareDecoder = hardware;
+  }
+
+  public void setVideoQuality(int quality) {
+    if (mMediaPlayer != null)
+      mMediaPlayer.setVideoQuality(quality);
+  }
+
+  public void setBufferSize(int bufSize) {
+    mBufSize = bufSize;
+  }
+
+  public boolean isBuffering() {
+    if (mMediaPlayer != null)
+      return mMediaPlayer.isBuffering();
+    return false;
+  }
+
+  public SparseArray<MediaFormat> getAudioTrackMap(String encoding) {
+    if (mMediaPlayer != null)
+      return mMediaPlayer.findTrackFromTrackInfo(TrackInfo.MEDIA_TRACK_TYPE_AUDIO, mMediaPlayer.getTrackInfo(encoding));
+    return null;
+  }
+
+  public void setAudioTrack(int audioIndex) {
+    if (mMediaPlayer != null)
+      mMediaPlayer.selectTrack(audioIndex);
+  }
+
+  public void setTimedTextShown(boolean shown) {
+    if (mMediaPlayer != null)
+      mMediaPlayer.setTimedTextShown(shown);
+  }
+
+  public void addTimedTextSource(String subPath) {
+    if (mMediaPlayer != null)
+      mMediaPlayer.addTimedTextSource(subPath);
+  }
+
+  protected boolean isInPlaybackState() {
+    return (mMediaPlayer != null && mCurrentState != STATE_ERROR && mCurrentState != STATE_IDLE && mCurrentState != STATE_PREPARING);
+  }
+}
@@ -45,6 +45,7 @@ import io.vov.vitamio.MediaPlayer.OnErrorListener;
 import io.vov.vitamio.MediaPlayer.OnInfoListener;
 import io.vov.vitamio.MediaPlayer.OnPreparedListener;
 import io.vov.vitamio.MediaPlayer.OnSeekCompleteListener;
+import io.vov.vitamio.MediaPlayer.OnTimedTextBitmapListener;
 import io.vov.vitamio.MediaPlayer.OnTimedTextListener;
 import io.vov.vitamio.MediaPlayer.OnVideoSizeChangedListener;
 import io.vov.vitamio.MediaPlayer.TrackInfo;
@@ -192,6 +193,7 @@ public class VideoView extends SurfaceView implements MediaController.MediaPlaye
 	private OnErrorListener mOnErrorListener;
 	private OnSeekCompleteListener mOnSeekCompleteListener;
 	private OnTimedTextListener mOnTimedTextListener;
+	private OnTimedTextBitmapListener mOnTimedTextBitmapListener;
 	private OnInfoListener mOnInfoListener;
 	private OnBufferingUpdateListener mOnBufferingUpdateListener;
 	private int mCurrentBufferPercentage;
@@ -437,6 +439,7 @@ public class VideoView extends SurfaceView implements MediaController.MediaPlaye
 			mMediaPlayer.setOnInfoListener(mInfoListener);
 			mMediaPlayer.setOnSeekCompleteListener(mSeekCompleteListener);
 			mMediaPlayer.setOnTimedTextListener(mTimedTextListener);
+			mMediaPlayer.setOnTimedTextBitmapListener(mOnTimedTextBitmapListener);
 			
 			Log.d(" set user optional --------  ");
 			HashMap<String, String> options = new HashMap<String, String>();
@@ -520,6 +523,12 @@ public class VideoView extends SurfaceView implements MediaController.MediaPlaye
     mOnTimedTextListener = l;
   }
 
+  public void setOnTimedTextBitmapListener(OnTimedTextBitmapListener l) {
+    mOnTimedTextBitmapListener = l;
+    if (mMediaPlayer != null)
+      mMediaPlayer.setOnTimedTextBitmapListener(l);
+  }
+
   public void setOnInfoListener(OnInfoListener l) {
     mOnInfoListener = l;
   }